@@ -2,12 +2,12 @@ package sk.gista.android.maps;
 
 public class BBox {
 
-	public float minX;
-	public float minY;
-	public float maxX;
-	public float maxY;
+	public double minX;
+	public double minY;
+	public double maxX;
+	public double maxY;
 	
-	public BBox(float minX, float minY, float maxX, float maxY) {
+	public BBox(double minX, double minY, double maxX, double maxY) {
 		this.minX = minX;
 		this.minY = minY;
 		this.maxX = maxX;
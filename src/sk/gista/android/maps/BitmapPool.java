@@ -0,0 +1,154 @@
+package sk.gista.android.maps;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import sk.gista.android.utils.LongHashMap;
+
+/**
+ * Pool of unused bitmaps, grouped by size and configuration. Bitmaps of evicted
+ * tiles are returned to the pool and decoders reuse them for new tiles through
+ * BitmapFactory.Options.inBitmap, instead of allocating new bitmaps.
+ * <p>
+ * Bitmap reuse is available since Android 3.0 (API 11); on older versions the
+ * pool is disabled and released bitmaps are recycled immediately.
+ */
+public class BitmapPool {
+	
+	private static final String TAG = BitmapPool.class.getSimpleName();
+	
+	// BitmapFactory.Options fields available since API 11
+	private static Field inBitmapField;
+	private static Field inMutableField;
+	
+	static {
+		try {
+			inBitmapField = BitmapFactory.Options.class.getField("inBitmap");
+			inMutableField = BitmapFactory.Options.class.getField("inMutable");
+		} catch (NoSuchFieldException e) {
+			inBitmapField = null;
+			inMutableField = null;
+		}
+	}
+	
+	private LongHashMap<ArrayList<Bitmap>> bitmaps = new LongHashMap<ArrayList<Bitmap>>();
+	private long maxBytes;
+	private long currentBytes;
+	
+	// statistics
+	private int hitCount;
+	private int missCount;
+	private int dropCount;
+	
+	public BitmapPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	public static boolean isReuseSupported() {
+		return inBitmapField != null;
+	}
+	
+	/**
+	 * Returns unused bitmap with the given parameters or null if there is none.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		ArrayList<Bitmap> list = bitmaps.get(key(width, height, config));
+		if (list == null || list.isEmpty()) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		Bitmap bitmap = list.remove(list.size()-1);
+		currentBytes -= sizeOf(bitmap);
+		return bitmap;
+	}
+	
+	/**
+	 * Returns bitmap which isn't used anymore to the pool, or recycles it if the
+	 * pool is full or bitmap can't be reused.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		int size = sizeOf(bitmap);
+		if (!isReuseSupported() || !bitmap.isMutable() || currentBytes + size > maxBytes) {
+			dropCount++;
+			bitmap.recycle();
+			return;
+		}
+		long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		ArrayList<Bitmap> list = bitmaps.get(key);
+		if (list == null) {
+			list = new ArrayList<Bitmap>();
+			bitmaps.put(key, list);
+		}
+		list.add(bitmap);
+		currentBytes += size;
+	}
+	
+	/**
+	 * Recycles all pooled bitmaps.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < bitmaps.tableSize(); i++) {
+			ArrayList<Bitmap> list = bitmaps.valueAt(i);
+			if (list != null) {
+				for (Bitmap bitmap : list) {
+					bitmap.recycle();
+				}
+			}
+		}
+		bitmaps.clear();
+		currentBytes = 0;
+	}
+	
+	public synchronized long getCurrentBytes() {
+		return currentBytes;
+	}
+	
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+	
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+	
+	public synchronized int getDropCount() {
+		return dropCount;
+	}
+	
+	public synchronized float getHitRate() {
+		int requests = hitCount + missCount;
+		return requests > 0? hitCount / (float) requests : 0;
+	}
+	
+	/**
+	 * Prepares decoding options to decode into the given bitmap (null to allocate
+	 * a new one). Decoded bitmaps are always mutable, so they can be reused later.
+	 */
+	public static void setReusedBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+		if (!isReuseSupported()) {
+			return;
+		}
+		try {
+			inBitmapField.set(options, bitmap);
+			inMutableField.setBoolean(options, true);
+		} catch (IllegalAccessException e) {
+			Log.e(TAG, "setting of the reused bitmap failed", e);
+		}
+	}
+	
+	private static long key(int width, int height, Bitmap.Config config) {
+		return ((long) width << 32) | ((long) height << 8) | (config != null? config.ordinal() : 0xFF);
+	}
+	
+	private static int sizeOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,100 @@
+package sk.gista.android.maps;
+
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Computes freshness of the downloaded tiles from the HTTP cache headers
+ * (Cache-Control, Expires, ETag, Last-Modified).
+ */
+class CacheHeaders {
+	
+	// freshness of tiles without any caching headers
+	static final long DEFAULT_FRESHNESS = 24 * 60 * 60 * 1000L;
+	// upper limit of the heuristic freshness computed from Last-Modified
+	static final long MAX_HEURISTIC_FRESHNESS = 7 * DEFAULT_FRESHNESS;
+	
+	/**
+	 * Creates cache entry for a tile received in a full (200) response.
+	 */
+	static DiskCache.Entry createEntry(byte[] content, HttpResponse response) {
+		DiskCache.Entry entry = new DiskCache.Entry();
+		entry.content = content;
+		entry.etag = headerValue(response, "ETag");
+		entry.lastModified = headerValue(response, "Last-Modified");
+		entry.expires = expires(response, entry.lastModified);
+		return entry;
+	}
+	
+	/**
+	 * Creates cache entry for a tile revalidated with a 304 response, which
+	 * may omit unchanged validators.
+	 */
+	static DiskCache.Entry updateEntry(DiskCache.Entry cached, HttpResponse response) {
+		DiskCache.Entry entry = new DiskCache.Entry();
+		entry.content = cached.content;
+		entry.etag = headerValue(response, "ETag");
+		if (entry.etag == null) {
+			entry.etag = cached.etag;
+		}
+		entry.lastModified = headerValue(response, "Last-Modified");
+		if (entry.lastModified == null) {
+			entry.lastModified = cached.lastModified;
+		}
+		entry.expires = expires(response, entry.lastModified);
+		return entry;
+	}
+	
+	private static long expires(HttpResponse response, String lastModified) {
+		long now = System.currentTimeMillis();
+		Header cacheControl = response.getFirstHeader("Cache-Control");
+		if (cacheControl != null) {
+			for (HeaderElement element : cacheControl.getElements()) {
+				String name = element.getName();
+				if ("no-cache".equalsIgnoreCase(name) || "no-store".equalsIgnoreCase(name)) {
+					return now;
+				} else if ("max-age".equalsIgnoreCase(name) && element.getValue() != null) {
+					try {
+						return now + Long.parseLong(element.getValue().trim()) * 1000L;
+					} catch (NumberFormatException e) {}
+				}
+			}
+		}
+		Date expires = parseDate(headerValue(response, "Expires"));
+		if (expires != null) {
+			Date date = parseDate(headerValue(response, "Date"));
+			// correct difference between the server and the device clock
+			long serverNow = date != null? date.getTime() : now;
+			return now + (expires.getTime() - serverNow);
+		}
+		Date modified = parseDate(lastModified);
+		if (modified != null) {
+			long age = now - modified.getTime();
+			if (age > 0) {
+				return now + Math.min(age / 10, MAX_HEURISTIC_FRESHNESS);
+			}
+		}
+		return now + DEFAULT_FRESHNESS;
+	}
+	
+	private static String headerValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header != null? header.getValue() : null;
+	}
+	
+	private static Date parseDate(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return DateUtils.parseDate(value);
+		} catch (DateParseException e) {
+			return null;
+		}
+	}
+}
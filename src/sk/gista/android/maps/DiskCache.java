@@ -0,0 +1,425 @@
+package sk.gista.android.maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Persistent cache of encoded tile images, stored as one file per tile in
+ * &lt;cache dir&gt;/&lt;layer name&gt;/&lt;zoom&gt;/&lt;x&gt;_&lt;y&gt;.
+ * Every file starts with a small header with the checksum of the content and
+ * HTTP validators of the tile, so truncated or corrupted files are detected
+ * and deleted on read, and stale tiles can be revalidated. Files are
+ * written asynchronously by a background thread and the total size is kept
+ * under the limit by removing least recently used tiles.
+ */
+public class DiskCache {
+	
+	private static final String TAG = DiskCache.class.getSimpleName();
+	
+	private static final int MAGIC = 0x47544332; // "GTC2"
+	private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	
+	private static DiskCache instance;
+	private static DiskCache offlineInstance;
+	
+	private File directory;
+	private long maxBytes;
+	private long currentBytes;
+	
+	// LRU index of the files in the cache (path -> file size)
+	private LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(256, 0.75f, true);
+	
+	// tiles waiting for the write, readable before they reach the disk
+	private java.util.Map<String, Entry> pendingWrites = new HashMap<String, Entry>();
+	private WriterThread writer;
+	// released when the files from the previous sessions are added to the index
+	private CountDownLatch indexLoaded = new CountDownLatch(1);
+	
+	/**
+	 * Returns shared cache in the application cache directory.
+	 */
+	public static synchronized DiskCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new DiskCache(new File(context.getCacheDir(), "tiles"), DEFAULT_MAX_BYTES);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Returns shared store of the tiles downloaded for the offline use. It is
+	 * placed in the application files directory (not removed by the system when
+	 * the storage is low) and it has no size limit.
+	 */
+	public static synchronized DiskCache getOfflineInstance(Context context) {
+		if (offlineInstance == null) {
+			offlineInstance = new DiskCache(new File(context.getFilesDir(), "offline_tiles"), Long.MAX_VALUE);
+		}
+		return offlineInstance;
+	}
+	
+	public DiskCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		writer = new WriterThread();
+		writer.start();
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	public synchronized long getCurrentBytes() {
+		return currentBytes;
+	}
+	
+	public synchronized int getTilesCount() {
+		return index.size();
+	}
+	
+	public boolean contains(String layerName, Tile tile) {
+		String path = tilePath(layerName, tile);
+		synchronized (this) {
+			if (pendingWrites.containsKey(path)) {
+				return true;
+			}
+		}
+		return new File(directory, path).exists();
+	}
+	
+	/**
+	 * Reads encoded tile image from the cache.
+	 *
+	 * @return cached tile or null if it is not cached or the stored data are not valid
+	 */
+	public Entry get(String layerName, Tile tile) {
+		String path = tilePath(layerName, tile);
+		synchronized (this) {
+			Entry pending = pendingWrites.get(path);
+			if (pending != null) {
+				return pending;
+			}
+			index.get(path); // mark as recently used
+		}
+		File file = new File(directory, path);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			int magic = in.readInt();
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (magic != MAGIC || length < 0 || length > file.length()) {
+				throw new IOException("invalid header");
+			}
+			Entry entry = new Entry();
+			entry.expires = in.readLong();
+			entry.etag = readOptionalString(in);
+			entry.lastModified = readOptionalString(in);
+			entry.content = new byte[length];
+			in.readFully(entry.content);
+			if (in.read() != -1) {
+				throw new IOException("invalid length");
+			}
+			if (checksum(entry.content, length) != checksum) {
+				throw new IOException("checksum mismatch");
+			}
+			return entry;
+		} catch (IOException e) {
+			Log.w(TAG, "Removing invalid cache file "+path+": "+e.getMessage());
+			delete(path);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+	
+	/**
+	 * Schedules asynchronous write of the encoded tile image. The entry must
+	 * not be modified after the call.
+	 */
+	public void put(String layerName, Tile tile, Entry entry) {
+		String path = tilePath(layerName, tile);
+		synchronized (this) {
+			pendingWrites.put(path, entry);
+		}
+		writer.addWrite(path);
+	}
+	
+	/**
+	 * Writes the tile immediately on the calling thread.
+	 * 
+	 * @return true if the tile was successfully stored
+	 */
+	public boolean putNow(String layerName, Tile tile, Entry entry) {
+		boolean success = writeFile(tilePath(layerName, tile), entry);
+		trim();
+		return success;
+	}
+	
+	public void clear() {
+		// files which aren't in the index yet wouldn't be deleted
+		awaitIndex();
+		List<String> paths;
+		synchronized (this) {
+			paths = new ArrayList<String>(index.keySet());
+		}
+		for (String path : paths) {
+			delete(path);
+		}
+	}
+	
+	/**
+	 * Waits until the files stored in the previous sessions are loaded into
+	 * the index.
+	 */
+	void awaitIndex() {
+		try {
+			indexLoaded.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private static String tilePath(String layerName, Tile tile) {
+		return layerName+"/"+tile.getZoomLevel()+"/"+tile.getX()+"_"+tile.getY();
+	}
+	
+	private static int checksum(byte[] content, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(content, 0, length);
+		return (int) crc.getValue();
+	}
+	
+	private static String readOptionalString(DataInputStream in) throws IOException {
+		String value = in.readUTF();
+		return value.length() > 0? value : null;
+	}
+	
+	private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+		out.writeUTF(value != null? value : "");
+	}
+	
+	private void writePending(String path) {
+		Entry entry;
+		synchronized (this) {
+			entry = pendingWrites.get(path);
+		}
+		if (entry == null) {
+			return;
+		}
+		writeFile(path, entry);
+		synchronized (this) {
+			if (pendingWrites.get(path) == entry) {
+				pendingWrites.remove(path);
+			}
+		}
+		trim();
+	}
+	
+	private boolean writeFile(String path, Entry entry) {
+		byte[] content = entry.content;
+		File file = new File(directory, path);
+		File tmpFile = new File(directory, path+".tmp");
+		file.getParentFile().mkdirs();
+		DataOutputStream out = null;
+		boolean success = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(content.length);
+			out.writeInt(checksum(content, content.length));
+			out.writeLong(entry.expires);
+			writeOptionalString(out, entry.etag);
+			writeOptionalString(out, entry.lastModified);
+			out.write(content);
+			out.close();
+			out = null;
+			success = tmpFile.renameTo(file);
+		} catch (IOException e) {
+			Log.e(TAG, "writing of the tile failed", e);
+		} finally {
+			close(out);
+			if (!success) {
+				tmpFile.delete();
+			}
+		}
+		if (success) {
+			synchronized (this) {
+				Long oldSize = index.put(path, file.length());
+				if (oldSize != null) {
+					currentBytes -= oldSize;
+				}
+				currentBytes += file.length();
+			}
+		}
+		return success;
+	}
+	
+	private void delete(String path) {
+		new File(directory, path).delete();
+		synchronized (this) {
+			Long size = index.remove(path);
+			if (size != null) {
+				currentBytes -= size;
+			}
+		}
+	}
+	
+	private void trim() {
+		while (true) {
+			String eldest;
+			synchronized (this) {
+				if (currentBytes <= maxBytes || index.isEmpty()) {
+					return;
+				}
+				Iterator<String> it = index.keySet().iterator();
+				eldest = it.next();
+			}
+			delete(eldest);
+		}
+	}
+	
+	/**
+	 * Builds LRU index from the files stored in the previous sessions, ordered
+	 * by the time of their last modification. The index is loaded on the writer
+	 * thread, so tiles written or removed in the meantime are already indexed
+	 * or don't exist anymore. They are merged with the loaded files as the most
+	 * recently used ones, and counted only once.
+	 */
+	void loadIndex() {
+		try {
+			mergeIndex();
+		} finally {
+			indexLoaded.countDown();
+		}
+		trim();
+	}
+	
+	private void mergeIndex() {
+		List<File> files = new ArrayList<File>();
+		listFiles(directory, files);
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long diff = f1.lastModified() - f2.lastModified();
+				return diff < 0? -1 : (diff > 0? 1 : 0);
+			}
+		});
+		int prefixLength = directory.getPath().length()+1;
+		int loadedCount = 0;
+		synchronized (this) {
+			LinkedHashMap<String, Long> loaded = new LinkedHashMap<String, Long>(
+					(files.size()+index.size())*2, 0.75f, true);
+			for (File file : files) {
+				String path = file.getPath().substring(prefixLength);
+				if (path.endsWith(".tmp")) {
+					file.delete();
+					continue;
+				}
+				if (index.containsKey(path) || !file.exists()) {
+					continue;
+				}
+				loaded.put(path, file.length());
+				currentBytes += file.length();
+				loadedCount++;
+			}
+			loaded.putAll(index);
+			index = loaded;
+		}
+		Log.i(TAG, "Loaded disk cache index: "+loadedCount+" files, "+currentBytes+" bytes");
+	}
+	
+	private static void listFiles(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				listFiles(child, files);
+			} else {
+				files.add(child);
+			}
+		}
+	}
+	
+	private static void close(java.io.Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Cached tile with the validators used for conditional requests.
+	 */
+	public static class Entry {
+		public byte[] content;
+		// value of ETag header
+		public String etag;
+		// value of Last-Modified header
+		public String lastModified;
+		// time (in milliseconds) when the tile becomes stale
+		public long expires;
+		
+		public boolean isStale() {
+			return System.currentTimeMillis() >= expires;
+		}
+	}
+	
+	class WriterThread extends Thread {
+		
+		private BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+		
+		public WriterThread() {
+			super("DiskCacheWriter");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+		
+		@Override
+		public void run() {
+			loadIndex();
+			while (true) {
+				try {
+					writePending(queue.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+		
+		public void addWrite(String path) {
+			queue.offer(path);
+		}
+	}
+}
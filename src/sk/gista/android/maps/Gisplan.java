@@ -147,11 +147,11 @@ public class Gisplan extends Activity implements SensorEventListener, MapListene
 				if (location != null) {
 					Point2D projected = new Point2D();
 					map.getLayer().getProjection().transform(location, projected);
-					map.moveToLocation((float) projected.x, (float) projected.y);
+					map.moveToLocation(projected.x, projected.y);
 				} else {
 					// use center of the map
 					BBox bbox = map.getLayer().getBoundingBox();
-					map.moveToLocation((bbox.minX + bbox.maxX)/2f, (bbox.minY + bbox.maxY)/2f);
+					map.moveToLocation((bbox.minX + bbox.maxX)/2, (bbox.minY + bbox.maxY)/2);
 				}
 			}
 		});
@@ -161,7 +161,7 @@ public class Gisplan extends Activity implements SensorEventListener, MapListene
 			@Override
 			public void onClick(View v) {
 				BBox bbox = map.getLayer().getBoundingBox();
-				map.setCenter((bbox.minX+bbox.maxX)/2f, (bbox.minY+bbox.maxY)/2f);
+				map.setCenter((bbox.minX+bbox.maxX)/2, (bbox.minY+bbox.maxY)/2);
 				map.setZoom(0);
 				map.redraw();
 			}
@@ -274,7 +274,7 @@ public class Gisplan extends Activity implements SensorEventListener, MapListene
         			Point2D wgs84Center = new Point2D(centerX, centerY);
         			Point2D center = new Point2D();
         			layer.getProjection().transform(wgs84Center, center);
-            		map.setCenter((float) center.x, (float) center.y);
+            		map.setCenter(center.x, center.y);
             	}
         		map.setZoom(zoom);
         		break;
@@ -338,7 +338,7 @@ public class Gisplan extends Activity implements SensorEventListener, MapListene
 					}
 					map.setLayer(layer);
 		    		if (newCenter != null) {
-		    			map.setCenter((float) newCenter.x, (float) newCenter.y);
+		    			map.setCenter(newCenter.x, newCenter.y);
 		    		}
 		    		((View) map).invalidate();
 				}
@@ -433,10 +433,10 @@ public class Gisplan extends Activity implements SensorEventListener, MapListene
 					resolutions[j] = resolutionsArray.getDouble(j);
 				}
 				BBox bbox = new BBox(
-						(float) bboxArray.getDouble(0),
-						(float) bboxArray.getDouble(1),
-						(float) bboxArray.getDouble(2),
-						(float) bboxArray.getDouble(3));
+						bboxArray.getDouble(0),
+						bboxArray.getDouble(1),
+						bboxArray.getDouble(2),
+						bboxArray.getDouble(3));
 				
 				Projection proj = ProjectionFactory.getNamedPROJ4CoordinateSystem(srs);
 				TmsLayer tmsLayer = new TmsLayer(bbox, resolutions, url, layerName, extension, proj);
@@ -63,6 +63,10 @@ public abstract class Layer {
 			return zoomLevel;
 		}
 		
+		public long getKey() {
+			return key(x, y, zoomLevel);
+		}
+		
 		public Bitmap getImage() {
 			return image;
 		}
@@ -71,12 +75,31 @@ public abstract class Layer {
 			this.image = image;
 		}
 		
+		/**
+		 * Moves the tile without image to other coordinates, used to reuse tiles
+		 * which aren't referenced anymore.
+		 */
+		void set(int x, int y, int zoomLevel) {
+			this.x = x;
+			this.y = y;
+			this.zoomLevel = zoomLevel;
+			image = null;
+		}
+		
 		public void recycle() {
 			if (image != null) {
 				image.recycle();
 				image = null;
 			}
 		}
+		
+		/**
+		 * Packs tile coordinates into a single primitive key (8 bits for the zoom level,
+		 * 28 bits for each of the x and y indexes).
+		 */
+		public static final long key(int x, int y, int zoomLevel) {
+			return ((long) zoomLevel << 56) | ((long) (x & 0xFFFFFFF) << 28) | (y & 0xFFFFFFF);
+		}
 	}
 	
 	public interface TileListener {
@@ -0,0 +1,221 @@
+package sk.gista.android.maps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.lang.String.format;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+import sk.gista.android.utils.LongHashMap;
+
+/**
+ * Reads tiles from a MBTiles package (SQLite database with a tiles table).
+ * MBTiles use TMS tile scheme, so tile_row goes up like the y index of TmsLayer,
+ * but zoom levels and tile indexes are those of the grid of the package. Tile
+ * (x, y) of the layer zoom level z is read as the tile (x + originColumn * 2^z,
+ * y + originRow * 2^z) of the zoom level z + zoomOffset. Without offsets the
+ * package must use the same grid as the layer, see {@link #checkLayer(TmsLayer)}.
+ * <p>
+ * Each query reads also the neighbouring tiles of the requested one, because
+ * map requests tiles in blocks around the center of the screen. Queries use
+ * the same SQL, so the database reuses its compiled statement.
+ */
+public class MBTilesSource implements TileSource {
+	
+	private static final String TAG = MBTilesSource.class.getSimpleName();
+	
+	private static final String TILES_QUERY = "SELECT tile_column, tile_row, tile_data FROM tiles " +
+			"WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+	
+	// distance of the neighbouring tiles read together with the requested tile
+	private static final int READ_AHEAD = 1;
+	private static final int MAX_READ_AHEAD_TILES = 32;
+	
+	private SQLiteDatabase db;
+	private String[] queryArgs = new String[5];
+	
+	// position of the layer grid in the grid of the package
+	private int zoomOffset;
+	private int originColumn;
+	private int originRow;
+	// zoom levels of the package
+	private int minZoom = 0;
+	private int maxZoom = Integer.MAX_VALUE;
+	
+	// tiles read ahead, waiting for their requests
+	private LongHashMap<byte[]> readAhead = new LongHashMap<byte[]>();
+	// FIFO of the tiles read ahead, data of the consumed tiles are cleared
+	private long[] readAheadKeys = new long[MAX_READ_AHEAD_TILES];
+	private byte[][] readAheadData = new byte[MAX_READ_AHEAD_TILES][];
+	private int readAheadNext;
+	
+	/**
+	 * Opens package which uses the same grid as the layer.
+	 */
+	public MBTilesSource(String path) throws IOException {
+		this(path, 0, 0, 0);
+	}
+	
+	/**
+	 * @param zoomOffset zoom level of the package which corresponds to the zoom
+	 * level 0 of the layer
+	 * @param originColumn column of the first layer tile at the zoom level 0 of
+	 * the layer, in the package
+	 * @param originRow row of the first layer tile at the zoom level 0 of the
+	 * layer, in the package
+	 */
+	public MBTilesSource(String path, int zoomOffset, int originColumn, int originRow) throws IOException {
+		this.zoomOffset = zoomOffset;
+		this.originColumn = originColumn;
+		this.originRow = originRow;
+		try {
+			db = SQLiteDatabase.openDatabase(path, null,
+					SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		} catch (SQLiteException e) {
+			IOException ioe = new IOException("opening of the MBTiles file failed: "+path);
+			ioe.initCause(e);
+			throw ioe;
+		}
+		try {
+			String value = getMetadata("minzoom");
+			if (value != null) {
+				minZoom = Integer.parseInt(value.trim());
+			}
+			value = getMetadata("maxzoom");
+			if (value != null) {
+				maxZoom = Integer.parseInt(value.trim());
+			}
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "invalid zoom levels in the metadata of "+path);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "reading of the metadata failed: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Checks that the package can be used by the layer. Tile indexes are mapped
+	 * only by the offsets, so with an origin other than 0 the resolutions of the
+	 * layer must halve from one zoom level to the next one, and at least one
+	 * zoom level of the layer must be in the package.
+	 * 
+	 * @throws IllegalArgumentException if the grids don't match
+	 */
+	public void checkLayer(TmsLayer layer) {
+		double[] resolutions = layer.getResolutions();
+		if (originColumn != 0 || originRow != 0) {
+			for (int i = 1; i < resolutions.length; i++) {
+				double ratio = resolutions[i-1] / resolutions[i];
+				if (Math.abs(ratio - 2) > 1e-6) {
+					throw new IllegalArgumentException(format("resolutions of zoom levels %d and %d " +
+							"don't halve, tile origin can't be mapped", i-1, i));
+				}
+			}
+		}
+		if (zoomOffset + resolutions.length - 1 < minZoom || zoomOffset > maxZoom) {
+			throw new IllegalArgumentException(format("zoom levels %d-%d of the package don't " +
+					"overlap zoom levels %d-%d of the layer", minZoom, maxZoom, zoomOffset,
+					zoomOffset + resolutions.length - 1));
+		}
+	}
+	
+	/**
+	 * @return value from the metadata table or null
+	 */
+	public synchronized String getMetadata(String name) {
+		Cursor cursor = db.rawQuery("SELECT value FROM metadata WHERE name = ?", new String[] {name});
+		try {
+			return cursor.moveToFirst()? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	@Override
+	public synchronized ByteBuffer getTileData(Tile tile) throws IOException {
+		long key = tile.getKey();
+		byte[] data = readAhead.remove(key);
+		if (data != null) {
+			clearReadAhead(data);
+			return ByteBuffer.wrap(data);
+		}
+		int zoom = tile.getZoomLevel() + zoomOffset;
+		if (zoom < minZoom || zoom > maxZoom) {
+			return null;
+		}
+		int columnOffset = originColumn << tile.getZoomLevel();
+		int rowOffset = originRow << tile.getZoomLevel();
+		int column = tile.getX() + columnOffset;
+		int row = tile.getY() + rowOffset;
+		queryArgs[0] = String.valueOf(zoom);
+		queryArgs[1] = String.valueOf(column-READ_AHEAD);
+		queryArgs[2] = String.valueOf(column+READ_AHEAD);
+		queryArgs[3] = String.valueOf(row-READ_AHEAD);
+		queryArgs[4] = String.valueOf(row+READ_AHEAD);
+		Cursor cursor;
+		try {
+			cursor = db.rawQuery(TILES_QUERY, queryArgs);
+		} catch (SQLiteException e) {
+			IOException ioe = new IOException("reading of the tile failed");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		try {
+			while (cursor.moveToNext()) {
+				int x = cursor.getInt(0) - columnOffset;
+				int y = cursor.getInt(1) - rowOffset;
+				if (x == tile.getX() && y == tile.getY()) {
+					data = cursor.getBlob(2);
+				} else {
+					long neighbourKey = Tile.key(x, y, tile.getZoomLevel());
+					if (!readAhead.containsKey(neighbourKey)) {
+						addReadAhead(neighbourKey, cursor.getBlob(2));
+					}
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return data != null? ByteBuffer.wrap(data) : null;
+	}
+	
+	private void addReadAhead(long key, byte[] data) {
+		// replace the oldest tile read ahead, if it wasn't requested yet
+		if (readAheadData[readAheadNext] != null) {
+			readAhead.remove(readAheadKeys[readAheadNext]);
+		}
+		readAhead.put(key, data);
+		readAheadKeys[readAheadNext] = key;
+		readAheadData[readAheadNext] = data;
+		readAheadNext = (readAheadNext+1) % MAX_READ_AHEAD_TILES;
+	}
+	
+	/**
+	 * Clears the FIFO slot of the consumed tile, so the slot doesn't remove the
+	 * same tile read ahead again later.
+	 */
+	private void clearReadAhead(byte[] data) {
+		for (int i = 0; i < MAX_READ_AHEAD_TILES; i++) {
+			if (readAheadData[i] == data) {
+				readAheadData[i] = null;
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void close() {
+		readAhead.clear();
+		for (int i = 0; i < MAX_READ_AHEAD_TILES; i++) {
+			readAheadData[i] = null;
+		}
+		if (db.isOpen()) {
+			db.close();
+			Log.i(TAG, "MBTiles database closed");
+		}
+	}
+}
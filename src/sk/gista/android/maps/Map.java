@@ -2,8 +2,6 @@ package sk.gista.android.maps;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import static java.lang.String.format;
 
 import android.content.Context;
@@ -12,39 +10,48 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Region;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.jhlabs.geom.Point2D;
+
 import sk.gista.android.maps.Layer.Tile;
 import sk.gista.android.maps.Layer.TileListener;
 import sk.gista.android.maps.MapEventsGenerator.MapControlListener;
 import sk.gista.android.utils.CustomAnimation;
+import sk.gista.android.utils.FrameScheduler;
 import sk.gista.android.utils.TmsVisualDebugger;
-import sk.gista.android.utils.Utils;
 import sk.gista.android.utils.CustomAnimation.CompositeAnimation;
 
 public class Map extends View implements TileListener, MapView, MapControlListener {
 
 	private static String TAG = Map.class.getSimpleName();
 	
-	private PointF center;
+	private Point2D center;
 	private BBox bbox;
 	private int zoomLevel = 1;
 	private int heading;
 	
-	private float tileWidth;
-	private float tileHeight;
+	// size of a tile in map units
+	private double tileWidth;
+	private double tileHeight;
 
 	// size of screen (map) in pixels
 	private int width;
 	private int height;
 
-	// coordinates on map and screen to compute aligned positions from map to the screen
-	private PointF firstTilePosition = new PointF();
+	// coordinates on map and screen to compute aligned positions from map to the screen,
+	// map positions are converted to offsets from the first visible tile in double
+	// precision, so the screen positions don't depend on the distance from the origin
+	private Point2D firstTilePosition = new Point2D();
 	private PointF firstTilePositionPx = new PointF();
 	
 	private Point firstVisibleTile = new Point();
@@ -52,13 +59,45 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	
 	// zoom
 	private float zoomPinch = 1f;
+	// snapshot of the last frame of the zoom, shown under the tiles of the new zoom
+	// level until they are loaded
 	private Bitmap zoomBackground;
 	private boolean showZoomBackground;
+	// zoom level which is set after the last frame of the zoom is drawn into the snapshot
+	private int pendingZoom = -1;
+	// snapshot is drawn in horizontal strips, one per frame, so the end of the zoom
+	// doesn't take a frame with all tiles drawn twice
+	static final int SNAPSHOT_STRIPS = 4;
+	private Bitmap snapshot;
+	private Canvas snapshotCanvas;
+	private int snapshotStrips;
+	private Rect snapshotRect = new Rect();
+	// zoom level with the resolution closest to the pinched one, its tiles are
+	// loaded and drawn over the scaled tiles of the current zoom level
+	private int renderZoom;
+	private Rect renderZoomTiles = new Rect();
+	
+	// corners of the (rotated) viewport in map units and their bounding box
+	private Point2D[] viewport = {new Point2D(), new Point2D(), new Point2D(), new Point2D()};
+	private Point2D viewportMin = new Point2D();
+	private Point2D viewportMax = new Point2D();
+	// range of the tiles in each row of the visible tiles, which intersect the viewport
+	private int[] rowFirstTile = new int[0];
+	private int[] rowLastTile = new int[0];
+	private int[] renderRowFirstTile = new int[0];
+	private int[] renderRowLastTile = new int[0];
 	
 	//private Matrix overlayMatrix;
 	
 	private TmsLayer tmsLayer;
 	private TilesManager tilesManager;
+	private TilePrefetcher prefetcher;
+	private Rect visibleTiles = new Rect();
+	private Rect zoomTargetTiles = new Rect();
+	private Rect rotationTiles = new Rect();
+	private Rect keptTiles = new Rect();
+	// tiles in this distance around the prefetched area aren't cancelled
+	private static final int CANCEL_MARGIN = 1;
 	private List<Overlay> overlays;
 	
 	private boolean drawOverlays = true;
@@ -75,19 +114,63 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	private float scaleWidth = 141.73236f;
 	private String scaleText;
 	
-	private Timer animTimer = new Timer();
+	private FrameScheduler frameScheduler;
 	private TmsVisualDebugger visualDebugger;
-	private boolean isPeriodicallyRedrawing;
 	
 	private MapListener mapListener;
 	private MapEventsGenerator mapEventsGenerator;
 	
-	private PointF alignedCenter;
-	private PointF bgLeftBottom = new PointF();
-	private PointF bgRightTop = new PointF();
+	private PointF alignedCenter = new PointF();
+	private boolean alignedCenterValid;
+	private Point2D bgLeftBottom = new Point2D();
+	private Point2D bgRightTop = new Point2D();
+	
+	// scale of the pinch zoom and rotation by the heading around the center of the
+	// screen and its inverse, rebuilt only when zoomPinch, heading or the size of
+	// the map changes
+	private Matrix pinchMatrix = new Matrix();
+	private Matrix inversePinchMatrix = new Matrix();
+	private float matrixZoomPinch = Float.NaN;
+	private int matrixHeading;
+	private int matrixWidth;
+	private int matrixHeight;
+	private float[] transformedPoint = new float[2];
+	
+	// preallocated points used while drawing
+	private PointF centerPx = new PointF();
+	private PointF bgLeftBottomPx = new PointF();
+	private PointF bgRightTopPx = new PointF();
+	private PointF bboxCornerPx = new PointF();
+	private float[] border = new float[8];
+	private Path borderPath = new Path();
+	private Point2D screenOrigin = new Point2D();
+	private Point firstScreenTile = new Point();
+	private Point lastScreenTile = new Point();
+	private Point lastLayerTile = new Point();
 	
 	private ZoomAnimation zoomAnimation;
 	
+	// how many lower zoom levels are searched for a tile to draw instead of the missing one
+	private static final int MAX_ANCESTOR_LEVELS = 4;
+	private boolean drawChildTiles = true;
+	private Rect fallbackSrc = new Rect();
+	
+	// back buffer with rendered tiles, the bitmaps hold also zoom snapshots,
+	// because the buffer isn't used while the map is zoomed
+	private Bitmap tilesBuffer;
+	private Bitmap swapBuffer;
+	private Canvas tilesBufferCanvas;
+	private Canvas swapBufferCanvas;
+	private boolean tilesBufferValid;
+	private boolean bufferHasMissingTiles;
+	private int bufferZoom;
+	private int bufferGridX;
+	private int bufferGridY;
+	private Region repaintRegion = new Region();
+	// loaded tiles which aren't drawn in the buffer yet
+	private List<Tile> dirtyTiles = new ArrayList<Tile>();
+	private RectF fallbackDst = new RectF();
+	
 	private int size;
 	
 	public Map(Context context) {
@@ -125,6 +208,7 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		scaleStyle.setFakeBoldText(true);
 		scaleStyle.setAntiAlias(true);
 		
+		frameScheduler = new FrameScheduler(this);
 		overlays = new ArrayList<Overlay>(1);
 		mapEventsGenerator = new MapEventsGenerator(this);
 		mapEventsGenerator.setMapControlListener(this);
@@ -134,15 +218,16 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		if (tmsLayer != layer) {
 			
 			if (tilesManager != null) {
-				tilesManager.cancelAll();
-				tilesManager.clearCache();
+				tilesManager.shutdown();
 			}
 			tmsLayer = layer;
+			tilesBufferValid = false;
 			if (layer != null) {
 				tilesManager = new TilesManager(this);
 				tilesManager.addTileListener(this);
+				prefetcher = new TilePrefetcher(tilesManager);
 				bbox = layer.getBoundingBox();
-				center = new PointF((bbox.minX + bbox.maxX) / 2f, (bbox.minY + bbox.maxY) / 2f);
+				center = new Point2D((bbox.minX + bbox.maxX) / 2, (bbox.minY + bbox.maxY) / 2);
 		
 				visualDebugger = new TmsVisualDebugger(this);
 				//setZoom(1);
@@ -171,8 +256,7 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 			}
 			zoomAnimation = new ZoomAnimation(zoom);
 			zoomAnimation.setDuration(400);
-			zoomAnimation.setFramesCount(7);
-			zoomAnimation.setView(this);
+			zoomAnimation.setFrameScheduler(frameScheduler);
 			zoomAnimation.start();
 		}
 	}
@@ -191,18 +275,24 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		}
 	}
 
-	public PointF getCenter() {
+	public Point2D getCenter() {
 		return center;
 	}
 	
-	public void setCenter(float x, float y) {
+	public Point2D getCenter(Point2D out) {
+		out.x = center.x;
+		out.y = center.y;
+		return out;
+	}
+	
+	public void setCenter(double x, double y) {
 		if (center != null) {
 			center.x = x;
 			center.y = y;
 		} else {
-			center = new PointF(x, y);
+			center = new Point2D(x, y);
 		}
-		alignedCenter = null;
+		alignedCenterValid = false;
 	}
 	
 	public void recycle() {
@@ -210,27 +300,38 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 			tilesManager.cancelAll();
 			tilesManager.clearCache();
 		}
+		frameScheduler.stop();
+		Log.i(TAG, format("Frames: %d dropped: %d average time: %.1f ms max time: %d ms",
+				frameScheduler.getFramesCount(), frameScheduler.getDroppedFramesCount(),
+				frameScheduler.getAverageFrameTime(), frameScheduler.getMaxFrameTime()));
+		releaseTilesBuffer();
 	}
 	
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		Log.i(TAG, format("width: %d height: %d", w, h));
 		//Log.i(TAG, "Cached tiles: "+tilesCache.size());
-		if (zoomBackground != null) {
-			zoomBackground.recycle();
-			zoomBackground = null;
-		}
+		zoomBackground = null;
+		showZoomBackground = false;
 		size = (int) Math.ceil(Math.sqrt(w*w+h*h));
 		width = w;
 		height = h;
+		releaseTilesBuffer();
+		if (w > 0 && h > 0) {
+			tilesBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			swapBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			tilesBufferCanvas = new Canvas(tilesBuffer);
+			swapBufferCanvas = new Canvas(swapBuffer);
+		}
 		//clearTiles();
 	}
 
 	protected void onZoomChange(int oldZoom, int zoom) {
-		tileWidth = tmsLayer.getTileWidth() * getResolution();
-		tileHeight = tmsLayer.getTileHeight() * getResolution();
-		tilesManager.cancelAll();
-		tilesManager.clearCache();
+		tileWidth = tmsLayer.getTileWidth() * tmsLayer.getResolutions()[zoom];
+		tileHeight = tmsLayer.getTileHeight() * tmsLayer.getResolutions()[zoom];
+		// tiles of the previous zoom level stay in the cache, they are drawn scaled
+		// until the tiles of the new zoom level are loaded
+		tilesManager.onZoomChange(zoom);
 		
 		//double factor = 39.3701; // meters
 		//double scale = getResolution()* 72.0 * factor;
@@ -250,6 +351,21 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		return tmsLayer;
 	}
 	
+	TilesManager getTilesManager() {
+		return tilesManager;
+	}
+	
+	/**
+	 * @return count of the tiles which intersect the rotated viewport in the last frame
+	 */
+	int getVisibleTilesCount() {
+		int count = 0;
+		for (int row = 0; row <= lastVisibleTile.y - firstVisibleTile.y; row++) {
+			count += rowLastTile[row] - rowFirstTile[row] + 1;
+		}
+		return count;
+	}
+	
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 		return mapEventsGenerator.onTouchEvent(event);
@@ -258,6 +374,12 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	PointF centerAtZoomStart = new PointF();
 	@Override
 	protected void onDraw(Canvas canvas) {
+		frameScheduler.onDrawStart();
+		drawMap(canvas);
+		frameScheduler.onDrawEnd();
+	}
+	
+	private void drawMap(Canvas canvas) {
 		canvas.drawRGB(255, 255, 255);
 		if (tmsLayer == null) {
 			return;
@@ -265,21 +387,141 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		
 		validateMap();
 		
+		// while the map is only moved, tiles are drawn into the back buffer and only
+		// newly exposed or changed parts of it are repainted
+		boolean useBuffer = zoomPinch == 1f && !showZoomBackground && zoomAnimation == null
+				&& pendingZoom == -1 && tilesBuffer != null && heading == 0;
+		if (useBuffer) {
+			renderTilesBuffer();
+			canvas.drawBitmap(tilesBuffer, 0, 0, null);
+		} else {
+			tilesBufferValid = false;
+			if (pendingZoom != -1 && tilesBuffer != null && heading == 0) {
+				drawSnapshotStrip(canvas);
+			} else {
+				drawTileLayers(canvas);
+			}
+		}
+		
 		canvas.scale(1, -1);
 		canvas.translate(0, -height);// or -(height-1) ?
-		float scale = 0.5f;
 		
-		PointF ca = mapToScreenAligned(center.x, center.y);
+		PointF ca = mapToScreenAligned(center.x, center.y, centerPx);
 		float compX = alignedCenter.x-ca.x;
 		float compY = alignedCenter.y-ca.y;
-		//Log.i(TAG, "Zoom: "+zoomLevel+" scale: "+zoomPinch+" Compensation: "+compX+", "+compY);
 		
 		canvas.save();
 		canvas.translate(compX, compY);
-		if (showZoomBackground && zoomBackground != null) {
+		if (drawOverlays) {
+			// corners of the layer, the border is drawn as a path to be rotated with the map
+			PointF p = mapToScreenAligned(bbox.minX, bbox.minY, bboxCornerPx);
+			border[0] = p.x;
+			border[1] = p.y;
+			p = mapToScreenAligned(bbox.maxX, bbox.minY, bboxCornerPx);
+			border[2] = p.x;
+			border[3] = p.y;
+			p = mapToScreenAligned(bbox.maxX, bbox.maxY, bboxCornerPx);
+			border[4] = p.x;
+			border[5] = p.y;
+			p = mapToScreenAligned(bbox.minX, bbox.maxY, bboxCornerPx);
+			border[6] = p.x;
+			border[7] = p.y;
+			float maxValue = 5000;
+			for (int i = 0; i < border.length; i++) {
+				if (border[i] > maxValue) {
+					border[i] = maxValue;
+				} else if (border[i] < -maxValue) {
+					border[i] = -maxValue;
+				}
+			}
+			borderPath.rewind();
+			borderPath.moveTo(border[0], border[1]);
+			borderPath.lineTo(border[2], border[3]);
+			borderPath.lineTo(border[4], border[5]);
+			borderPath.lineTo(border[6], border[7]);
+			borderPath.close();
+			canvas.drawPath(borderPath, mapStyle);
+		}
+
+		if (drawOverlays) {
+			for (int i = 0; i < overlays.size(); i++) {
+				overlays.get(i).onDraw(this, canvas, zoomPinch);
+			}
+		}
+		/*
+		// screen border
+		canvas.drawRect(0, 0, width, height, screenBorderStyle2);
+		canvas.drawArc(new RectF(-3, -3, 3, 3), 0, 360, true, screenBorderStyle2);
+		
+		canvas.rotate(heading, width/2f, height/2f);
+		canvas.drawRect(0, 0, width, height, screenBorderStyle);
+		*/
+		canvas.restore();
+		if (drawGraphicalScale) {
+			drawGraphicalScale(canvas);
+		}
+		
+		if (pendingZoom != -1) {
+			boolean useSnapshot = tilesBuffer != null && heading == 0;
+			if (useSnapshot && snapshotStrips < SNAPSHOT_STRIPS) {
+				// the rest of the view shows the same frame
+				frameScheduler.requestRedraw(0, snapshotStrips*height/SNAPSHOT_STRIPS,
+						width, (snapshotStrips+1)*height/SNAPSHOT_STRIPS);
+			} else {
+				applyPendingZoom(useSnapshot);
+				frameScheduler.requestRedraw();
+			}
+		}
+	}
+	
+	/**
+	 * Draws the next strip of the last frame of the zoom into the snapshot and the
+	 * already drawn part of the snapshot to the canvas. The rest of the frame is
+	 * drawn directly, when the canvas isn't clipped to the strip.
+	 */
+	private void drawSnapshotStrip(Canvas canvas) {
+		if (snapshotStrips == 0) {
+			// the one shown as the background now is kept intact
+			snapshot = zoomBackground == tilesBuffer? swapBuffer : tilesBuffer;
+			snapshotCanvas = snapshot == tilesBuffer? tilesBufferCanvas : swapBufferCanvas;
+		}
+		int top = snapshotStrips*height/SNAPSHOT_STRIPS;
+		int bottom = (snapshotStrips+1)*height/SNAPSHOT_STRIPS;
+		snapshotCanvas.save();
+		snapshotCanvas.clipRect(0, top, width, bottom);
+		snapshotCanvas.drawRGB(255, 255, 255);
+		drawTileLayers(snapshotCanvas);
+		snapshotCanvas.restore();
+		snapshotStrips++;
+		
+		snapshotRect.set(0, 0, width, bottom);
+		canvas.drawBitmap(snapshot, snapshotRect, snapshotRect, null);
+		if (bottom < height && !canvas.quickReject(0, bottom, width, height, Canvas.EdgeType.BW)) {
+			canvas.save();
+			canvas.clipRect(0, bottom, width, height);
+			drawTileLayers(canvas);
+			canvas.restore();
+		}
+	}
+	
+	/**
+	 * Draws background of the zoom and tiles, scaled by the current zoom pinch.
+	 */
+	private void drawTileLayers(Canvas canvas) {
+		canvas.save();
+		canvas.scale(1, -1);
+		canvas.translate(0, -height);
+		
+		PointF ca = mapToScreenAligned(center.x, center.y, centerPx);
+		float compX = alignedCenter.x-ca.x;
+		float compY = alignedCenter.y-ca.y;
+		//Log.i(TAG, "Zoom: "+zoomLevel+" scale: "+zoomPinch+" Compensation: "+compX+", "+compY);
+		
+		canvas.translate(compX, compY);
+		if (showZoomBackground && zoomBackground != null && heading == 0) {
 			//Log.i(TAG, "drawing background   zoomPinch: "+zoomPinch);
-			PointF bgAlignedPos = mapToScreenAligned(bgLeftBottom.x, bgLeftBottom.y);
-			PointF rightTop = mapToScreenAligned(bgRightTop.x, bgRightTop.y);
+			PointF bgAlignedPos = mapToScreenAligned(bgLeftBottom.x, bgLeftBottom.y, bgLeftBottomPx);
+			PointF rightTop = mapToScreenAligned(bgRightTop.x, bgRightTop.y, bgRightTopPx);
 			float bgScale = (rightTop.x-bgAlignedPos.x)/(float) width;
 			
 			canvas.save();
@@ -292,20 +534,67 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 			canvas.restore();
 		}
 		
-		canvas.save();
+		canvas.rotate(heading, width/2f, height/2f);
 		canvas.scale(zoomPinch, zoomPinch, width/2f, height/2f);
-		//canvas.rotate(-heading, width/2f, height/2f);
-		
-		long t1 = System.currentTimeMillis();
+		int notAvailableTiles = drawTiles(canvas);
+		if (renderZoom != zoomLevel && zoomPinch != 1f) {
+			drawRenderZoomTiles(canvas);
+		}
+		// tiles are counted only in the drawn strip while the snapshot is drawn
+		if (notAvailableTiles == 0 && showZoomBackground && pendingZoom == -1) {
+			//Log.i(TAG, "Have all tiles");
+			// bitmap of the snapshot stays allocated, it is a part of the back buffer
+			showZoomBackground = false;
+			zoomBackground = null;
+		}
+		canvas.restore();
+	}
+	
+	/**
+	 * Sets the zoom level of the finished zoom animation. Snapshot of the last
+	 * frame becomes the background of the new zoom level, when all its strips
+	 * were drawn.
+	 */
+	private void applyPendingZoom(boolean showSnapshot) {
+		int zoom = pendingZoom;
+		pendingZoom = -1;
+		zoomPinch = 1f;
+		setZoom(zoom);
+		validateMap();
+		screenToMap(0, 0, bgLeftBottom);
+		screenToMap(width, height, bgRightTop);
+		showZoomBackground = showSnapshot && snapshotStrips == SNAPSHOT_STRIPS;
+		zoomBackground = showZoomBackground? snapshot : null;
+		snapshot = null;
+		snapshotCanvas = null;
+		snapshotStrips = 0;
+	}
+
+	/**
+	 * Draws visible tiles which intersect the clip of the canvas.
+	 * 
+	 * @return count of the tiles which aren't loaded yet
+	 */
+	private int drawTiles(Canvas canvas) {
 		//Log.i(TAG, format("bbox=%f, %f, %f, %f center=%f, %f", bbox.minX, bbox.minY, bbox.maxX, bbox.maxY, center.x, center.y));
 		//Log.i(TAG, format("firstTileX=%d firstTileY=%d", firstTileX, firstTileY));
 		// TODO: check that firstTileX/Y and lastTileX/Y aren't too high (when onZoomChange() or something like that
 		// wasn't called)
 		int notAvailableTiles = 0;
-		PointF o = screenToMap(0, 0);
+		Point2D o = screenToMap(0, 0, screenOrigin);
 		if (o.x <= bbox.maxX && o.y <= bbox.maxY) {
 			for (int x = firstVisibleTile.x; x <= lastVisibleTile.x; x++) {
 				for (int y = firstVisibleTile.y; y <= lastVisibleTile.y; y++) {
+					float left = firstTilePositionPx.x+(256*(x-firstVisibleTile.x));
+					float bottom = firstTilePositionPx.y+(y-firstVisibleTile.y)*256;
+					if (x < rowFirstTile[y-firstVisibleTile.y] || x > rowLastTile[y-firstVisibleTile.y]) {
+						// outside of the rotated viewport
+						continue;
+					}
+					if (canvas.quickReject(left, bottom, left+256, bottom+256, Canvas.EdgeType.BW)) {
+						// outside of the repainted area
+						continue;
+					}
 					Tile tile = null;
 					if (zoomPinch == 1f) {
 						tile = tilesManager.getTile(x, y);
@@ -313,8 +602,6 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 						tile = tilesManager.getTile(x, y);
 					}
 					if (tile != null && tile.getImage() != null) {
-						float left = firstTilePositionPx.x+(256*(x-firstVisibleTile.x));
-						float bottom = firstTilePositionPx.y+(y-firstVisibleTile.y)*256;
 						if (showZoomBackground) {
 							canvas.drawRect(left, bottom, left+256, bottom+256, whiteStyle);
 						}
@@ -325,52 +612,235 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 					//} else if (zoomPinch == 1f) {
 					} else {
 						notAvailableTiles++;
+						drawFallbackTile(canvas, x, y, left, bottom);
 					}
 				}
 			}
 		}
-		if (notAvailableTiles == 0 && showZoomBackground) {
-			//Log.i(TAG, "Have all tiles");
-			showZoomBackground = false;
-			// TODO recycle bg or something better 
-			zoomBackground = null;
+		return notAvailableTiles;
+	}
+		
+	/**
+	 * Updates the back buffer with tiles. Content of the previous frame is
+	 * shifted by the movement of the map and only exposed strips and tiles
+	 * loaded since then are repainted.
+	 */
+	private void renderTilesBuffer() {
+		int tileSizeX = tmsLayer.getTileWidth();
+		int tileSizeY = tmsLayer.getTileHeight();
+		// screen position of the first tile of the layer
+		int gridX = Math.round(firstTilePositionPx.x) - firstVisibleTile.x*tileSizeX;
+		int gridY = Math.round(firstTilePositionPx.y) - firstVisibleTile.y*tileSizeY;
+		// rows of the buffer go down, the map y axis goes up
+		int shiftX = gridX - bufferGridX;
+		int shiftY = bufferGridY - gridY;
+		
+		boolean fullRepaint = !tilesBufferValid || bufferZoom != zoomLevel
+				|| Math.abs(shiftX) >= width || Math.abs(shiftY) >= height;
+		if (fullRepaint) {
+			repaintRegion.set(0, 0, width, height);
+		} else {
+			repaintRegion.setEmpty();
+			if (shiftX != 0 || shiftY != 0) {
+				swapBufferCanvas.drawBitmap(tilesBuffer, shiftX, shiftY, null);
+				Bitmap bitmap = tilesBuffer;
+				tilesBuffer = swapBuffer;
+				swapBuffer = bitmap;
+				Canvas bufferCanvas = tilesBufferCanvas;
+				tilesBufferCanvas = swapBufferCanvas;
+				swapBufferCanvas = bufferCanvas;
+				
+				if (shiftX > 0) {
+					repaintRegion.op(0, 0, shiftX, height, Region.Op.UNION);
+				} else if (shiftX < 0) {
+					repaintRegion.op(width+shiftX, 0, width, height, Region.Op.UNION);
+				}
+				if (shiftY > 0) {
+					repaintRegion.op(0, 0, width, shiftY, Region.Op.UNION);
+				} else if (shiftY < 0) {
+					repaintRegion.op(0, height+shiftY, width, height, Region.Op.UNION);
+				}
+			}
+			for (int i = 0; i < dirtyTiles.size(); i++) {
+				Tile tile = dirtyTiles.get(i);
+				if (tile.getZoomLevel() == zoomLevel) {
+					int left = gridX + tile.getX()*tileSizeX;
+					int top = height - (gridY + (tile.getY()+1)*tileSizeY);
+					repaintRegion.op(left, top, left+tileSizeX, top+tileSizeY, Region.Op.UNION);
+				}
+			}
+		}
+		dirtyTiles.clear();
+		tilesBufferValid = true;
+		bufferZoom = zoomLevel;
+		bufferGridX = gridX;
+		bufferGridY = gridY;
+		if (repaintRegion.isEmpty()) {
+			return;
 		}
 		
+		Canvas canvas = tilesBufferCanvas;
+		canvas.save();
+		canvas.clipRegion(repaintRegion, Region.Op.REPLACE);
+		canvas.drawRGB(255, 255, 255);
+		canvas.scale(1, -1);
+		canvas.translate(0, -height);
+		int notAvailableTiles = drawTiles(canvas);
 		canvas.restore();
-		if (drawOverlays) {
-			PointF startP = mapToScreenAligned(bbox.minX, bbox.minY);
-			PointF endP = mapToScreenAligned(bbox.maxX, bbox.maxY);
-			float[] border = {startP.x, startP.y, endP.x, endP.y};
-			float maxValue = 5000;
-			for (int i = 0; i < 4; i++) {
-				if (border[i] > maxValue) {
-					border[i] = maxValue;
-				} else if (border[i] < -maxValue) {
-					border[i] = -maxValue;
-				}
+		if (fullRepaint) {
+			bufferHasMissingTiles = notAvailableTiles > 0;
+		} else if (notAvailableTiles > 0) {
+			bufferHasMissingTiles = true;
+		}
+	}
+
+	private void releaseTilesBuffer() {
+		tilesBufferValid = false;
+		snapshot = null;
+		snapshotCanvas = null;
+		snapshotStrips = 0;
+		if (tilesBuffer != null) {
+			tilesBuffer.recycle();
+			swapBuffer.recycle();
+			tilesBuffer = null;
+			swapBuffer = null;
+			tilesBufferCanvas = null;
+			swapBufferCanvas = null;
+		}
+	}
+		
+	/**
+	 * Invalidates only the screen area of the loaded tile, when possible.
+	 */
+	private void invalidateTile(Tile tile) {
+		if (!tilesBufferValid) {
+			frameScheduler.requestRedraw();
+			return;
+		}
+		if (tile.getZoomLevel() != zoomLevel) {
+			if (bufferHasMissingTiles) {
+				// tile of other zoom level may be drawn instead of a missing tile
+				tilesBufferValid = false;
+				frameScheduler.requestRedraw();
 			}
-			canvas.drawRect(border[0], border[1], border[2], border[3], mapStyle);
+			return;
 		}
+		dirtyTiles.add(tile);
+		int left = bufferGridX + tile.getX()*tmsLayer.getTileWidth();
+		int top = height - (bufferGridY + (tile.getY()+1)*tmsLayer.getTileHeight());
+		frameScheduler.requestRedraw(left, top, left+tmsLayer.getTileWidth(), top+tmsLayer.getTileHeight());
+	}
 
-		if (drawOverlays) {
-			for (Overlay overlay : overlays) {
-				overlay.onDraw(this, canvas, zoomPinch);
+	/**
+	 * Draws loaded tiles of the zoom level closest to the pinched resolution,
+	 * each one scaled to the pixels of the current zoom level. Missing tiles are
+	 * requested and the scaled tiles of the current zoom level stay visible under
+	 * them, so the loading of the new level starts before the pinch ends.
+	 */
+	private void drawRenderZoomTiles(Canvas canvas) {
+		double[] resolutions = tmsLayer.getResolutions();
+		double renderTileWidth = tmsLayer.getTileWidth() * resolutions[renderZoom];
+		double renderTileHeight = tmsLayer.getTileHeight() * resolutions[renderZoom];
+		float sizeX = (float) (renderTileWidth / resolutions[zoomLevel]);
+		float sizeY = (float) (renderTileHeight / resolutions[zoomLevel]);
+		for (int x = renderZoomTiles.left; x <= renderZoomTiles.right; x++) {
+			for (int y = renderZoomTiles.top; y <= renderZoomTiles.bottom; y++) {
+				int row = y - renderZoomTiles.top;
+				if (x < renderRowFirstTile[row] || x > renderRowLastTile[row]) {
+					continue;
+				}
+				float left = firstTilePositionPx.x + (float) ((bbox.minX + x*renderTileWidth - firstTilePosition.x) / resolutions[zoomLevel]);
+				float bottom = firstTilePositionPx.y + (float) ((bbox.minY + y*renderTileHeight - firstTilePosition.y) / resolutions[zoomLevel]);
+				if (canvas.quickReject(left, bottom, left+sizeX, bottom+sizeY, Canvas.EdgeType.BW)) {
+					continue;
+				}
+				Tile tile = tilesManager.getTile(x, y, renderZoom);
+				if (tile != null && tile.getImage() != null) {
+					fallbackDst.set(left, bottom, left+sizeX, bottom+sizeY);
+					canvas.save();
+					canvas.scale(1, -1, left, bottom+sizeY/2f);
+					canvas.drawBitmap(tile.getImage(), null, fallbackDst, imagesStyle);
+					canvas.restore();
+				}
 			}
 		}
-		/*
-		// screen border
-		canvas.drawRect(0, 0, width, height, screenBorderStyle2);
-		canvas.drawArc(new RectF(-3, -3, 3, 3), 0, 360, true, screenBorderStyle2);
+	}
+	
+	/**
+	 * Draws the area of a missing tile from the nearest cached tile of a lower
+	 * zoom level, scaled up, or from the cached tiles of the next zoom level,
+	 * scaled down.
+	 */
+	private void drawFallbackTile(Canvas canvas, int x, int y, float left, float bottom) {
+		double[] resolutions = tmsLayer.getResolutions();
+		int tileSizeX = tmsLayer.getTileWidth();
+		int tileSizeY = tmsLayer.getTileHeight();
+		// position of the tile relative to the origin of the layer in map units
+		double tileMinX = x * tileWidth;
+		double tileMinY = y * tileHeight;
 		
-		canvas.rotate(heading, width/2f, height/2f);
-		canvas.drawRect(0, 0, width, height, screenBorderStyle);
-		*/
-		canvas.restore();
-		if (drawGraphicalScale) {
-			drawGraphicalScale(canvas);
+		for (int zoom = zoomLevel-1; zoom >= 0 && zoom >= zoomLevel-MAX_ANCESTOR_LEVELS; zoom--) {
+			double ancestorWidth = tileSizeX * resolutions[zoom];
+			double ancestorHeight = tileSizeY * resolutions[zoom];
+			int ancestorX = (int) Math.floor((tileMinX + tileWidth/2) / ancestorWidth);
+			int ancestorY = (int) Math.floor((tileMinY + tileHeight/2) / ancestorHeight);
+			Tile ancestor = tilesManager.getCachedTile(ancestorX, ancestorY, zoom);
+			if (ancestor != null && ancestor.getImage() != null) {
+				float srcLeft = (float) ((tileMinX - ancestorX*ancestorWidth) / resolutions[zoom]);
+				float srcBottom = (float) ((tileMinY - ancestorY*ancestorHeight) / resolutions[zoom]);
+				float srcWidth = (float) (tileWidth / resolutions[zoom]);
+				float srcHeight = (float) (tileHeight / resolutions[zoom]);
+				// rows of the bitmap go from the top of the tile
+				fallbackSrc.set(Math.round(srcLeft), Math.round(tileSizeY-srcBottom-srcHeight),
+						Math.round(srcLeft+srcWidth), Math.round(tileSizeY-srcBottom));
+				fallbackDst.set(left, bottom, left+tileSizeX, bottom+tileSizeY);
+				canvas.save();
+				canvas.scale(1, -1, left, bottom+tileSizeY/2f);
+				canvas.drawBitmap(ancestor.getImage(), fallbackSrc, fallbackDst, imagesStyle);
+				canvas.restore();
+				return;
+			}
+		}
+		
+		int childZoom = zoomLevel+1;
+		if (!drawChildTiles || childZoom >= resolutions.length) {
+			return;
+		}
+		double childWidth = tileSizeX * resolutions[childZoom];
+		double childHeight = tileSizeY * resolutions[childZoom];
+		int firstX = (int) Math.floor(tileMinX / childWidth);
+		int firstY = (int) Math.floor(tileMinY / childHeight);
+		int lastX = (int) Math.ceil((tileMinX + tileWidth) / childWidth) - 1;
+		int lastY = (int) Math.ceil((tileMinY + tileHeight) / childHeight) - 1;
+		float childSizeX = (float) (childWidth / getResolution());
+		float childSizeY = (float) (childHeight / getResolution());
+		canvas.save();
+		canvas.clipRect(left, bottom, left+tileSizeX, bottom+tileSizeY);
+		for (int cx = firstX; cx <= lastX; cx++) {
+			for (int cy = firstY; cy <= lastY; cy++) {
+				Tile child = tilesManager.getCachedTile(cx, cy, childZoom);
+				if (child != null && child.getImage() != null) {
+					float childLeft = left + (float) ((cx*childWidth - tileMinX) / getResolution());
+					float childBottom = bottom + (float) ((cy*childHeight - tileMinY) / getResolution());
+					fallbackDst.set(childLeft, childBottom, childLeft+childSizeX, childBottom+childSizeY);
+					canvas.save();
+					canvas.scale(1, -1, childLeft, childBottom+childSizeY/2f);
+					canvas.drawBitmap(child.getImage(), null, fallbackDst, imagesStyle);
+					canvas.restore();
+				}
+			}
 		}
+		canvas.restore();
 	}
-
+	
+	/**
+	 * Enables drawing of the tiles from the next zoom level, scaled down, instead
+	 * of the missing tiles (enabled by default).
+	 */
+	public void setDrawChildTiles(boolean enabled) {
+		drawChildTiles = enabled;
+	}
+	
 	private void drawGraphicalScale(Canvas canvas) {
 		canvas.save();
 		canvas.translate(0, height-24);
@@ -387,70 +857,205 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	}
 	
 	private void validateMap() {
-		Point s = getTileAtScreen(0, 0);
-		Point e = getTileAtScreen(width, height);
+		updateViewport();
+		Point s = tmsLayer.getTileAt(viewportMin.x, viewportMin.y, zoomLevel, firstScreenTile);
+		Point e = tmsLayer.getTileAt(viewportMax.x, viewportMax.y, zoomLevel, lastScreenTile);
 		
 		firstVisibleTile.x = s.x > 0 ? s.x : 0;
 		firstVisibleTile.y = s.y > 0 ? s.y : 0;
 		
 		//Log.i(TAG, format("left-top tile: [%d, %d] right-bottom tile: [%d, %d]", s.x, s.y, e.x, e.y));
-		lastVisibleTile.x = (int) ((bbox.maxX - bbox.minX) / tileWidth);
-		lastVisibleTile.y = (int) ((bbox.maxY - bbox.minY) / tileHeight);
-
-		lastVisibleTile.x = e.x < lastVisibleTile.x ? e.x : lastVisibleTile.x;
-		lastVisibleTile.y = e.y < lastVisibleTile.y ? e.y : lastVisibleTile.y;
+		Point max = tmsLayer.getLastTile(zoomLevel, lastLayerTile);
+		lastVisibleTile.x = e.x < max.x ? e.x : max.x;
+		lastVisibleTile.y = e.y < max.y ? e.y : max.y;
+		
+		int rows = Math.max(lastVisibleTile.y - firstVisibleTile.y + 1, 0);
+		if (rowFirstTile.length < rows) {
+			rowFirstTile = new int[rows];
+			rowLastTile = new int[rows];
+		}
+		visibleTiles.set(firstVisibleTile.x, firstVisibleTile.y, lastVisibleTile.x, lastVisibleTile.y);
+		computeRowSpans(zoomLevel, visibleTiles, rowFirstTile, rowLastTile);
 		
 		firstTilePosition.x = bbox.minX + tileWidth * firstVisibleTile.x;
 		firstTilePosition.y = bbox.minY + tileHeight * firstVisibleTile.y;
-		PointF p = mapToScreen(firstTilePosition.x, firstTilePosition.y);
+		PointF p = mapToScreen(firstTilePosition.x, firstTilePosition.y, firstTilePositionPx);
 		firstTilePositionPx.x = Math.round(p.x);
 		firstTilePositionPx.y = Math.round(p.y);
-		if (alignedCenter == null) {
-			alignedCenter = mapToScreenAligned(center.x, center.y);
+		if (!alignedCenterValid) {
+			mapToScreenAligned(center.x, center.y, alignedCenter);
+			alignedCenterValid = true;
 		}
+		tilesManager.updateCenter();
+		updatePrefetch();
 	}
 	
-	private Point getTileAtScreen(int x, int y) {
-		assert x <= width && y <= height : "point outside the screen";
-		PointF mapPos = screenToMap(x, y);
-		//float tileX = (mapPos.x - bbox.minX) / tileWidth;
-		//float tileY = (mapPos.y - bbox.minY) / tileHeight;
-		//return new Point((int) Math.floor(tileX), (int) Math.floor(tileY));
-		return tmsLayer.getTileAt(mapPos, zoomLevel);
+	/**
+	 * Computes corners of the viewport in map units. When the map is rotated,
+	 * the bounding box of the corners is larger than the viewport, so only
+	 * the tiles within the row spans from computeRowSpans() are visible.
+	 */
+	private void updateViewport() {
+		screenToMap(0, 0, viewport[0]);
+		screenToMap(width, 0, viewport[1]);
+		screenToMap(width, height, viewport[2]);
+		screenToMap(0, height, viewport[3]);
+		viewportMin.x = viewportMax.x = viewport[0].x;
+		viewportMin.y = viewportMax.y = viewport[0].y;
+		for (int i = 1; i < viewport.length; i++) {
+			viewportMin.x = Math.min(viewportMin.x, viewport[i].x);
+			viewportMin.y = Math.min(viewportMin.y, viewport[i].y);
+			viewportMax.x = Math.max(viewportMax.x, viewport[i].x);
+			viewportMax.y = Math.max(viewportMax.y, viewport[i].y);
+		}
+	}
+	
+	/**
+	 * Stores the first and the last tile of each row of the range, which intersect
+	 * the (rotated) viewport.
+	 */
+	private void computeRowSpans(int zoom, Rect range, int[] first, int[] last) {
+		if (heading == 0) {
+			int rows = range.bottom - range.top + 1;
+			for (int row = 0; row < rows; row++) {
+				first[row] = range.left;
+				last[row] = range.right;
+			}
+			return;
+		}
+		tmsLayer.getRowSpans(zoom, viewport, range, first, last);
+	}
+	
+	private void updatePrefetch() {
+		Point max = tmsLayer.getLastTile(zoomLevel, lastLayerTile);
+		int maxTileX = max.x;
+		int maxTileY = max.y;
+		Rect prefetchedTiles = visibleTiles;
+		if (heading != 0) {
+			// the heading changes continuously, so tiles which can be exposed by further
+			// rotation (within the diagonal of the screen) are prefetched
+			double radius = size / 2.0 * tmsLayer.getResolutions()[zoomLevel] / zoomPinch;
+			Point first = tmsLayer.getTileAt(center.x-radius, center.y-radius, zoomLevel, firstScreenTile);
+			Point last = tmsLayer.getTileAt(center.x+radius, center.y+radius, zoomLevel, lastScreenTile);
+			rotationTiles.set(Math.max(first.x, 0), Math.max(first.y, 0),
+					Math.min(last.x, maxTileX), Math.min(last.y, maxTileY));
+			prefetchedTiles = rotationTiles;
+		}
+		prefetcher.update(zoomLevel, prefetchedTiles, maxTileX, maxTileY,
+				(float) (mapEventsGenerator.getVelocityX() / tileWidth),
+				(float) (mapEventsGenerator.getVelocityY() / tileHeight));
+		keptTiles.set(prefetcher.getRange());
+		keptTiles.inset(-CANCEL_MARGIN, -CANCEL_MARGIN);
+		tilesManager.cancelInvisible(zoomLevel, keptTiles);
+		
+		double[] resolutions = tmsLayer.getResolutions();
+		renderZoom = zoomPinch != 1f? getClosestZoomLevel(zoomPinch) : zoomLevel;
+		if (renderZoom != zoomLevel) {
+			Point first = tmsLayer.getTileAt(viewportMin.x, viewportMin.y, renderZoom, firstScreenTile);
+			Point last = tmsLayer.getTileAt(viewportMax.x, viewportMax.y, renderZoom, lastScreenTile);
+			max = tmsLayer.getLastTile(renderZoom, lastLayerTile);
+			renderZoomTiles.set(Math.max(first.x, 0), Math.max(first.y, 0),
+					Math.min(last.x, max.x), Math.min(last.y, max.y));
+			int rows = Math.max(renderZoomTiles.bottom - renderZoomTiles.top + 1, 0);
+			if (renderRowFirstTile.length < rows) {
+				renderRowFirstTile = new int[rows];
+				renderRowLastTile = new int[rows];
+			}
+			computeRowSpans(renderZoom, renderZoomTiles, renderRowFirstTile, renderRowLastTile);
+			keptTiles.set(renderZoomTiles);
+			keptTiles.inset(-CANCEL_MARGIN, -CANCEL_MARGIN);
+			tilesManager.cancelInvisible(renderZoom, keptTiles);
+		}
+		
+		Point2D pinchCenter = mapEventsGenerator.getPinchCenter();
+		int target = zoomPinch > 1f? renderZoom+1 : renderZoom-1;
+		if (pinchCenter != null && zoomPinch != 1f && target >= 0 && target < resolutions.length) {
+			// area around the pinch center which would be visible at the next zoom level
+			double halfWidth = width / 2.0 * resolutions[target];
+			double halfHeight = height / 2.0 * resolutions[target];
+			Point first = tmsLayer.getTileAt(pinchCenter.x-halfWidth, pinchCenter.y-halfHeight, target, firstScreenTile);
+			Point last = tmsLayer.getTileAt(pinchCenter.x+halfWidth, pinchCenter.y+halfHeight, target, lastScreenTile);
+			max = tmsLayer.getLastTile(target, lastLayerTile);
+			zoomTargetTiles.set(Math.max(first.x, 0), Math.max(first.y, 0),
+					Math.min(last.x, max.x), Math.min(last.y, max.y));
+			prefetcher.updateZoomTarget(target, zoomTargetTiles);
+		} else if (zoomPinch == 1f) {
+			prefetcher.updateZoomTarget(-1, null);
+		}
+	}
+	
+	/**
+	 * Sets width of the ring of tiles loaded around the visible area in advance.
+	 */
+	public void setPrefetchRingSize(int ringSize) {
+		prefetcher.setRingSize(ringSize);
+	}
+	
+	private void updatePinchMatrix() {
+		if (matrixZoomPinch == zoomPinch && matrixHeading == heading
+				&& matrixWidth == width && matrixHeight == height) {
+			return;
+		}
+		pinchMatrix.setScale(zoomPinch, zoomPinch, width/2f, height/2f);
+		if (heading != 0) {
+			pinchMatrix.postRotate(heading, width/2f, height/2f);
+			pinchMatrix.invert(inversePinchMatrix);
+		} else {
+			inversePinchMatrix.setScale(1f/zoomPinch, 1f/zoomPinch, width/2f, height/2f);
+		}
+		matrixZoomPinch = zoomPinch;
+		matrixHeading = heading;
+		matrixWidth = width;
+		matrixHeight = height;
 	}
 
-	public final PointF screenToMap(float x, float y) {
-		Matrix m = new Matrix();
-		//m.postRotate(heading, width/2f, height/2f);
-		m.postScale(1f/zoomPinch, 1f/zoomPinch, width/2f, height/2f);
-		float[] pos = new float[] {x, y};
-		m.mapPoints(pos);
-		float offsetX = pos[0] - width / 2f;
-		float offsetY = pos[1] - height / 2f;
+	public final Point2D screenToMap(float x, float y) {
+		return screenToMap(x, y, new Point2D());
+	}
+	
+	public final Point2D screenToMap(float x, float y, Point2D out) {
+		updatePinchMatrix();
+		transformedPoint[0] = x;
+		transformedPoint[1] = y;
+		inversePinchMatrix.mapPoints(transformedPoint);
+		float offsetX = transformedPoint[0] - width / 2f;
+		float offsetY = transformedPoint[1] - height / 2f;
 		
 		//float offsetX = x - width / 2f;
 		//float offsetY = y - height / 2f;
-		return new PointF(center.x + offsetX * getResolution(), center.y + offsetY
-				* getResolution());
+		double resolution = tmsLayer.getResolutions()[zoomLevel];
+		out.x = center.x + offsetX * resolution;
+		out.y = center.y + offsetY * resolution;
+		return out;
 	}
 
-	public final PointF mapToScreen(float x, float y) {
-		float offsetX = x - center.x;
-		float offsetY = y - center.y;
-		return new PointF(width / 2f + offsetX / getResolution(), height / 2f + offsetY
-				/ getResolution());
+	public final PointF mapToScreen(double x, double y) {
+		return mapToScreen(x, y, new PointF());
+	}
+	
+	public final PointF mapToScreen(double x, double y, PointF out) {
+		double resolution = tmsLayer.getResolutions()[zoomLevel];
+		// only the offset in pixels is converted to float
+		float offsetX = (float) ((x - center.x) / resolution);
+		float offsetY = (float) ((y - center.y) / resolution);
+		out.set(width / 2f + offsetX, height / 2f + offsetY);
+		return out;
 	}
 
-	public final PointF mapToScreenAligned(float x, float y) {
-		float positionOffsetX = x - firstTilePosition.x;
-		float positionOffsetY = y - firstTilePosition.y;
-		float tx = firstTilePositionPx.x+positionOffsetX/getResolution();
-		float ty = firstTilePositionPx.y+positionOffsetY/getResolution();
-		Matrix m = new Matrix();
-		m.postScale(zoomPinch, zoomPinch, width/2f, height/2f);
-		float[] pos = new float[] {tx, ty};
-		m.mapPoints(pos);
-		return new PointF(pos[0], pos[1]);
+	public final PointF mapToScreenAligned(double x, double y) {
+		return mapToScreenAligned(x, y, new PointF());
+	}
+	
+	public final PointF mapToScreenAligned(double x, double y, PointF out) {
+		double resolution = tmsLayer.getResolutions()[zoomLevel];
+		float positionOffsetX = (float) ((x - firstTilePosition.x) / resolution);
+		float positionOffsetY = (float) ((y - firstTilePosition.y) / resolution);
+		updatePinchMatrix();
+		transformedPoint[0] = firstTilePositionPx.x+positionOffsetX;
+		transformedPoint[1] = firstTilePositionPx.y+positionOffsetY;
+		pinchMatrix.mapPoints(transformedPoint);
+		out.set(transformedPoint[0], transformedPoint[1]);
+		return out;
 	}
 	
 	public final float getResolution() {
@@ -460,16 +1065,7 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	@Override
 	public void onTileLoad(Tile tile) {
 		//Log.i(TAG, "onTileLoad: "+tile);
-		cerateNewBg = true;
-		if (! isPeriodicallyRedrawing) {
-			post(new Runnable() {
-				
-				@Override
-				public void run() {
-					invalidate();
-				}
-			});
-		}
+		invalidateTile(tile);
 	}
 
 	@Override
@@ -497,8 +1093,7 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		int closestZoomLevel = getClosestZoomLevel(zoomPinch);
 		ZoomAnimation animation = new ZoomAnimation(closestZoomLevel);
 		animation.setDuration(300);
-		animation.setFramesCount(5);
-		animation.setView(this);
+		animation.setFrameScheduler(frameScheduler);
 		animation.start();
 	}
 	
@@ -509,7 +1104,12 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	@Override
 	public void setHeading(int heading) {
 		this.heading = heading;
-		invalidate();
+		frameScheduler.requestRedraw();
+	}
+
+	@Override
+	public int getHeading() {
+		return heading;
 	}
 
 	@Override
@@ -527,8 +1127,10 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	}
 
 	@Override
-	public void moveToLocation(final float x, final float y) {
-		int screenDistance = (int) (Utils.distance(x, y, center.x, center.y)/getResolution());
+	public void moveToLocation(final double x, final double y) {
+		double dx = x - center.x;
+		double dy = y - center.y;
+		int screenDistance = (int) (Math.sqrt(dx*dx + dy*dy)/getResolution());
 		//Log.i(TAG, "distance: "+screenDistance+" px");
 		int maxAnimDistance = 2 * (int) Math.sqrt(width*width+height*height);
 		
@@ -536,29 +1138,35 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 			float fraction = (screenDistance/(float) maxAnimDistance);
 			MoveAnimation animation = new MoveAnimation(x, y);
 			animation.setDuration(100+(int) (500*fraction));
-			animation.setFramesCount(2+(int)(10*fraction));
-			animation.setView(this);
+			animation.setFrameScheduler(frameScheduler);
 			animation.start();
 		} else {
 			setCenter(x, y);
-			invalidate();
+			frameScheduler.requestRedraw();
 		}
 	}
 	
-	private void moveAndZoom(final float x, final float y, final int zoom) {
+	private void moveAndZoom(final double x, final double y, final int zoom) {
 		MoveAnimation moveAnim = new MoveAnimation(x, y);
 		ZoomAnimation zoomAnim = new ZoomAnimation(zoom);
-		CompositeAnimation animation = new CompositeAnimation(350, 6);
+		CompositeAnimation animation = new CompositeAnimation(350);
 		animation.addAnimation(moveAnim);
 		animation.addAnimation(zoomAnim);
 		
-		animation.setView(this);
+		animation.setFrameScheduler(frameScheduler);
 		animation.start();
 	}
 
 	@Override
 	public void redraw() {
-		invalidate();
+		frameScheduler.requestRedraw();
+	}
+	
+	/**
+	 * @return scheduler of the frames with the frame time statistics
+	 */
+	public FrameScheduler getFrameScheduler() {
+		return frameScheduler;
 	}
 
 	@Override
@@ -568,24 +1176,31 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 	
 
 	@Override
-	public void onTapStart(float x, float y) {
+	public void onTapStart(double x, double y) {
 		Log.i(TAG, "Clicked at: "+x+", "+y);
-		startPeriodicalRedrawing();
 	}
 
 	public void onTapEnd() {
-		stopPeriodicalRedrawing();
-		invalidate();
+		frameScheduler.requestRedraw();
 	}
 	
 	@Override
-	public void onMove(float x, float y) {
+	public void onMove(double x, double y) {
+		if (pendingZoom != -1) {
+			// strips of the snapshot wouldn't match
+			applyPendingZoom(false);
+		}
 		setCenter(x, y);
+		frameScheduler.requestRedraw();
 	}
 
 	@Override
 	public void onZoom(float zoom) {
+		if (pendingZoom != -1) {
+			applyPendingZoom(false);
+		}
 		zoomPinch = zoom;
+		frameScheduler.requestRedraw();
 	}
 	
 	@Override
@@ -595,46 +1210,19 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 
 	@Override
 	public void onDoubleTap(float x, float y) {
-		PointF pos = screenToMap(x, y);
+		Point2D pos = screenToMap(x, y);
 		int newZoom = zoomLevel + 1 < tmsLayer.getResolutions().length? zoomLevel + 1 : zoomLevel;
 		moveAndZoom(pos.x , pos.y, newZoom);
 	}
 	
-	private final void startPeriodicalRedrawing() {
-		if (isPeriodicallyRedrawing) {
-			throw new IllegalStateException();
-		}
-		isPeriodicallyRedrawing = true;
-		animTimer.schedule(new TimerTask() {
-			
-			@Override
-			public void run() {
-				post(new Runnable() {
-					
-					@Override
-					public void run() {
-						invalidate();
-					}
-				});
-			}
-		}, 40, 80);
-	}
-	
-	private final void stopPeriodicalRedrawing() {
-		isPeriodicallyRedrawing = false;
-		animTimer.cancel();
-		animTimer = new Timer();
-	}
-	
-	
 	class MoveAnimation extends CustomAnimation {
 
-		private float startX;
-		private float startY;
-		private float x;
-		private float y;
+		private double startX;
+		private double startY;
+		private double x;
+		private double y;
 		
-		public MoveAnimation(float x, float y) {
+		public MoveAnimation(double x, double y) {
 			this.x = x;
 			this.y = y;
 			startX = center.x;
@@ -650,8 +1238,6 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		public void onEnd() {}
 	}
 	
-	private boolean cerateNewBg = true;
-	
 	class ZoomAnimation extends CustomAnimation {
 
 		private int zoom;
@@ -659,6 +1245,10 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		private float startZoomPinch;
 		
 		public ZoomAnimation(int zoom) {
+			if (pendingZoom != -1) {
+				// previous zoom hasn't been drawn yet
+				applyPendingZoom(false);
+			}
 			this.zoom = zoom;
 			endZoomPinch = getResolution() / (float) getLayer().getResolutions()[zoom];
 			startZoomPinch = zoomPinch;
@@ -672,30 +1262,10 @@ public class Map extends View implements TileListener, MapView, MapControlListen
 		@Override
 		public void onEnd() {
 			Log.i(TAG, "****  ZOOM END  ****");
-			if (cerateNewBg) {
-				Log.i(TAG, "createBackgroundImage "+width+" x "+height);
-				zoomBackground = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-				Canvas canvas = new Canvas(zoomBackground);
-				
-				showZoomBackground = false;
-				drawOverlays = false;
-				drawGraphicalScale = false;
-				onDraw(canvas);
-				drawOverlays = true;
-				drawGraphicalScale = true;
-				
-				zoomPinch = 1f;
-				setZoom(zoom);
-				validateMap();
-				bgLeftBottom = screenToMap(0, 0);
-				bgRightTop = screenToMap(width, height);
-				
-				cerateNewBg = false;
-			} else {
-				zoomPinch = 1f;
-				setZoom(zoom);
-			}
-			showZoomBackground = true;
+			// zoom level is changed after the last frame is drawn also into the
+			// snapshot used as the background of the new zoom level
+			pendingZoom = zoom;
+			frameScheduler.requestRedraw();
 			zoomAnimation = null;
 		}
 	}
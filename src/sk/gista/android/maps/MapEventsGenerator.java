@@ -1,25 +1,42 @@
 package sk.gista.android.maps;
 
 import sk.gista.android.utils.Utils;
-import android.graphics.PointF;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.jhlabs.geom.Point2D;
+
 public class MapEventsGenerator {
 	
 	private static final String TAG = MapEventsGenerator.class.getSimpleName();
+	private static final float VELOCITY_SMOOTHING = 0.6f;
 	
 	private MapView map;
 	private MapControlListener listener;
 	
-	private PointF dragStartCenter;
-	private PointF dragStartPx;
+	private Point2D dragStartCenter = new Point2D();
+	private float dragStartPxX;
+	private float dragStartPxY;
+	// map position of the last touch event
+	private Point2D touchPosition = new Point2D();
+	// map position of the start of the drag, computed with the current state
+	private Point2D dragStartPosition = new Point2D();
 	
 	private boolean wasZoom;
 	private float startDistance;
 	private long lastTouchTime;
 	
+	// smoothed velocity of the drag in map units per second
+	private float velocityX;
+	private float velocityY;
+	private Point2D lastMovePosition = new Point2D();
+	private long lastMoveTime;
+	
+	// center of the pinch zoom in map coordinates, null when there is no pinch zoom
+	private Point2D pinchCenter;
+	private Point2D pinchCenterPoint = new Point2D();
+	
 	public MapEventsGenerator(MapView map) {
 		this.map = map;
 	}
@@ -46,11 +63,14 @@ public class MapEventsGenerator {
 			case MotionEvent.ACTION_POINTER_DOWN:
 				wasZoom = true;
 				startDistance = Utils.distance(x, y, event.getX(1), height-event.getY(1));
+				pinchCenter = map.screenToMap((x+event.getX(1))/2f, (y+height-event.getY(1))/2f, pinchCenterPoint);
+				resetVelocity();
 				//Log.i(TAG, "2 Fingers, start distance: "+startDistance);
 				break;
 			case MotionEvent.ACTION_POINTER_UP:
 				//Log.i(TAG, "1 Finger");
 				listener.onZoomEnd();
+				pinchCenter = null;
 				break;
 			case MotionEvent.ACTION_DOWN:
 				//Log.i(TAG, "delta: "+(curTime - lastTouchTime));
@@ -59,23 +79,36 @@ public class MapEventsGenerator {
 					listener.onDoubleTap(x, y);
 				} else {
 					//wasZoom = false;
-					dragStartCenter = new PointF(map.getCenter().x, map.getCenter().y);
-					dragStartPx = new PointF(x, y);
-					PointF pos = map.screenToMap(x, y);
+					map.getCenter(dragStartCenter);
+					dragStartPxX = x;
+					dragStartPxY = y;
+					resetVelocity();
+					lastMovePosition.x = dragStartCenter.x;
+					lastMovePosition.y = dragStartCenter.y;
+					lastMoveTime = curTime;
+					Point2D pos = map.screenToMap(x, y, touchPosition);
 					listener.onTapStart(pos.x, pos.y);
 				}
 				
 				break;
 			case MotionEvent.ACTION_UP:
 				wasZoom = false;
+				pinchCenter = null;
+				resetVelocity();
 				lastTouchTime = curTime;
 				listener.onTapEnd();
 				break;
 			case MotionEvent.ACTION_MOVE:
 				//Log.i(TAG, "ACTION_MOVE "+event.getPointerCount());
 				if (!wasZoom && event.getPointerCount() == 1) {
-					float newPosX = dragStartCenter.x+(dragStartPx.x-x)*map.getResolution();
-					float newPosY = dragStartCenter.y+(dragStartPx.y-y)*map.getResolution();
+					// both points are transformed by the currently displayed zoom level,
+					// pinch and heading (not by the target zoom of an animation), so
+					// their difference is the movement of the finger in map units
+					Point2D start = map.screenToMap(dragStartPxX, dragStartPxY, dragStartPosition);
+					Point2D pos = map.screenToMap(x, y, touchPosition);
+					double newPosX = dragStartCenter.x+start.x-pos.x;
+					double newPosY = dragStartCenter.y+start.y-pos.y;
+					updateVelocity(newPosX, newPosY, curTime);
 					listener.onMove(newPosX, newPosY);
 				} else {
 					float distance = Utils.distance(x, y, event.getX(1), height-event.getY(1));
@@ -94,8 +127,49 @@ public class MapEventsGenerator {
 	}
 	
 	
+	private void updateVelocity(double x, double y, long time) {
+		long dt = time - lastMoveTime;
+		if (dt <= 0) {
+			return;
+		}
+		float vx = (float) ((x - lastMovePosition.x) * 1000 / dt);
+		float vy = (float) ((y - lastMovePosition.y) * 1000 / dt);
+		// smoothing of the noisy touch events
+		velocityX = VELOCITY_SMOOTHING * velocityX + (1 - VELOCITY_SMOOTHING) * vx;
+		velocityY = VELOCITY_SMOOTHING * velocityY + (1 - VELOCITY_SMOOTHING) * vy;
+		lastMovePosition.x = x;
+		lastMovePosition.y = y;
+		lastMoveTime = time;
+	}
+	
+	private void resetVelocity() {
+		velocityX = 0;
+		velocityY = 0;
+	}
+	
+	/**
+	 * @return horizontal velocity of the map center during the drag, in map units per second
+	 */
+	public float getVelocityX() {
+		return velocityX;
+	}
+	
+	/**
+	 * @return vertical velocity of the map center during the drag, in map units per second
+	 */
+	public float getVelocityY() {
+		return velocityY;
+	}
+	
+	/**
+	 * @return center of the running pinch zoom in map coordinates, or null
+	 */
+	public Point2D getPinchCenter() {
+		return pinchCenter;
+	}
+	
 	public interface MapControlListener {
-		void onTapStart(float x, float y);
+		void onTapStart(double x, double y);
 		void onTapEnd();
 		void onDoubleTap(float x, float y);
 		/**
@@ -103,7 +177,7 @@ public class MapEventsGenerator {
 		 * @param x map coordinate
 		 * @param y map coordinate
 		 */
-		void onMove(float x, float y);
+		void onMove(double x, double y);
 		void onZoom(float zoom);
 		void onZoomEnd();
 	}
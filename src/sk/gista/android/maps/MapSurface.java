@@ -2,627 +2,1033 @@ package sk.gista.android.maps;
 
 import static java.lang.String.format;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
 
 import com.jhlabs.geom.Point2D;
-import com.jhlabs.map.proj.Projection;
-import com.jhlabs.map.proj.ProjectionFactory;
 
 import sk.gista.android.maps.Layer.Tile;
 import sk.gista.android.maps.Layer.TileListener;
+import sk.gista.android.maps.MapEventsGenerator.MapControlListener;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
-public class MapSurface extends SurfaceView implements SurfaceHolder.Callback, MapView {
+/**
+ * Map drawn on its own render thread, so the tiles composition and overlays
+ * drawing isn't stalled by the work of the UI thread (layout, dialogs).
+ * <p>
+ * The render thread owns the state used for drawing. Touch input, tile arrivals
+ * and changes of the view are passed to it as commands through a lock-free queue,
+ * and the thread sleeps until a command arrives or an animation needs the next
+ * frame. Center, zoom level and heading are published back in an immutable snapshot,
+ * which is read by the getters and transformations called from the UI thread.
+ * Overlays are drawn on the render thread.
+ * <p>
+ * Loaded tiles are delivered as commands too, so the memory cache is modified
+ * only between frames and bitmaps of the evicted tiles are never returned to
+ * the pool (and reused or recycled) while a frame is being drawn.
+ */
+public class MapSurface extends SurfaceView implements SurfaceHolder.Callback, MapView, TileListener,
+		MapControlListener {
 
 	private static final String TAG = MapSurface.class.getName();
 	
-	private MapThread mapThread;
+	// minimal interval between animation frames in milliseconds (60 Hz)
+	private static final long FRAME_INTERVAL = 16;
 	
-	public MapSurface(Context context, BBox bbox, double resolutions[], TmsLayer layer) {
-		super(context);
-		getHolder().addCallback(this);
-		mapThread = new MapThread(getHolder(), this, bbox, resolutions, layer);
-	}
+	// how many lower zoom levels are searched for a tile to draw instead of the missing one
+	private static final int MAX_ANCESTOR_LEVELS = 4;
 
-	@Override
-	public void surfaceCreated(SurfaceHolder holder) {
-		Log.i(TAG, "surfaceCreated");
-		mapThread.setRunning(true);
-		mapThread.start();
-	}
+	// commands executed by the render thread before the next frame
+	private ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+	private volatile RenderThread renderThread;
+	private Handler handler;
+	private Executor commandExecutor = new Executor() {
+		
+		@Override
+		public void execute(Runnable command) {
+			postCommand(command);
+		}
+	};
 
-	@Override
-	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-		mapThread.onSizeChanged(width, height, -1, -1);
-	}
+	private MapEventsGenerator mapEventsGenerator;
+	private MapListener mapListener;
+	private List<Overlay> overlays = new CopyOnWriteArrayList<Overlay>();
 	
-	@Override
-	public boolean onTouchEvent(MotionEvent event) {
-		//Log.i(TAG, "somebody touched me!");
-		return mapThread.onTouchEvent(event);
+	// state shared with the UI thread
+	private volatile TmsLayer tmsLayer;
+	private volatile ViewState viewState = new ViewState(new Point2D(), 1, 1f, 0);
+	private volatile int targetZoom = 1;
+	
+	// state of the render thread
+	private TilesManager tilesManager;
+	private TilePrefetcher prefetcher;
+	private BBox bbox;
+	private double centerX;
+	private double centerY;
+	private int zoomLevel = 1;
+	private float zoomPinch = 1f;
+	private int heading;
+	private int width;
+	private int height;
+	// size of a tile in map units
+	private double tileWidth;
+	private double tileHeight;
+	private float velocityX;
+	private float velocityY;
+	private RenderAnimation moveAnimation;
+	private RenderAnimation zoomAnimation;
+	
+	// positions of the first visible tile on the map and on the screen, other
+	// positions are computed as offsets from it
+	private Point2D firstTilePosition = new Point2D();
+	private PointF firstTilePositionPx = new PointF();
+	private Point firstVisibleTile = new Point();
+	private Point lastVisibleTile = new Point();
+	private Point lastLayerTile = new Point();
+	private Rect visibleTiles = new Rect();
+	private Rect rotationTiles = new Rect();
+	private Rect keptTiles = new Rect();
+	// tiles in this distance around the prefetched area aren't cancelled
+	private static final int CANCEL_MARGIN = 1;
+	
+	// corners of the (rotated) viewport in map units
+	private Point2D[] viewport = {new Point2D(), new Point2D(), new Point2D(), new Point2D()};
+	// range of the tiles in each row of the visible tiles, which intersect the viewport
+	private int[] rowFirstTile = new int[0];
+	private int[] rowLastTile = new int[0];
+	
+	// preallocated objects used by the render thread, the matrix scales by the
+	// zoom pinch and rotates by the heading around the center of the screen
+	private Matrix pinchMatrix = new Matrix();
+	private Matrix inversePinchMatrix = new Matrix();
+	private float[] transformedPoint = new float[2];
+	private Point firstScreenTile = new Point();
+	private Point lastScreenTile = new Point();
+	private Rect fallbackSrc = new Rect();
+	private RectF fallbackDst = new RectF();
+	
+	// drawing styles
+	private Paint imagesStyle;
+	private Paint mapStyle;
+	
+	// statistics of the render thread
+	private volatile int framesCount;
+	private volatile int droppedFramesCount;
+	private volatile long totalFrameTime;
+	private volatile long maxFrameTime;
+	
+	private static final Runnable REDRAW = new Runnable() {
+	
+		@Override
+		public void run() {}
+	};
+	
+	public MapSurface(Context context) {
+		super(context);
+		postInit();
 	}
 	
-	public int getZoom() {
-		return mapThread.getZoomLevel();
+	public MapSurface(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		postInit();
 	}
 	
-	public PointF getCenter() {
-		throw new UnsupportedOperationException();
+	private void postInit() {
+		getHolder().addCallback(this);
+		handler = new Handler(Looper.getMainLooper());
+		
+		imagesStyle = new Paint();
+		imagesStyle.setFilterBitmap(true);
+		
+		mapStyle = new Paint();
+		mapStyle.setStrokeWidth(2f);
+		mapStyle.setStyle(Paint.Style.STROKE);
+		mapStyle.setColor(Color.argb(255, 0, 0, 0));
+		
+		mapEventsGenerator = new MapEventsGenerator(this);
+		mapEventsGenerator.setMapControlListener(this);
 	}
 	
-	public void setCenter(float x, float y) {
-		throw new UnsupportedOperationException();
+	/**
+	 * Passes the command to the render thread and wakes it up.
+	 */
+	private void postCommand(Runnable command) {
+		commands.offer(command);
+		Thread thread = renderThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
 	}
 	
-	public void recycle() {
-		throw new UnsupportedOperationException();
+	@Override
+	public void surfaceCreated(SurfaceHolder holder) {
+		Log.i(TAG, "surfaceCreated");
+		renderThread = new RenderThread(holder);
+		renderThread.start();
 	}
 	
-	public void setZoom(int zoom) {
-		mapThread.setZoom(zoom);
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, final int width, final int height) {
+		Log.i(TAG, "surfaceChanged: "+width+" x "+height);
+		postCommand(new Runnable() {
+			
+			@Override
+			public void run() {
+				MapSurface.this.width = width;
+				MapSurface.this.height = height;
+			}
+		});
 	}
 	
 	@Override
 	public void surfaceDestroyed(SurfaceHolder holder) {
-		// we have to tell thread to shut down & wait for it to finish, or else
-        // it might touch the Surface after we return and explode
-        boolean retry = true;
-        mapThread.setRunning(false);
-        while (retry) {
-            try {
-            	mapThread.join();
-                retry = false;
-            } catch (InterruptedException e) {
-            }
-        }
-	}
-
-	class MapThread extends Thread implements TileListener {
-	    private SurfaceHolder surfaceHolder;
-	    private MapSurface map;
-	    private boolean run = false;
-	 
-	    
-		private PointF center;
-		private BBox bbox;
-		private double resolutions[];
-		private Projection proj;
-		private int zoom = -1;
-
-		private float tileWidth;
-		private float tileHeight;
-		private int tileWidthPx = 256;
-		private int tileHeightPx = 256;
-
-		// size of map in pixels
-		private int width;
-		private int height;
-
-		private List<Layer> layers = Collections.emptyList();
-		private TmsLayer tmsLayer;
-		private java.util.Map<String, Tile> tiles = new HashMap<String, Tile>();
-		
-		private Paint mapStyle;
-		private Paint tileStyle;
-		private Paint screenBorderStyle;
-		
-		
-	    public MapThread(SurfaceHolder surfaceHolder, MapSurface map, BBox bbox, double resolutions[], TmsLayer layer) {
-	        this.surfaceHolder = surfaceHolder;
-	        this.map = map;
-	        
-			this.tmsLayer = layer;
-			this.bbox = bbox;
-			this.resolutions = resolutions;
-			
-			center = new PointF((bbox.minX + bbox.maxX) / 2f, (bbox.minY + bbox.maxY) / 2f);
-
-			mapStyle = new Paint();
-			mapStyle.setColor(Color.argb(127, 127, 20, 20));
-
-			tileStyle = new Paint();
-			tileStyle.setColor(Color.LTGRAY);
-			tileStyle.setStyle(Paint.Style.STROKE);
-			tileStyle.setTextSize(30);
-			tileStyle.setAntiAlias(true);
-
-			screenBorderStyle = new Paint();
-			screenBorderStyle.setStyle(Paint.Style.STROKE);
-			screenBorderStyle.setStrokeWidth(2f);
-			screenBorderStyle.setAntiAlias(true);
-			screenBorderStyle.setColor(Color.argb(255, 20, 40, 120));
-
-			buildTextTextures();
-			//tmsLayer = new TmsLayer("http://tc.gisplan.sk/1.0.0/", "tmspresov_ortofoto_2009", "jpeg");
-			//tmsLayer = new TmsLayer("http://tc.gisplan.sk/1.0.0/", "tmspresov_gg_ortofoto_2009", "jpeg");
-			//tmsLayer.addTileListener(this);
-			setZoom(1);
-			
-			String[] params = {
-					"+proj=merc",
-					"+a=6378137",
-					"+b=6378137",
-					"+lat_ts=0.0",
-					"+lon_0=0.0",
-					"+x_0=0.0",
-					"+y_0=0",
-					"+k=1.0",
-					"+units=m",
-					"+nadgrids=@null",
-					"+no_defs"
-				};
-			proj = ProjectionFactory.fromPROJ4Specification(params);
-		}
-
-		private Bitmap textBuffer;
-		private float[] numbersWidths;
-
-		private void buildTextTextures() {
-			textBuffer = Bitmap.createBitmap(25, 400, Bitmap.Config.ARGB_8888);
-			Canvas canvas = new Canvas(textBuffer);
-			// FontMetrics fm = new FontMetrics();
-
-			numbersWidths = new float[10];
-			tileStyle.getTextWidths("0123456789", numbersWidths);
-			for (int i = 0; i < 10; i++) {
-				canvas.drawText("" + i, 0, (i+1) * 30, tileStyle);
+		// thread must be stopped before we return, or else it might touch the surface
+		RenderThread thread = renderThread;
+		renderThread = null;
+		thread.running = false;
+		LockSupport.unpark(thread);
+		boolean retry = true;
+		while (retry) {
+			try {
+				thread.join();
+				retry = false;
+			} catch (InterruptedException e) {
 			}
-			canvas.drawText("x=", 0, 340, tileStyle);
-			canvas.drawText("y=", 0, 370, tileStyle);
 		}
+		Log.i(TAG, format("Frames: %d dropped: %d average time: %.1f ms max time: %d ms",
+				getFramesCount(), getDroppedFramesCount(), getAverageFrameTime(), getMaxFrameTime()));
+	}
 
-		public int getZoomLevel() {
-			return zoom;
-		}
-		
-		public void setZoom(int zoom) {
-			if (zoom >= 0) {
-				int oldZoom = this.zoom;
-				this.zoom = zoom;
-				onZoomChange(oldZoom, zoom);
-				//invalidate();
-				redraw();
-			}
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		return mapEventsGenerator.onTouchEvent(event);
+	}
+	 
+	@Override
+	public void setLayer(final TmsLayer layer) {
+		if (tmsLayer == layer) {
+			return;
 		}
-
-		protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-			Log.i(TAG, format("width: %d height: %d", w, h));
-			width = w;
-			height = h;
-			clearTiles();
+		tmsLayer = layer;
+		final TilesManager manager;
+		final TilePrefetcher layerPrefetcher;
+		if (layer != null) {
+			manager = new TilesManager(this);
+			manager.setResultExecutor(commandExecutor);
+			manager.addTileListener(this);
+			layerPrefetcher = new TilePrefetcher(manager);
+			BBox layerBBox = layer.getBoundingBox();
+			int zoom = Math.min(viewState.zoomLevel, layer.getResolutions().length-1);
+			targetZoom = zoom;
+			viewState = new ViewState(new Point2D((layerBBox.minX + layerBBox.maxX) / 2,
+					(layerBBox.minY + layerBBox.maxY) / 2), zoom, 1f, viewState.heading);
+		} else {
+			manager = null;
+			layerPrefetcher = null;
 		}
-
-		protected void onZoomChange(int oldZoom, int zoom) {
-			tileWidth = tileWidthPx * getResolution();
-			tileHeight = tileHeightPx * getResolution();
-			/*
-			RectF tileBbox = new RectF(bbox.minX, bbox.minY, bbox.minX+256*getResolution(), bbox.minY+256*getResolution());
-			Bitmap tile = new WmsLayer().requestTile(tileBbox, 256, 256);
-			if (tile != null) {
-				tiles.add(tile);
+		postCommand(new Runnable() {
+	    
+			@Override
+			public void run() {
+				if (tilesManager != null) {
+					prefetcher.cancel();
+					tilesManager.shutdown();
+				}
+				tilesManager = manager;
+				prefetcher = layerPrefetcher;
+				moveAnimation = null;
+				zoomAnimation = null;
+				zoomPinch = 1f;
+				if (layer != null) {
+					bbox = layer.getBoundingBox();
+					ViewState state = viewState;
+					centerX = state.center.x;
+					centerY = state.center.y;
+					onZoomChange(state.zoomLevel);
+				}
 			}
-			*/
-			clearTiles();
-			redraw();
+		});
+		if (mapListener != null) {
+			mapListener.onLayerChanged(layer);
 		}
+	}
 
-		private void clearTiles() {
-			tiles.clear();
-		}
-		
-		private PointF centerAtDragStart;
-		private PointF dragStart;
+	@Override
+	public TmsLayer getLayer() {
+		return tmsLayer;
+	}
 
-		private PointF lastPos;
-		private PointF dragStartPx;
+	@Override
+	public int getZoom() {
+		return targetZoom;
+	}
 
-		
-		public boolean onTouchEvent(MotionEvent event) {
-			if (event.getPointerCount() == 1) {
-				int action = event.getAction() & MotionEvent.ACTION_MASK;
-				switch (action) {
-				case MotionEvent.ACTION_DOWN:
-					centerAtDragStart = new PointF(center.x, center.y);
-					dragStart = screenToMap(event.getX(), event.getY());
-					dragStartPx = new PointF(event.getX(), event.getY());
-					lastPos = screenToMap(event.getX(), event.getY());
-					break;
-				case MotionEvent.ACTION_MOVE:
-					PointF dragPos2 = screenToMap2(event.getX(), event.getY());
-					center.offset(lastPos.x-dragPos2.x, lastPos.y-dragPos2.y);
-					lastPos = dragPos2;
-					redraw();
-					if (true) break;
-					
-					PointF dragPos = screenToMap2(event.getX(), event.getY());
-					// Log.i(TAG, format("Start [%f, %f] currnet [%f, %f]",
-					// dragStart.x, dragStart.y, dragPos.x, dragPos.y));
-					// Log.i(TAG,
-					// format("cur(%f, %f) dragStart(%f, %f) Move [%f, %f]",
-					// dragPos.x, dragPos.y, dragStart.x, dragStart.y,
-					// dragStart.x-dragPos.x, dragStart.y-dragPos.y));
-					/*
-					 * Log.i(TAG, format("set center (%f, %f) vs (%f, %f)",
-					 * centerAtDragStart.x+(dragStart.x-dragPos.x),
-					 * centerAtDragStart.y+(dragStart.y-dragPos.y),
-					 * (dragStartPx.x-event.getX())*getResolution(),
-					 * (dragStartPx.y-event.getY())*getResolution()));
-					 */
-					center.set(centerAtDragStart);
-					center.offset(dragStart.x - dragPos.x, dragStart.y - dragPos.y);
-					// center.offset((dragStartPx.x-event.getX())*getResolution(),
-					// (dragStartPx.y-event.getY())*getResolution());
-					redraw();
-					break;
-				}
-			}
-			// Utils.dumpEvent(event);
-			return true;
+	@Override
+	public void setZoom(final int zoom) {
+		TmsLayer layer = tmsLayer;
+		if (layer == null || zoom < 0 || zoom >= layer.getResolutions().length) {
+			return;
 		}
-
-		void redraw() {
-			//Log.i(TAG, "redraw please");
-			synchronized (obj) {
-				//Log.i(TAG, "Ok then");
-				obj.notifyAll();
+		targetZoom = zoom;
+		ViewState state = viewState;
+		viewState = new ViewState(state.center, zoom, 1f, state.heading);
+		postCommand(new Runnable() {
+		
+			@Override
+			public void run() {
+				zoomAnimation = null;
+				zoomPinch = 1f;
+				onZoomChange(zoom);
 			}
+		});
+	}
+		
+	@Override
+	public void zoomTo(final int zoom) {
+		TmsLayer layer = tmsLayer;
+		if (layer == null || zoom < 0 || zoom >= layer.getResolutions().length || zoom == targetZoom) {
+			return;
 		}
+		targetZoom = zoom;
+		postCommand(new Runnable() {
 		
-		protected void onDraw(Canvas canvas) {
-			canvas.drawRGB(255, 255, 255);
-			//float scale = 1.0f; 
-			//canvas.scale(scale, scale, width / 2f, height / 2f);
-			// float cx = width/2.0f;
-			// float cy = height/2.0f;
-			// Log.d(TAG, format("center [%f, %f]", cx, cy));
-			// Log.d(TAG, format("[0,0] ==> [%f, %f]", center.x-cx*getResolution(),
-			// center.y-cy*getResolution()));
-			/*
-			 * for (Layer layer : layers) { layer.drawTile(canvas); }
-			 */
-
-			PointF startP = mapToScreen(bbox.minX, bbox.minY);
-			PointF endP = mapToScreen(bbox.maxX, bbox.maxY);
-			//canvas.drawArc(new RectF(startP.x-2, startP.y-2, startP.x+2, startP.y+2), 0, 360, true, screenBorderStyle);
-			//canvas.drawRect(startP.x, startP.y, endP.x, endP.y, mapStyle);
-			canvas.drawRect(startP.x, endP.y+1, endP.x, startP.y-1, mapStyle);
-			/*
-			 * float sx = startP.x > 0? startP.x : 0; float sy = startP.y > 0?
-			 * startP.y : 0; float ex = endP.x < width? endP.x : width; float ey =
-			 * endP.y < height? endP.y : height; canvas.drawRect(sx, sy, ex, ey,
-			 * mapStyle);
-			 */
-
-			//canvas.drawRect(1, 1, width, height, screenBorderStyle);
-			// Log.d(TAG, format("first tile [%f, %f]", startP.x, startP.y));
-			
-			PointF o = screenToMap(0, height);
-			if (o.x > bbox.maxX || o.y > bbox.maxY) {
-				return;
+			@Override
+			public void run() {
+				startZoomAnimation(zoom, 400);
 			}
-			Point s = getTileAtScreen(0, height);
-			Point e = getTileAtScreen(width, 0);
-			
-			//Log.i(TAG, format("left-top tile: [%d, %d] right-bottom tile: [%d, %d]", s.x, s.y, e.x, e.y));
-			int lastTileX = (int) ((bbox.maxX - bbox.minX) / tileWidth);
-			int lastTileY = (int) ((bbox.maxY - bbox.minY) / tileHeight);
-
-			lastTileX = e.x < lastTileX ? e.x : lastTileX;
-			lastTileY = e.y < lastTileY ? e.y : lastTileY;
-			int firstTileX = s.x > 0 ? s.x : 0;
-			int firstTileY = s.y > 0 ? s.y : 0;
-			PointF fixedPoint = mapToScreen(bbox.minX + tileWidth * firstTileX, bbox.minY + tileHeight * firstTileY);
-			int sx = (int) fixedPoint.x;
-			int sy = (int) fixedPoint.y;
+		});
+	}
+	        
+	/**
+	 * @return copy of the center published by the render thread
+	 */
+	@Override
+	public Point2D getCenter() {
+		return getCenter(new Point2D());
+	}
+	
+	@Override
+	public Point2D getCenter(Point2D out) {
+		Point2D center = viewState.center;
+		out.x = center.x;
+		out.y = center.y;
+		return out;
+	}
 			
-			//Log.i(TAG, format("sx=%d sy=%d firstTileX=%d firstTileY=%d", sx, sy, firstTileX, firstTileY));
-			for (int x = firstTileX; x <= lastTileX; x++) {
-				for (int y = firstTileY; y <= lastTileY; y++) {
-					String tileKey = format("%d:%d", x, y);
-					Tile tile = null;
-					if (tiles.containsKey(tileKey)) {
-						tile = tiles.get(tileKey);
-					} else {
-						//tmsLayer.requestTile(tile);
-						tile = new Tile(x, y, zoom, null);
-						tiles.put(tileKey, tile);
-					}
-					if (tile.getImage() != null) {
-						canvas.drawBitmap(tile.getImage(), sx + (256*(x-firstTileX)), sy-(y-firstTileY+1)*256, null);
-					}
-					//drawTile(canvas, x, y);
+	@Override
+	public void setCenter(final double x, final double y) {
+		ViewState state = viewState;
+		viewState = new ViewState(new Point2D(x, y), state.zoomLevel, state.zoomPinch, state.heading);
+		postCommand(new Runnable() {
+
+			@Override
+			public void run() {
+				moveAnimation = null;
+				centerX = x;
+				centerY = y;
+			}
+		});
+	}
+
+	@Override
+	public void moveToLocation(final double x, final double y) {
+		postCommand(new Runnable() {
+
+			@Override
+			public void run() {
+				if (tmsLayer == null) {
+					return;
+				}
+				double dx = x - centerX;
+				double dy = y - centerY;
+				int screenDistance = (int) (Math.sqrt(dx*dx + dy*dy)/tmsLayer.getResolutions()[zoomLevel]);
+				int maxAnimDistance = 2 * (int) Math.sqrt(width*width+height*height);
+				if (screenDistance < maxAnimDistance) {
+					float fraction = (screenDistance/(float) maxAnimDistance);
+					startMoveAnimation(x, y, 100+(int) (500*fraction));
+				} else {
+					moveAnimation = null;
+					centerX = x;
+					centerY = y;
 				}
 			}
+		});
+	}
+
+	@Override
+	public void setHeading(final int heading) {
+		ViewState state = viewState;
+		viewState = new ViewState(state.center, state.zoomLevel, state.zoomPinch, heading);
+		postCommand(new Runnable() {
 			
-			Point2D p = new Point2D();
-			proj.transform(new Point2D(21.23886386, 49.00096926), p);
-			//Log.i(TAG, format("projected position: [%f, %f]", p.x, p.y));
-			float positionOffsetX = (float) p.x-(bbox.minX + tileWidth * firstTileX);
-			float positionOffsetY = (float) p.y-(bbox.minY + tileHeight * firstTileY);
-			PointF currentPos = new PointF(sx+positionOffsetX/getResolution(), sy-positionOffsetY/getResolution());
-			
-			//PointF currentPos = mapToScreen((float) p.x, (float) p.y);
-			//PointF currentPos = mapToScreen(2367713, 6276560);
-			//bbox = 2351125 2376721
-			//Log.i(TAG, format("on screen: [%d, %d]", (int) currentPos.x, (int) currentPos.y));
-			//PointF currentPos = mapToScreen(21.23886386f, 49.00096926f);
-			//canvas.drawArc(new RectF(currentPos.x-2, currentPos.y-2, currentPos.x+2, currentPos.y+2), 0, 360, true, screenBorderStyle);
-			canvas.drawArc(new RectF(currentPos.x-2, currentPos.y-2, currentPos.x+2, currentPos.y+2), 0, 360, true, screenBorderStyle);
-			
-			//canvas.drawBitmap(textBuffer, 0, 0, null);
-			//drawTile(canvas, 0, 0);
-		}
-
-		private Point getTileAtScreen(int x, int y) {
-			assert x <= width && y <= height : "point outside the screen";
-			PointF mapPos = screenToMap(x, y);
-			// Log.i(TAG, format("mapPos %f, %f", mapPos.x, mapPos.y));
-			float tileX = (mapPos.x - bbox.minX) / tileWidth;
-			float tileY = (mapPos.y - bbox.minY) / tileHeight;
-			return new Point((int) Math.floor(tileX), (int) Math.floor(tileY));
-		}
-
-		private void drawTile(Canvas canvas, int x, int y) {
-			String tileKey = format("%d:%d", x, y);
-			Tile tile = null;
-			if (tiles.containsKey(tileKey)) {
-				tile = tiles.get(tileKey);
-			} else {
-				//tmsLayer.requestTile(tile);
-				tile = new Tile(x, y, zoom, null);
-				tiles.put(tileKey, tile);
+			@Override
+			public void run() {
+				MapSurface.this.heading = heading;
 			}
+		});
+	}
+		
+	@Override
+	public int getHeading() {
+		return viewState.heading;
+	}
+	
+	@Override
+	public void addOverlay(Overlay overlay) {
+		overlays.add(overlay);
+		redraw();
+	}
+	
+	@Override
+	public void setOnZoomChangeListener(MapListener listener) {
+		this.mapListener = listener;
+	}
+
+	@Override
+	public void redraw() {
+		postCommand(REDRAW);
+	}
+
+	@Override
+	public void recycle() {
+		postCommand(new Runnable() {
 			
-			/* tests if there can be some rounding errors
-			PointF startP = mapToScreen(bbox.minX + (tileWidthPx*x)*getResolution(), bbox.minY + (tileHeightPx*y)*getResolution());
-			Log.i(TAG, format("x diff %f, y diff %f",
-					(((tileWidthPx*x)*getResolution())-tileWidth*x),
-					(((tileHeightPx*y)*getResolution())-tileHeight*y)
-					));
-			*/
-			PointF startP = mapToScreen(bbox.minX + tileWidth * x, bbox.minY + tileHeight * y);
-			if (tile.getImage() != null) {
-				canvas.drawBitmap(tile.getImage(), startP.x, startP.y-256f, null);
+			@Override
+			public void run() {
+				if (tilesManager != null) {
+					prefetcher.cancel();
+					tilesManager.cancelAll();
+					tilesManager.clearCache();
+				}
 			}
-			if (true) return;
+		});
+		if (renderThread == null) {
+			// there is no render thread, so the state can be modified here
+			processCommands();
+		}
+	}
+		
+	@Override
+	public void onPause() {
+		for (Overlay overlay : overlays) {
+			overlay.onPause();
+		}
+	}
+
+	@Override
+	public void onResume() {
+		for (Overlay overlay : overlays) {
+			overlay.onResume();
+		}
+	}
+
+	@Override
+	public final float getResolution() {
+		return (float) tmsLayer.getResolutions()[viewState.zoomLevel];
+	}
+		
+	/**
+	 * Transforms screen position to the map, according to the last published view.
+	 */
+	@Override
+	public Point2D screenToMap(float x, float y) {
+		return screenToMap(x, y, new Point2D());
+	}
+	
+	@Override
+	public Point2D screenToMap(float x, float y, Point2D out) {
+		ViewState state = viewState;
+		double resolution = tmsLayer.getResolutions()[state.zoomLevel] / state.zoomPinch;
+		// offset from the center of the screen is rotated back to the map axes
+		double dx = x - getWidth() / 2f;
+		double dy = y - getHeight() / 2f;
+		out.x = state.center.x + (dx*state.cos + dy*state.sin) * resolution;
+		out.y = state.center.y + (dy*state.cos - dx*state.sin) * resolution;
+		return out;
+	}
+	
+	@Override
+	public PointF mapToScreen(double x, double y) {
+		return mapToScreen(x, y, new PointF());
+	}
+
+	@Override
+	public PointF mapToScreen(double x, double y, PointF out) {
+		ViewState state = viewState;
+		double resolution = tmsLayer.getResolutions()[state.zoomLevel] / state.zoomPinch;
+		double dx = (x - state.center.x) / resolution;
+		double dy = (y - state.center.y) / resolution;
+		out.set(getWidth() / 2f + (float) (dx*state.cos - dy*state.sin),
+				getHeight() / 2f + (float) (dx*state.sin + dy*state.cos));
+		return out;
+	}
+	
+	@Override
+	public PointF mapToScreenAligned(double x, double y) {
+		return mapToScreenAligned(x, y, new PointF());
+	}
+		
+	/**
+	 * Transforms map position to the screen, aligned with the tiles of the frame
+	 * being drawn. Must be called on the render thread, i.e. from overlays.
+	 */
+	@Override
+	public PointF mapToScreenAligned(double x, double y, PointF out) {
+		double resolution = tmsLayer.getResolutions()[zoomLevel];
+		transformedPoint[0] = firstTilePositionPx.x + (float) ((x - firstTilePosition.x) / resolution);
+		transformedPoint[1] = firstTilePositionPx.y + (float) ((y - firstTilePosition.y) / resolution);
+		pinchMatrix.mapPoints(transformedPoint);
+		out.set(transformedPoint[0], transformedPoint[1]);
+		return out;
+	}
+
+	/**
+	 * @return count of the frames drawn by the render thread
+	 */
+	public int getFramesCount() {
+		return framesCount;
+	}
+	
+	/**
+	 * @return count of the frame intervals missed during animations because the
+	 * previous frame took too long
+	 */
+	public int getDroppedFramesCount() {
+		return droppedFramesCount;
+	}
+	
+	/**
+	 * @return average time of the frame drawing in milliseconds
+	 */
+	public float getAverageFrameTime() {
+		int count = framesCount;
+		return count > 0? totalFrameTime / (float) count : 0;
+	}
 			
-			canvas.drawRect(startP.x, startP.y - 256f, startP.x + 256f, startP.y, tileStyle);
-			/*
-			canvas.drawText(format("x=%d y=%d", x, y),
-				startP.x+50, startP.y+127,
-				tileStyle);
-			if (true) return;
-			*/
+	/**
+	 * @return maximal time of the frame drawing in milliseconds
+	 */
+	public long getMaxFrameTime() {
+		return maxFrameTime;
+	}
 			
-			int xPos = (int) startP.x+50;
-			int yPos = (int) startP.y-127;
+	// input events, received on the UI thread
 			
-			// draw "x="
-			canvas.drawBitmap(textBuffer,
-					new Rect(0, 310, 25, 340),
-					new Rect(xPos, yPos, xPos+25, yPos+30),
-					null);
-			xPos += 30;
-			drawNumber(canvas, x, xPos, yPos);
-			xPos += 35;
+	@Override
+	public void onTapStart(double x, double y) {
+		Log.i(TAG, "Clicked at: "+x+", "+y);
+	}
+
+	@Override
+	public void onTapEnd() {
+		postCommand(new Runnable() {
 			
-			// draw "y="
-			canvas.drawBitmap(textBuffer,
-					new Rect(0, 340, 25, 380),
-					new Rect(xPos, yPos, xPos+25, yPos+40),
-					null);
-			xPos += 30;
-			drawNumber(canvas, y, xPos, yPos);
-		}
-
-		private void drawNumber(Canvas canvas, int number, int x, int y) {
-			String strNum = "" + number;
-			//Log.i(TAG, "draw number: "+number);
-			int xPos = x;
-			for (int i = 0; i < strNum.length(); i++) {
-				int n = strNum.charAt(i) - 48;
-				//Log.i(TAG, "digit: "+n);
-				int width = (int) numbersWidths[n];
-				canvas.drawBitmap(textBuffer,
-						new Rect(0, 30*(n), width, 30*(n+1)),
-						new RectF(xPos, y, xPos + width, y + 30),
-						null);
-				xPos += width+1;
+			@Override
+			public void run() {
+				velocityX = 0;
+				velocityY = 0;
 			}
-		}
-
-		private PointF screenToMap2(float x, float y) {
-			float offsetX = x - width / 2f;
-			float offsetY = (height / 2f) - y;
-			return new PointF(centerAtDragStart.x + offsetX * getResolution(), centerAtDragStart.y
-					+ offsetY * getResolution());
-		}
+		});
+	}
 
-		private PointF screenToMap(float x, float y) {
-			float offsetX = x - width / 2f;
-			float offsetY = (height / 2f) - y;
-			return new PointF(center.x + offsetX * getResolution(), center.y + offsetY
-					* getResolution());
-		}
+	@Override
+	public void onMove(double x, double y) {
+		final float vx = mapEventsGenerator.getVelocityX();
+		final float vy = mapEventsGenerator.getVelocityY();
+		setCenter(x, y);
+		postCommand(new Runnable() {
 
-		private PointF mapToScreen(float x, float y) {
-			float offsetX = x - center.x;
-			float offsetY = center.y - y;
-			return new PointF(width / 2f + offsetX / getResolution(), height / 2f + offsetY
-					/ getResolution());
-		}
+			@Override
+			public void run() {
+				velocityX = vx;
+				velocityY = vy;
+			}
+		});
+	}
 
-		private float getResolution() {
-			return (float) resolutions[zoom];
-		}
+	@Override
+	public void onZoom(final float zoom) {
+		ViewState state = viewState;
+		viewState = new ViewState(state.center, state.zoomLevel, zoom, state.heading);
+		postCommand(new Runnable() {
 
-		@Override
-		public void onTileLoad(Tile tile) {
-			// throw away tiles with not actual zoom level (delayed)
-			if (tile.getZoomLevel() != zoom) {
-				tile.recycle();
-				return;
+			@Override
+			public void run() {
+				zoomAnimation = null;
+				zoomPinch = zoom;
 			}
-			String tileKey = format("%d:%d", tile.getX(), tile.getY());
-			synchronized (tiles) {
-				if (tiles.size() > 35) {
-					Point centerTile = getTileAtScreen(width/2, height/2);
-					while (tiles.size() > 35) {
-						Tile mostFarAway = tiles.values().iterator().next();
-						for (Tile t : tiles.values()) {
-							if (Math.abs(centerTile.x-t.getX())+Math.abs(centerTile.y-t.getY()) >
-									Math.abs(centerTile.x-mostFarAway.getX())+Math.abs(centerTile.y-mostFarAway.getY())) {
-								mostFarAway = t;
-							}
-						}
-						mostFarAway.recycle();
-						tiles.remove(format("%d:%d", mostFarAway.getX(), mostFarAway.getY()));
-					}
+		});
+	}
+	
+	@Override
+	public void onZoomEnd() {
+		postCommand(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (tmsLayer != null) {
+					int zoom = getClosestZoomLevel(zoomPinch);
+					targetZoom = zoom;
+					startZoomAnimation(zoom, 300);
 				}
-				tiles.put(tileKey, tile);
 			}
-			redraw();
-		}
-
-		@Override
-		public void onTileLoadingFailed(Tile tile) {
-			String tileKey = format("%d:%d", tile.getX(), tile.getY());
-			if (tiles.containsKey(tileKey)) {
-				tiles.remove(tileKey);
+		});
+	}
+	
+	@Override
+	public void onDoubleTap(float x, float y) {
+		final Point2D pos = screenToMap(x, y);
+		final int zoom = targetZoom + 1 < tmsLayer.getResolutions().length? targetZoom + 1 : targetZoom;
+		targetZoom = zoom;
+		postCommand(new Runnable() {
+			
+			@Override
+			public void run() {
+				startMoveAnimation(pos.x, pos.y, 350);
+				startZoomAnimation(zoom, 350);
 			}
-		}
+		});
+	}
+	
+	@Override
+	public void onTileLoad(Tile tile) {
+		// called on the render thread, tile is already in the cache
+		redraw();
+	}
+
+	@Override
+	public void onTileLoadingFailed(Tile tile) {
+		Log.w(TAG, "onTileLoadingFailed: "+tile);
+	}
 	 
-		public void setRunning(boolean running) {
-			this.run = running;
+	// methods of the render thread
+	
+	/**
+	 * Executes all waiting commands.
+	 *
+	 * @return true if there was any command
+	 */
+	private boolean processCommands() {
+		boolean processed = false;
+		Runnable command;
+		while ((command = commands.poll()) != null) {
+			command.run();
+			processed = true;
 		}
+		return processed;
+	}
 		
-		Object obj = new String();
+	private void onZoomChange(final int zoom) {
+		zoomLevel = zoom;
+		TmsLayer layer = tmsLayer;
+		tileWidth = layer.getTileWidth() * layer.getResolutions()[zoom];
+		tileHeight = layer.getTileHeight() * layer.getResolutions()[zoom];
+		tilesManager.onZoomChange(zoom);
+		if (mapListener != null) {
+			handler.post(new Runnable() {
 		
-	    @Override
-	    public void run() {
-	    	while (run) {
-                Canvas c = null;
-                try {
-                    c = surfaceHolder.lockCanvas(null);
-                    synchronized (surfaceHolder) {
-                        //Log.i(TAG, "drawing");
-                        c.drawRGB(255, 255, 255);
-                        onDraw(c);
-                    }
-                } finally {
-                    // do this in a finally so that if an exception is thrown
-                    // during the above, we don't leave the Surface in an
-                    // inconsistent state
-                    if (c != null) {
-                        surfaceHolder.unlockCanvasAndPost(c);
-                    }
-                }
-                try {
-                	synchronized (obj) {
-                		obj.wait();
-                	}
-				} catch (InterruptedException e) {
-					Log.i(TAG, e.getMessage(), e);
+				@Override
+				public void run() {
+					mapListener.onZoomChanged(zoom);
 				}
-            }
-	    }
+			});
+		}
+	}
+	
+	private int getClosestZoomLevel(double newZoom) {
+		double[] resolutions = tmsLayer.getResolutions();
+		double newResolution = resolutions[zoomLevel]/newZoom;
+		double closestResolutionDistance = resolutions[0];
+		int indexOfClosestResolution = 0;
+		for (int i = 0 ; i < resolutions.length; i++) {
+			double distance = Math.abs(resolutions[i]-newResolution);
+			if (distance < closestResolutionDistance) {
+				closestResolutionDistance = distance;
+				indexOfClosestResolution = i;
+			}
+		}
+		return indexOfClosestResolution;
 	}
 
-	@Override
-	public void setHeading(int heading) {
-		// TODO Auto-generated method stub
+	private void startMoveAnimation(final double x, final double y, int duration) {
+		final double startX = centerX;
+		final double startY = centerY;
+		moveAnimation = new RenderAnimation(duration) {
 		
+			@Override
+			void onFrame(float fraction) {
+				centerX = startX + (x-startX)*fraction;
+				centerY = startY + (y-startY)*fraction;
+			}
+		};
 	}
 
-	@Override
-	public void setLayer(TmsLayer layer) {
-		// TODO Auto-generated method stub
+	private void startZoomAnimation(final int zoom, int duration) {
+		final float startZoomPinch = zoomPinch;
+		final float endZoomPinch = (float) (tmsLayer.getResolutions()[zoomLevel] / tmsLayer.getResolutions()[zoom]);
+		zoomAnimation = new RenderAnimation(duration) {
 		
-	}
+			@Override
+			void onFrame(float fraction) {
+				zoomPinch = startZoomPinch + (endZoomPinch-startZoomPinch)*fraction;
+			}
 
-	@Override
-	public TmsLayer getLayer() {
-		// TODO Auto-generated method stub
-		return null;
+			@Override
+			void onEnd() {
+				zoomPinch = 1f;
+				if (zoom != zoomLevel) {
+					onZoomChange(zoom);
+				}
+			}
+		};
 	}
 
-	@Override
-	public PointF mapToScreenAligned(float x, float y) {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * Advances running animations to the frame time.
+	 *
+	 * @return true if some animation needs next frame
+	 */
+	private boolean animate(long frameTime) {
+		if (moveAnimation != null && !moveAnimation.doFrame(frameTime)) {
+			moveAnimation = null;
+		}
+		if (zoomAnimation != null && !zoomAnimation.doFrame(frameTime)) {
+			zoomAnimation = null;
+		}
+		return moveAnimation != null || zoomAnimation != null;
 	}
 
-	@Override
-	public void addOverlay(Overlay overlay) {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * Publishes the state of the frame for the UI thread.
+	 */
+	private void publishState() {
+		ViewState state = viewState;
+		if (state.center.x != centerX || state.center.y != centerY || state.zoomLevel != zoomLevel
+				|| state.zoomPinch != zoomPinch || state.heading != heading) {
+			viewState = new ViewState(new Point2D(centerX, centerY), zoomLevel, zoomPinch, heading);
+		}
 	}
-
-	@Override
-	public void onPause() {
-		// TODO Auto-generated method stub
 		
-	}
+	private void drawMap(Canvas canvas) {
+		canvas.drawRGB(255, 255, 255);
+		if (tilesManager == null || width == 0 || height == 0) {
+			return;
+		}
+		validateMap();
 
-	@Override
-	public void onResume() {
-		// TODO Auto-generated method stub
+		canvas.save();
+		canvas.scale(1, -1);
+		canvas.translate(0, -height);
+		
+		canvas.save();
+		canvas.concat(pinchMatrix);
+		drawTiles(canvas);
+		// border of the layer is drawn before the transformation, to be rotated with the map
+		double resolution = tmsLayer.getResolutions()[zoomLevel];
+		float startX = firstTilePositionPx.x + (float) ((bbox.minX - firstTilePosition.x) / resolution);
+		float startY = firstTilePositionPx.y + (float) ((bbox.minY - firstTilePosition.y) / resolution);
+		float endX = firstTilePositionPx.x + (float) ((bbox.maxX - firstTilePosition.x) / resolution);
+		float endY = firstTilePositionPx.y + (float) ((bbox.maxY - firstTilePosition.y) / resolution);
+		canvas.drawRect(Math.max(startX, -5000), Math.max(startY, -5000),
+				Math.min(endX, 5000), Math.min(endY, 5000), mapStyle);
+		canvas.restore();
 		
+		for (int i = 0; i < overlays.size(); i++) {
+			overlays.get(i).onDraw(this, canvas, zoomPinch);
+		}
+		canvas.restore();
 	}
 
-	@Override
-	public void moveToLocation(float x, float y) {
-		// TODO Auto-generated method stub
+	/**
+	 * Computes visible tiles and position of the first of them on the screen,
+	 * and updates prefetching of the tiles around.
+	 */
+	private void validateMap() {
+		TmsLayer layer = tmsLayer;
+		double resolution = layer.getResolutions()[zoomLevel];
+		pinchMatrix.setScale(zoomPinch, zoomPinch, width/2f, height/2f);
+		if (heading != 0) {
+			pinchMatrix.postRotate(heading, width/2f, height/2f);
+		}
+		pinchMatrix.invert(inversePinchMatrix);
+		
+		// corners of the visible area in map units and their bounding box
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < viewport.length; i++) {
+			transformedPoint[0] = i == 1 || i == 2? width : 0;
+			transformedPoint[1] = i >= 2? height : 0;
+			inversePinchMatrix.mapPoints(transformedPoint);
+			Point2D corner = viewport[i];
+			corner.x = centerX + (transformedPoint[0] - width/2f) * resolution;
+			corner.y = centerY + (transformedPoint[1] - height/2f) * resolution;
+			minX = Math.min(minX, corner.x);
+			minY = Math.min(minY, corner.y);
+			maxX = Math.max(maxX, corner.x);
+			maxY = Math.max(maxY, corner.y);
+		}
+		layer.getTileAt(minX, minY, zoomLevel, firstVisibleTile);
+		layer.getTileAt(maxX, maxY, zoomLevel, lastVisibleTile);
+		Point max = layer.getLastTile(zoomLevel, lastLayerTile);
+		int maxTileX = max.x;
+		int maxTileY = max.y;
+		firstVisibleTile.x = Math.max(firstVisibleTile.x, 0);
+		firstVisibleTile.y = Math.max(firstVisibleTile.y, 0);
+		lastVisibleTile.x = Math.min(lastVisibleTile.x, maxTileX);
+		lastVisibleTile.y = Math.min(lastVisibleTile.y, maxTileY);
 		
+		firstTilePosition.x = bbox.minX + tileWidth * firstVisibleTile.x;
+		firstTilePosition.y = bbox.minY + tileHeight * firstVisibleTile.y;
+		firstTilePositionPx.x = Math.round(width / 2f + (float) ((firstTilePosition.x - centerX) / resolution));
+		firstTilePositionPx.y = Math.round(height / 2f + (float) ((firstTilePosition.y - centerY) / resolution));
+		
+		int rows = Math.max(lastVisibleTile.y - firstVisibleTile.y + 1, 0);
+		if (rowFirstTile.length < rows) {
+			rowFirstTile = new int[rows];
+			rowLastTile = new int[rows];
+		}
+		visibleTiles.set(firstVisibleTile.x, firstVisibleTile.y, lastVisibleTile.x, lastVisibleTile.y);
+		if (heading == 0) {
+			for (int row = 0; row < rows; row++) {
+				rowFirstTile[row] = firstVisibleTile.x;
+				rowLastTile[row] = lastVisibleTile.x;
+			}
+		} else {
+			layer.getRowSpans(zoomLevel, viewport, visibleTiles, rowFirstTile, rowLastTile);
+		}
+		
+		tilesManager.updateCenter();
+		if (firstVisibleTile.x <= lastVisibleTile.x && firstVisibleTile.y <= lastVisibleTile.y) {
+			Rect prefetchedTiles = visibleTiles;
+			if (heading != 0) {
+				// the heading changes continuously, so tiles which can be exposed by further
+				// rotation (within the diagonal of the screen) are prefetched
+				double radius = Math.sqrt(width*width + height*height) / 2.0 * resolution / zoomPinch;
+				Point first = layer.getTileAt(centerX-radius, centerY-radius, zoomLevel, firstScreenTile);
+				Point last = layer.getTileAt(centerX+radius, centerY+radius, zoomLevel, lastScreenTile);
+				rotationTiles.set(Math.max(first.x, 0), Math.max(first.y, 0),
+						Math.min(last.x, maxTileX), Math.min(last.y, maxTileY));
+				prefetchedTiles = rotationTiles;
+			}
+			prefetcher.update(zoomLevel, prefetchedTiles, maxTileX, maxTileY,
+					(float) (velocityX / tileWidth), (float) (velocityY / tileHeight));
+			keptTiles.set(prefetcher.getRange());
+			keptTiles.inset(-CANCEL_MARGIN, -CANCEL_MARGIN);
+			tilesManager.cancelInvisible(zoomLevel, keptTiles);
+		}
+	}
+	
+	private void drawTiles(Canvas canvas) {
+		int tileSizeX = tmsLayer.getTileWidth();
+		int tileSizeY = tmsLayer.getTileHeight();
+		for (int x = firstVisibleTile.x; x <= lastVisibleTile.x; x++) {
+			for (int y = firstVisibleTile.y; y <= lastVisibleTile.y; y++) {
+				int row = y - firstVisibleTile.y;
+				if (x < rowFirstTile[row] || x > rowLastTile[row]) {
+					// outside of the rotated viewport
+					continue;
+				}
+				float left = firstTilePositionPx.x + tileSizeX*(x-firstVisibleTile.x);
+				float bottom = firstTilePositionPx.y + tileSizeY*(y-firstVisibleTile.y);
+				Tile tile;
+				if (zoomPinch == 1f && zoomLevel == targetZoom) {
+					tile = tilesManager.getTile(x, y);
+				} else {
+					// only cached tiles are drawn while zooming
+					tile = tilesManager.getCachedTile(x, y, zoomLevel);
+				}
+				Bitmap image = tile != null? tile.getImage() : null;
+				if (image != null) {
+					canvas.save();
+					canvas.scale(1, -1, left, bottom+tileSizeY/2f);
+					canvas.drawBitmap(image, left, bottom, imagesStyle);
+					canvas.restore();
+				} else {
+					drawAncestorTile(canvas, x, y, left, bottom);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Draws the area of a missing tile from the nearest cached tile of a lower
+	 * zoom level, scaled up.
+	 */
+	private void drawAncestorTile(Canvas canvas, int x, int y, float left, float bottom) {
+		double[] resolutions = tmsLayer.getResolutions();
+		int tileSizeX = tmsLayer.getTileWidth();
+		int tileSizeY = tmsLayer.getTileHeight();
+		double tileMinX = x * tileWidth;
+		double tileMinY = y * tileHeight;
+		for (int zoom = zoomLevel-1; zoom >= 0 && zoom >= zoomLevel-MAX_ANCESTOR_LEVELS; zoom--) {
+			double ancestorWidth = tileSizeX * resolutions[zoom];
+			double ancestorHeight = tileSizeY * resolutions[zoom];
+			int ancestorX = (int) Math.floor((tileMinX + tileWidth/2) / ancestorWidth);
+			int ancestorY = (int) Math.floor((tileMinY + tileHeight/2) / ancestorHeight);
+			Tile ancestor = tilesManager.getCachedTile(ancestorX, ancestorY, zoom);
+			Bitmap image = ancestor != null? ancestor.getImage() : null;
+			if (image != null) {
+				float srcLeft = (float) ((tileMinX - ancestorX*ancestorWidth) / resolutions[zoom]);
+				float srcBottom = (float) ((tileMinY - ancestorY*ancestorHeight) / resolutions[zoom]);
+				float srcWidth = (float) (tileWidth / resolutions[zoom]);
+				float srcHeight = (float) (tileHeight / resolutions[zoom]);
+				fallbackSrc.set(Math.round(srcLeft), Math.round(tileSizeY-srcBottom-srcHeight),
+						Math.round(srcLeft+srcWidth), Math.round(tileSizeY-srcBottom));
+				fallbackDst.set(left, bottom, left+tileSizeX, bottom+tileSizeY);
+				canvas.save();
+				canvas.scale(1, -1, left, bottom+tileSizeY/2f);
+				canvas.drawBitmap(image, fallbackSrc, fallbackDst, imagesStyle);
+				canvas.restore();
+				return;
+			}
+		}
 	}
 
-	@Override
-	public void zoomTo(int zoom) {
-		// TODO Auto-generated method stub
+	class RenderThread extends Thread {
 		
-	}
+		private SurfaceHolder surfaceHolder;
+		private volatile boolean running = true;
+		private long lastFrameTime;
+		
+		public RenderThread(SurfaceHolder surfaceHolder) {
+			super("MapRenderer");
+			this.surfaceHolder = surfaceHolder;
+		}
 
-	@Override
-	public void redraw() {
-		// TODO Auto-generated method stub
+		@Override
+		public void run() {
+			boolean redraw = true;
+			while (running) {
+				if (processCommands()) {
+					redraw = true;
+				}
+				long frameTime = SystemClock.uptimeMillis();
+				boolean animating = animate(frameTime);
+				if (redraw || animating) {
+					redraw = false;
+					publishState();
+					drawFrame(frameTime, animating);
+				}
+				if (!running) {
+					break;
+				}
+				if (animating) {
+					// wait for the next frame interval, or a command
+					long delay = lastFrameTime + FRAME_INTERVAL - SystemClock.uptimeMillis();
+					if (delay > 0) {
+						LockSupport.parkNanos(this, delay * 1000000L);
+					}
+				} else if (commands.isEmpty()) {
+					// command offered after the check unparks the thread in advance
+					LockSupport.park(this);
+				}
+			}
+		}
 		
+		private void drawFrame(long frameTime, boolean animating) {
+			if (animating && lastFrameTime > 0) {
+				long delay = frameTime - lastFrameTime - FRAME_INTERVAL;
+				if (delay >= FRAME_INTERVAL) {
+					droppedFramesCount += delay / FRAME_INTERVAL;
+				}
+			}
+			lastFrameTime = frameTime;
+			Canvas canvas = surfaceHolder.lockCanvas(null);
+			if (canvas == null) {
+				return;
+			}
+			try {
+				drawMap(canvas);
+			} finally {
+				// do this in a finally so that if an exception is thrown during the
+				// drawing, we don't leave the Surface in an inconsistent state
+				surfaceHolder.unlockCanvasAndPost(canvas);
+			}
+			long drawTime = SystemClock.uptimeMillis() - frameTime;
+			framesCount++;
+			totalFrameTime += drawTime;
+			if (drawTime > maxFrameTime) {
+				maxFrameTime = drawTime;
+			}
+		}
 	}
 
-	@Override
-	public void setOnZoomChangeListener(MapListener listener) {
-		// TODO Auto-generated method stub
+	/**
+	 * Time based animation driven by the render thread.
+	 */
+	abstract class RenderAnimation {
 		
-	}
+		private long startTime = -1;
+		private int duration;
 
-	@Override
-	public PointF mapToScreen(float x, float y) {
-		// TODO Auto-generated method stub
-		return null;
-	}
+		RenderAnimation(int duration) {
+			this.duration = duration;
+		}
 
-	@Override
-	public PointF screenToMap(float x, float y) {
-		// TODO Auto-generated method stub
-		return null;
+		/**
+		 * @return false when the animation has ended
+		 */
+		boolean doFrame(long frameTime) {
+			if (startTime == -1) {
+				startTime = frameTime;
+			}
+			float fraction = duration > 0? (frameTime - startTime) / (float) duration : 1f;
+			if (fraction >= 1f) {
+				onFrame(1f);
+				onEnd();
+				return false;
+			}
+			onFrame(fraction);
+			return true;
+		}
+		
+		abstract void onFrame(float fraction);
+		
+		void onEnd() {}
 	}
-
-	@Override
-	public float getResolution() {
-		// TODO Auto-generated method stub
-		return 0;
+	
+	/**
+	 * Immutable snapshot of the view published by the render thread.
+	 */
+	private static class ViewState {
+		final Point2D center;
+		final int zoomLevel;
+		final float zoomPinch;
+		final int heading;
+		// rotation by the heading, used by the transformations on the UI thread
+		final double cos;
+		final double sin;
+		
+		ViewState(Point2D center, int zoomLevel, float zoomPinch, int heading) {
+			this.center = center;
+			this.zoomLevel = zoomLevel;
+			this.zoomPinch = zoomPinch;
+			this.heading = heading;
+			double angle = Math.toRadians(heading);
+			cos = Math.cos(angle);
+			sin = Math.sin(angle);
+		}
 	}
 }
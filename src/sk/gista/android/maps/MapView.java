@@ -2,22 +2,28 @@ package sk.gista.android.maps;
 
 import android.graphics.PointF;
 
+import com.jhlabs.geom.Point2D;
+
 public interface MapView extends AndroidComponent {
 
 	void setZoom(int zoom);
 	int getZoom();
 	
 	void setHeading(int heading);
+	int getHeading();
 	void setLayer(TmsLayer layer);
 	TmsLayer getLayer();
 	
-	PointF getCenter();
-	void setCenter(float x, float y);
+	/**
+	 * @return center of the map, must not be modified
+	 */
+	Point2D getCenter();
+	void setCenter(double x, double y);
 	
-	PointF mapToScreenAligned(float x, float y);
+	PointF mapToScreenAligned(double x, double y);
 	void addOverlay(Overlay overlay);
 	
-	void moveToLocation(float x, float y);
+	void moveToLocation(double x, double y);
 	
 	/**
 	 * Zoom with animation
@@ -30,8 +36,18 @@ public interface MapView extends AndroidComponent {
 	
 	void recycle();
 	
-	PointF mapToScreen(float x, float y);
-	PointF screenToMap(float x, float y);
+	PointF mapToScreen(double x, double y);
+	Point2D screenToMap(float x, float y);
+	
+	/*
+	 * Variants of the transformations which store the result into the given point
+	 * and return it, to avoid allocations on the drawing and touch paths.
+	 * Map coordinates are doubles, only the screen coordinates are floats.
+	 */
+	PointF mapToScreenAligned(double x, double y, PointF out);
+	PointF mapToScreen(double x, double y, PointF out);
+	Point2D screenToMap(float x, float y, Point2D out);
+	Point2D getCenter(Point2D out);
 	float getResolution();
 	
 	
@@ -1,86 +1,435 @@
 package sk.gista.android.maps;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.util.Log;
 
+import com.jhlabs.geom.Point2D;
+
 import sk.gista.android.maps.Layer.Tile;
+import sk.gista.android.utils.LongHashMap;
 
+/**
+ * Memory cache of decoded tiles of all zoom levels, keyed by zoom/x/y.
+ * <p>
+ * Each zoom level has its own budget, the current level may use the whole cache
+ * and other levels a smaller part of it, decreasing with the distance from the
+ * current level. When the cache is full, tiles are evicted from the level which
+ * exceeds its budget the most, starting with the tile most far away from the
+ * center of the map.
+ */
 public class MemoryCache {
 
 	private static final String TAG = "MemoryCache";
 	
-	private int capacity;
+	private long maxBytes;
+	private long currentBytes;
 	private MapView map;
+	private BitmapPool bitmapPool;
+	
+	// statistics
+	private int hitCount;
+	private int missCount;
+	private int evictionCount;
 	
-	public MemoryCache(MapView map, int capacity) {
+	/**
+	 * @param maxBytes maximal size of the decoded bitmaps held by the cache
+	 * @param bitmapPool pool which receives bitmaps of the evicted tiles
+	 */
+	public MemoryCache(MapView map, long maxBytes, BitmapPool bitmapPool) {
 		this.map = map;
-		this.capacity = capacity;
+		this.maxBytes = maxBytes;
+		this.bitmapPool = bitmapPool;
+	}
+	
+	/**
+	 * Returns default cache size for the given device, a quarter of the memory class
+	 * (heap limit) of the application.
+	 */
+	public static long defaultMaxBytes(Context context) {
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		return activityManager.getMemoryClass() * 1024L * 1024L / 4;
 	}
 	
-	private Map<String, Tile> tiles = new HashMap<String, Tile>();
+	private LongHashMap<Entry> tiles = new LongHashMap<Entry>();
+	
+	// cached tiles of each zoom level
+	private ZoomLevel[] levels = new ZoomLevel[0];
+	// placeholders taken from the top of the heap during the eviction
+	private List<Entry> skippedPlaceholders = new ArrayList<Entry>();
 	
 	public boolean containsTile(Tile tile) {
-		return tiles.containsKey(tile);
+		synchronized (tiles) {
+			return tiles.containsKey(tile.getKey());
+		}
 	}
 	
-	public boolean containsTile(int x, int y) {
-		String tileKey = tileKey(x, y);
-		return tiles.containsKey(tileKey);
+	public boolean containsTile(int x, int y, int zoom) {
+		synchronized (tiles) {
+			return tiles.containsKey(Tile.key(x, y, zoom));
+		}
 	}
 	
 	public int size() {
 		return tiles.size();
 	}
 	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	public void setMaxBytes(long maxBytes) {
+		synchronized (tiles) {
+			this.maxBytes = maxBytes;
+			trimToSize(maxBytes);
+		}
+	}
+	
+	public long getCurrentBytes() {
+		return currentBytes;
+	}
+	
+	/**
+	 * @return size of the cached bitmaps of the zoom level
+	 */
+	public long getCurrentBytes(int zoom) {
+		synchronized (tiles) {
+			return zoom < levels.length && levels[zoom] != null? levels[zoom].bytes : 0;
+		}
+	}
+	
+	/**
+	 * Returns the part of the cache which can be used by tiles of the zoom level,
+	 * when the given zoom level is displayed.
+	 */
+	public long getBudget(int zoom, int currentZoom) {
+		return maxBytes / (1 + Math.abs(zoom - currentZoom));
+	}
+	
+	public int getHitCount() {
+		return hitCount;
+	}
+	
+	public int getMissCount() {
+		return missCount;
+	}
+	
+	public int getEvictionCount() {
+		return evictionCount;
+	}
+	
 	public void clearCache() {
 		Log.i(TAG, "Clearing tiles");
 		synchronized (tiles) {
-			for (Tile tile : tiles.values()) {
-				tile.recycle();
+			for (ZoomLevel level : levels) {
+				if (level != null) {
+					for (int i = 0; i < level.size; i++) {
+						release(level.heap[i].tile);
+					}
+					level.clear();
+				}
 			}
 			tiles.clear();
+			currentBytes = 0;
 		}
 	}
 	
 	public void putTile(Tile tile) {
 		synchronized (tiles) {
-			if (tiles.size() > capacity) {
-				Point centerTile = map.getLayer().getTileAt(map.getCenter(), map.getZoom());
-				//Point centerTile = getTileAtScreen(width/2, height/2);
-				while (tiles.size() > capacity) {
-					Tile mostFarAway = tiles.values().iterator().next();
-					for (Tile t : tiles.values()) {
-						if (Math.abs(centerTile.x-t.getX())+Math.abs(centerTile.y-t.getY()) >
-								Math.abs(centerTile.x-mostFarAway.getX())+Math.abs(centerTile.y-mostFarAway.getY())) {
-							mostFarAway = t;
+			long tileKey = tile.getKey();
+			ZoomLevel level = getLevel(tile.getZoomLevel());
+			Entry entry = tiles.remove(tileKey);
+			if (entry != null) {
+				// replacing of the tile which is being loaded or revalidated
+				level.remove(entry.index);
+				currentBytes -= entry.bytes;
+				if (entry.tile != tile) {
+					release(entry.tile);
+				}
+				entry.tile = tile;
+			} else {
+				entry = new Entry(tile);
+			}
+			entry.bytes = sizeOf(tile);
+			trimToSize(maxBytes - entry.bytes);
+			
+			entry.distance = level.distance(tile);
+			tiles.put(tileKey, entry);
+			level.add(entry);
+			currentBytes += entry.bytes;
+		}
+	}
+	
+	public void remove(Tile tile) {
+		synchronized (tiles) {
+			Entry entry = tiles.remove(tile.getKey());
+			if (entry != null) {
+				levels[tile.getZoomLevel()].remove(entry.index);
+				currentBytes -= entry.bytes;
+			}
+		}
+	}
+	
+	public Tile getTile(int x, int y, int zoom) {
+		synchronized (tiles) {
+			Entry entry = tiles.get(Tile.key(x, y, zoom));
+			if (entry != null && entry.bytes > 0) {
+				hitCount++;
+			} else {
+				missCount++;
+			}
+			return entry != null? entry.tile : null;
+		}
+	}
+	
+	/**
+	 * Returns cached tile without affecting the statistics, used when looking for
+	 * tiles of other zoom levels to draw instead of the missing ones.
+	 */
+	public Tile peekTile(int x, int y, int zoom) {
+		synchronized (tiles) {
+			Entry entry = tiles.get(Tile.key(x, y, zoom));
+			return entry != null? entry.tile : null;
+		}
+	}
+	
+	/**
+	 * Removes tiles without images, which are placeholders of the requested tiles.
+	 */
+	public void removePlaceholders() {
+		synchronized (tiles) {
+			// heap is reordered by removals, so placeholders are collected first
+			List<Entry> placeholders = new ArrayList<Entry>();
+			for (ZoomLevel level : levels) {
+				if (level != null) {
+					for (int i = 0; i < level.size; i++) {
+						if (level.heap[i].tile.getImage() == null) {
+							placeholders.add(level.heap[i]);
 						}
 					}
-					mostFarAway.recycle();
-					tiles.remove(tileKey(mostFarAway.getX(), mostFarAway.getY()));
 				}
 			}
-			String tileKey = tileKey(tile.getX(), tile.getY());
-			tiles.put(tileKey, tile);
+			for (Entry entry : placeholders) {
+				remove(entry.tile);
+			}
 		}
 	}
 	
-	public void remove(Tile tile) {
+	/**
+	 * Removes the tile if it is only a placeholder of a requested tile.
+	 */
+	public void removePlaceholder(Tile tile) {
 		synchronized (tiles) {
-			if (containsTile(tile)) {
-				tiles.remove(tile);
+			Entry entry = tiles.get(tile.getKey());
+			if (entry != null && entry.tile.getImage() == null) {
+				remove(entry.tile);
+			}
+		}
+	}
+	
+	private ZoomLevel getLevel(int zoom) {
+		if (zoom >= levels.length) {
+			ZoomLevel[] newLevels = new ZoomLevel[zoom+1];
+			System.arraycopy(levels, 0, newLevels, 0, levels.length);
+			levels = newLevels;
+		}
+		if (levels[zoom] == null) {
+			levels[zoom] = new ZoomLevel(zoom);
+		}
+		return levels[zoom];
+	}
+	
+	/**
+	 * Evicts tiles until the size of the cached bitmaps drops to the given size.
+	 * Victims are taken from the zoom level with the highest ratio of its size
+	 * to its budget, so the levels far from the current one are evicted first.
+	 * Placeholders of the requested tiles take no memory and are kept.
+	 */
+	private void trimToSize(long size) {
+		if (currentBytes <= size) {
+			return;
+		}
+		int currentZoom = map.getZoom();
+		while (currentBytes > size) {
+			ZoomLevel victim = null;
+			float victimRatio = 0;
+			for (ZoomLevel level : levels) {
+				if (level != null && level.bytes > 0) {
+					float ratio = level.bytes / (float) Math.max(getBudget(level.zoom, currentZoom), 1);
+					if (victim == null || ratio > victimRatio) {
+						victim = level;
+						victimRatio = ratio;
+					}
+				}
 			}
+			if (victim == null) {
+				break;
+			}
+			victim.updateCenter();
+			while (victim.heap[0].bytes == 0) {
+				skippedPlaceholders.add(victim.heap[0]);
+				victim.remove(0);
+			}
+			Entry mostFarAway = victim.heap[0];
+			victim.remove(0);
+			release(mostFarAway.tile);
+			tiles.remove(mostFarAway.tile.getKey());
+			currentBytes -= mostFarAway.bytes;
+			evictionCount++;
+			for (int i = 0; i < skippedPlaceholders.size(); i++) {
+				victim.add(skippedPlaceholders.get(i));
+			}
+			skippedPlaceholders.clear();
 		}
 	}
 	
-	public Tile getTile(int x, int y) {
-		String tileKey = tileKey(x, y);
-		return tiles.get(tileKey);
+	private void release(Tile tile) {
+		bitmapPool.put(tile.getImage());
+		tile.setImage(null);
+	}
+	
+	private static int sizeOf(Tile tile) {
+		Bitmap image = tile.getImage();
+		if (image == null) {
+			return 0;
+		}
+		return image.getRowBytes() * image.getHeight();
 	}
 	
-	private static final String tileKey(int x, int y) {
-		return x+":"+y;
+	/**
+	 * Tiles of one zoom level in a max-heap ordered by the distance from the
+	 * center tile, so the most far away tile is always on the top.
+	 */
+	private class ZoomLevel {
+		final int zoom;
+		Entry[] heap = new Entry[64];
+		int size;
+		long bytes;
+		
+		// center tile for which the distances in the heap were computed
+		private int centerX;
+		private int centerY;
+		private boolean hasCenter;
+		private Point centerTile = new Point();
+		private Point2D centerPoint = new Point2D();
+		
+		ZoomLevel(int zoom) {
+			this.zoom = zoom;
+		}
+		
+		/**
+		 * Re-keys the heap when the center tile has moved since the last eviction.
+		 * Distances are recomputed only here, so the cost of O(n) is paid once per
+		 * center change instead of on every inserted tile.
+		 */
+		void updateCenter() {
+			Point2D center = map.getCenter(centerPoint);
+			map.getLayer().getTileAt(center.x, center.y, zoom, centerTile);
+			if (hasCenter && centerX == centerTile.x && centerY == centerTile.y) {
+				return;
+			}
+			centerX = centerTile.x;
+			centerY = centerTile.y;
+			hasCenter = true;
+			for (int i = 0; i < size; i++) {
+				heap[i].distance = distance(heap[i].tile);
+			}
+			for (int i = size/2 - 1; i >= 0; i--) {
+				siftDown(i);
+			}
+		}
+		
+		int distance(Tile tile) {
+			if (!hasCenter) {
+				return 0;
+			}
+			return Math.abs(centerX-tile.getX())+Math.abs(centerY-tile.getY());
+		}
+		
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				heap[i] = null;
+			}
+			size = 0;
+			bytes = 0;
+			hasCenter = false;
+		}
+		
+		void add(Entry entry) {
+			if (size == heap.length) {
+				Entry[] newHeap = new Entry[heap.length*2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+			entry.index = size;
+			heap[size++] = entry;
+			bytes += entry.bytes;
+			siftUp(entry.index);
+		}
+		
+		void remove(int index) {
+			bytes -= heap[index].bytes;
+			size--;
+			if (index != size) {
+				heap[index] = heap[size];
+				heap[index].index = index;
+				heap[size] = null;
+				siftDown(index);
+				siftUp(index);
+			} else {
+				heap[size] = null;
+			}
+		}
+		
+		private void siftUp(int index) {
+			Entry entry = heap[index];
+			while (index > 0) {
+				int parent = (index-1)/2;
+				if (heap[parent].distance >= entry.distance) {
+					break;
+				}
+				heap[index] = heap[parent];
+				heap[index].index = index;
+				index = parent;
+			}
+			heap[index] = entry;
+			entry.index = index;
+		}
+		
+		private void siftDown(int index) {
+			Entry entry = heap[index];
+			int half = size/2;
+			while (index < half) {
+				int child = 2*index+1;
+				int right = child+1;
+				if (right < size && heap[right].distance > heap[child].distance) {
+					child = right;
+				}
+				if (entry.distance >= heap[child].distance) {
+					break;
+				}
+				heap[index] = heap[child];
+				heap[index].index = index;
+				index = child;
+			}
+			heap[index] = entry;
+			entry.index = index;
+		}
+	}
+	
+	private static class Entry {
+		Tile tile;
+		int bytes;
+		int distance;
+		int index;
+		
+		Entry(Tile tile) {
+			this.tile = tile;
+		}
 	}
 }
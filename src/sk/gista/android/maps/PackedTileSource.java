@@ -0,0 +1,109 @@
+package sk.gista.android.maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Read-only archive of encoded tiles in a single file, created by {@link TilePacker}.
+ * The whole file is memory mapped and tiles are located by a binary search over
+ * the index, so reading of a tile doesn't need any file operation.
+ * <p>
+ * Format (big endian):
+ * <pre>
+ * header: magic (int), version (int), tiles count (int)
+ * index:  sorted by Tile.key - key (long), offset of data (int), length of data (int)
+ * data:   concatenated encoded images
+ * </pre>
+ */
+public class PackedTileSource implements TileSource {
+	
+	static final int MAGIC = 0x47545041; // "GTPA"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 12;
+	static final int INDEX_ENTRY_SIZE = 16;
+	
+	private RandomAccessFile file;
+	private MappedByteBuffer data;
+	private int count;
+	
+	public PackedTileSource(File path) throws IOException {
+		file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+				throw new IOException("not a tiles archive: "+path);
+			}
+			if (data.getInt(4) != VERSION) {
+				throw new IOException("unsupported version of the tiles archive: "+data.getInt(4));
+			}
+			count = data.getInt(8);
+			if (count < 0 || HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > data.capacity()) {
+				throw new IOException("corrupted index of the tiles archive: "+path);
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+	
+	public int getTilesCount() {
+		return count;
+	}
+	
+	/**
+	 * Returns the tile data as a view of the mapped file, without copying.
+	 */
+	@Override
+	public ByteBuffer getTileData(Tile tile) throws IOException {
+		int index = find(tile.getKey());
+		if (index < 0) {
+			return null;
+		}
+		int entry = HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+		int offset = data.getInt(entry + 8);
+		int length = data.getInt(entry + 12);
+		if (offset < 0 || length < 0 || offset + length > data.capacity()) {
+			throw new IOException("invalid index entry of the tile "+tile.getX()+", "+tile.getY());
+		}
+		// position and limit of the shared buffer are never changed, so it can be duplicated concurrently
+		ByteBuffer tileData = data.duplicate();
+		tileData.limit(offset + length);
+		tileData.position(offset);
+		return tileData;
+	}
+	
+	/**
+	 * @return position of the key in the index or -1
+	 */
+	private int find(long key) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleKey = data.getLong(HEADER_SIZE + middle * INDEX_ENTRY_SIZE);
+			if (middleKey < key) {
+				low = middle + 1;
+			} else if (middleKey > key) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	public void close() {
+		try {
+			// mapping itself is released when the buffer is garbage collected
+			file.close();
+		} catch (IOException e) {}
+	}
+}
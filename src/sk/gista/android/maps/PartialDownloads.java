@@ -0,0 +1,47 @@
+package sk.gista.android.maps;
+
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Beginnings of the tile downloads which were cancelled, kept to resume them
+ * with a range request when the same tile is requested again.
+ */
+class PartialDownloads {
+	
+	private static final int MAX_ENTRIES = 32;
+	
+	private LinkedHashMap<Long, Partial> partials = new LinkedHashMap<Long, Partial>() {
+		
+		@Override
+		protected boolean removeEldestEntry(Entry<Long, Partial> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	
+	/**
+	 * Stores copy of the downloaded part of the tile.
+	 * 
+	 * @param validator ETag or Last-Modified value of the response, which is
+	 * used in If-Range header of the resumed request
+	 */
+	public synchronized void put(long key, byte[] data, int length, String validator) {
+		Partial partial = new Partial();
+		partial.content = new byte[length];
+		System.arraycopy(data, 0, partial.content, 0, length);
+		partial.validator = validator;
+		partials.put(key, partial);
+	}
+	
+	/**
+	 * Removes and returns partially downloaded tile.
+	 */
+	public synchronized Partial take(long key) {
+		return partials.remove(key);
+	}
+	
+	static class Partial {
+		byte[] content;
+		String validator;
+	}
+}
@@ -0,0 +1,361 @@
+package sk.gista.android.maps;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Downloads all tiles of a region for the given range of zoom levels into the
+ * persistent tiles store, so the map can be used without connection.
+ * <p>
+ * Tiles which are already stored are skipped, so an interrupted or cancelled
+ * seeding is resumed by starting it again with the same parameters.
+ */
+public class RegionSeeder {
+	
+	private static final String TAG = RegionSeeder.class.getSimpleName();
+	
+	// estimated size of a tile when there are no stored tiles to measure
+	private static final int DEFAULT_TILE_SIZE = 15 * 1024;
+	
+	private TmsLayer layer;
+	private DiskCache store;
+	private TileHttpClient httpClient;
+	private Handler handler;
+	
+	private int threadsCount = 2;
+	private long requestsDelay = 0;
+	
+	// state of the running seeding
+	private volatile boolean cancelled;
+	private SeedThread[] threads;
+	private TileRange[] ranges;
+	private int rangeIndex;
+	private int nextX;
+	private int nextY;
+	private int totalCount;
+	private int processedCount;
+	private int downloadedCount;
+	private int failedCount;
+	private long downloadedBytes;
+	private int runningThreads;
+	
+	public RegionSeeder(TmsLayer layer, DiskCache store, TileHttpClient httpClient) {
+		this.layer = layer;
+		this.store = store;
+		this.httpClient = httpClient;
+		handler = new Handler(Looper.getMainLooper());
+	}
+	
+	/**
+	 * Sets count of the parallel downloads (2 by default).
+	 */
+	public void setThreadsCount(int threadsCount) {
+		this.threadsCount = threadsCount;
+	}
+	
+	/**
+	 * Sets delay between requests of one download thread in milliseconds, to
+	 * limit the load of the tile server (no delay by default).
+	 */
+	public void setRequestsDelay(long delay) {
+		this.requestsDelay = delay;
+	}
+	
+	/**
+	 * Computes count of the tiles in the region and estimates size of their data,
+	 * based on the average size of the already stored tiles.
+	 */
+	public Estimate estimate(BBox region, int minZoom, int maxZoom) {
+		TileRange[] ranges = computeRanges(region, minZoom, maxZoom);
+		Estimate estimate = new Estimate();
+		for (TileRange range : ranges) {
+			estimate.tilesCount += range.count();
+		}
+		int storedCount = store.getTilesCount();
+		long tileSize = storedCount > 0? store.getCurrentBytes() / storedCount : DEFAULT_TILE_SIZE;
+		estimate.bytes = estimate.tilesCount * tileSize;
+		return estimate;
+	}
+	
+	/**
+	 * Starts downloading of the tiles in the background. Listener is notified
+	 * on the UI thread.
+	 */
+	public synchronized void start(BBox region, int minZoom, int maxZoom, SeedListener listener) {
+		if (isRunning()) {
+			throw new IllegalStateException("seeding is already running");
+		}
+		ranges = computeRanges(region, minZoom, maxZoom);
+		rangeIndex = 0;
+		totalCount = 0;
+		for (TileRange range : ranges) {
+			totalCount += range.count();
+		}
+		if (ranges.length > 0) {
+			nextX = ranges[0].minX;
+			nextY = ranges[0].minY;
+		}
+		processedCount = 0;
+		downloadedCount = 0;
+		failedCount = 0;
+		downloadedBytes = 0;
+		cancelled = false;
+		Log.i(TAG, "Seeding "+totalCount+" tiles of layer "+layer.getName());
+		
+		runningThreads = threadsCount;
+		threads = new SeedThread[threadsCount];
+		for (int i = 0; i < threadsCount; i++) {
+			threads[i] = new SeedThread(listener);
+			threads[i].start();
+		}
+	}
+	
+	/**
+	 * Stops the seeding, downloads in progress are aborted.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		if (threads != null) {
+			for (SeedThread thread : threads) {
+				thread.abort();
+			}
+		}
+	}
+	
+	public synchronized boolean isRunning() {
+		return runningThreads > 0;
+	}
+	
+	public synchronized int getProcessedCount() {
+		return processedCount;
+	}
+	
+	public synchronized int getTotalCount() {
+		return totalCount;
+	}
+	
+	private TileRange[] computeRanges(BBox region, int minZoom, int maxZoom) {
+		double[] resolutions = layer.getResolutions();
+		minZoom = Math.max(minZoom, 0);
+		maxZoom = Math.min(maxZoom, resolutions.length-1);
+		if (maxZoom < minZoom) {
+			return new TileRange[0];
+		}
+		TileRange[] ranges = new TileRange[maxZoom-minZoom+1];
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+			Point first = layer.getTileAt(region.minX, region.minY, zoom, new Point());
+			Point last = layer.getTileAt(region.maxX, region.maxY, zoom, new Point());
+			// same extent as the map uses for the visible and prefetched tiles
+			Point layerLast = layer.getLastTile(zoom, new Point());
+			
+			TileRange range = new TileRange();
+			range.zoom = zoom;
+			range.minX = Math.max(first.x, 0);
+			range.minY = Math.max(first.y, 0);
+			range.maxX = Math.min(last.x, layerLast.x);
+			range.maxY = Math.min(last.y, layerLast.y);
+			ranges[zoom-minZoom] = range;
+		}
+		return ranges;
+	}
+	
+	/**
+	 * @return next tile to download or null when all tiles were processed
+	 */
+	private synchronized Tile nextTile() {
+		while (!cancelled && rangeIndex < ranges.length) {
+			TileRange range = ranges[rangeIndex];
+			if (nextX > range.maxX || nextY > range.maxY) {
+				rangeIndex++;
+				if (rangeIndex < ranges.length) {
+					nextX = ranges[rangeIndex].minX;
+					nextY = ranges[rangeIndex].minY;
+				}
+				continue;
+			}
+			Tile tile = new Tile(nextX, nextY, range.zoom, null);
+			nextY++;
+			if (nextY > range.maxY) {
+				nextY = range.minY;
+				nextX++;
+			}
+			return tile;
+		}
+		return null;
+	}
+	
+	private synchronized void tileProcessed(boolean downloaded, boolean failed, int bytes) {
+		processedCount++;
+		if (downloaded) {
+			downloadedCount++;
+			downloadedBytes += bytes;
+		}
+		if (failed) {
+			failedCount++;
+		}
+	}
+	
+	class SeedThread extends Thread {
+		
+		private SeedListener listener;
+		private volatile HttpGet currentRequest;
+		private byte[] buffer = new byte[32 * 1024];
+		
+		public SeedThread(SeedListener listener) {
+			super("RegionSeeder");
+			this.listener = listener;
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+		
+		public void abort() {
+			HttpGet request = currentRequest;
+			if (request != null) {
+				request.abort();
+			}
+		}
+		
+		@Override
+		public void run() {
+			Tile tile;
+			while ((tile = nextTile()) != null) {
+				if (store.contains(layer.getName(), tile)) {
+					tileProcessed(false, false, 0);
+				} else {
+					int bytes = download(tile);
+					tileProcessed(bytes > 0, bytes <= 0 && !cancelled, bytes);
+					if (requestsDelay > 0) {
+						try {
+							Thread.sleep(requestsDelay);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+				notifyProgress();
+			}
+			final boolean finished;
+			synchronized (RegionSeeder.this) {
+				runningThreads--;
+				finished = runningThreads == 0;
+			}
+			if (finished && listener != null) {
+				handler.post(new Runnable() {
+					
+					@Override
+					public void run() {
+						Log.i(TAG, "Seeding finished: downloaded "+downloadedCount+" tiles ("+downloadedBytes+
+								" bytes), failed "+failedCount+" tiles");
+						listener.onFinished(cancelled, failedCount);
+					}
+				});
+			}
+		}
+		
+		private void notifyProgress() {
+			if (listener == null) {
+				return;
+			}
+			final int processed;
+			final int total;
+			synchronized (RegionSeeder.this) {
+				processed = processedCount;
+				total = totalCount;
+			}
+			handler.post(new Runnable() {
+				
+				@Override
+				public void run() {
+					listener.onProgress(processed, total);
+				}
+			});
+		}
+		
+		/**
+		 * @return size of the downloaded tile or 0 if the download failed
+		 */
+		private int download(Tile tile) {
+			HttpGet get = new HttpGet(layer.getUrl(tile));
+			currentRequest = get;
+			if (cancelled) {
+				return 0;
+			}
+			try {
+				HttpResponse response = httpClient.execute(get);
+				HttpEntity entity = response.getEntity();
+				if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+					Log.w(TAG, "unexpected response status: "+response.getStatusLine());
+					if (entity != null) {
+						entity.consumeContent();
+					}
+					return 0;
+				}
+				InputStream is = entity.getContent();
+				int length = 0;
+				try {
+					int result;
+					while ((result = is.read(buffer, length, buffer.length-length)) != -1) {
+						length += result;
+						if (length == buffer.length) {
+							byte[] newBuffer = new byte[buffer.length*2];
+							System.arraycopy(buffer, 0, newBuffer, 0, length);
+							buffer = newBuffer;
+						}
+					}
+				} finally {
+					is.close();
+				}
+				byte[] content = new byte[length];
+				System.arraycopy(buffer, 0, content, 0, length);
+				if (store.putNow(layer.getName(), tile, CacheHeaders.createEntry(content, response))) {
+					return length;
+				}
+			} catch (IOException e) {
+				if (!cancelled) {
+					Log.e(TAG, "downloading of the tile failed", e);
+				}
+				get.abort();
+			} finally {
+				currentRequest = null;
+			}
+			return 0;
+		}
+	}
+	
+	static class TileRange {
+		int zoom;
+		int minX;
+		int minY;
+		int maxX;
+		int maxY;
+		
+		int count() {
+			if (maxX < minX || maxY < minY) {
+				return 0;
+			}
+			return (maxX-minX+1)*(maxY-minY+1);
+		}
+	}
+	
+	public static class Estimate {
+		public int tilesCount;
+		public long bytes;
+	}
+	
+	public interface SeedListener {
+		void onProgress(int processedTiles, int totalTiles);
+		void onFinished(boolean cancelled, int failedTiles);
+	}
+}
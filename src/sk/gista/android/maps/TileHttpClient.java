@@ -0,0 +1,142 @@
+package sk.gista.android.maps;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Thread safe HTTP client shared by all tile downloads. Connections to the
+ * tile servers are kept alive and reused from a pool with a limited number of
+ * connections per host.
+ */
+public class TileHttpClient {
+	
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 4;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 20000;
+	
+	private static final int MAX_TOTAL_CONNECTIONS = 20;
+	private static final long MAX_IDLE_TIME = 30000;
+	
+	private static TileHttpClient instance;
+	
+	private HttpClient client;
+	private ThreadSafeClientConnManager connectionManager;
+	
+	// statistics
+	private AtomicInteger requestsCount = new AtomicInteger();
+	private AtomicInteger openedConnectionsCount = new AtomicInteger();
+	
+	public static synchronized TileHttpClient getInstance() {
+		if (instance == null) {
+			instance = new TileHttpClient(DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+					DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+		}
+		return instance;
+	}
+	
+	/**
+	 * @param maxConnectionsPerRoute maximal count of opened connections to one host
+	 * @param connectTimeout connection timeout in milliseconds
+	 * @param readTimeout socket read timeout in milliseconds
+	 */
+	public TileHttpClient(int maxConnectionsPerRoute, int connectTimeout, int readTimeout) {
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+		ConnManagerParams.setTimeout(params, connectTimeout);
+		
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		
+		connectionManager = new ThreadSafeClientConnManager(params, registry) {
+			
+			@Override
+			protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemeRegistry) {
+				return new CountingConnectionOperator(schemeRegistry);
+			}
+		};
+		client = new DefaultHttpClient(connectionManager, params);
+	}
+	
+	/**
+	 * Executes the request. Content of the response must be fully read or
+	 * the request aborted, to return the connection back to the pool.
+	 */
+	public HttpResponse execute(HttpUriRequest request) throws IOException {
+		requestsCount.incrementAndGet();
+		return client.execute(request);
+	}
+	
+	/**
+	 * Closes connections which weren't used for a while.
+	 */
+	public void closeIdleConnections() {
+		connectionManager.closeIdleConnections(MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+	}
+	
+	public void shutdown() {
+		connectionManager.shutdown();
+	}
+	
+	public int getRequestsCount() {
+		return requestsCount.get();
+	}
+	
+	public int getOpenedConnectionsCount() {
+		return openedConnectionsCount.get();
+	}
+	
+	/**
+	 * @return fraction of the requests which were sent over already opened connection
+	 */
+	public float getConnectionReuseRate() {
+		int requests = requestsCount.get();
+		if (requests == 0) {
+			return 0;
+		}
+		return 1f - Math.min(openedConnectionsCount.get(), requests) / (float) requests;
+	}
+	
+	class CountingConnectionOperator extends DefaultClientConnectionOperator {
+		
+		public CountingConnectionOperator(SchemeRegistry schemes) {
+			super(schemes);
+		}
+		
+		@Override
+		public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+				HttpContext context, HttpParams params) throws IOException {
+			openedConnectionsCount.incrementAndGet();
+			super.openConnection(conn, target, local, context, params);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package sk.gista.android.maps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Builds archives read by {@link PackedTileSource}, from a directory with TMS
+ * tiles layout (zoom/x/y.format) or from the tiles of a layer in the disk cache.
+ * <p>
+ * Usage from the command line: TilePacker &lt;tiles directory&gt; &lt;output file&gt;
+ */
+public class TilePacker {
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: TilePacker <tiles directory> <output file>");
+			System.exit(1);
+		}
+		int count = packDirectory(new File(args[0]), new File(args[1]));
+		System.out.println("Packed "+count+" tiles into "+args[1]);
+	}
+	
+	/**
+	 * Packs all tiles from the directory with zoom/x/y.format structure.
+	 *
+	 * @return count of the packed tiles
+	 */
+	public static int packDirectory(File directory, File output) throws IOException {
+		List<PackedTile> tiles = new ArrayList<PackedTile>();
+		for (File zoomDir : listDirectory(directory)) {
+			for (File xDir : listDirectory(zoomDir)) {
+				for (File tileFile : listDirectory(xDir)) {
+					String name = tileFile.getName();
+					int dot = name.indexOf('.');
+					try {
+						int zoom = Integer.parseInt(zoomDir.getName());
+						int x = Integer.parseInt(xDir.getName());
+						int y = Integer.parseInt(dot != -1? name.substring(0, dot) : name);
+						tiles.add(new PackedTile(new Tile(x, y, zoom, null), tileFile, null, null));
+					} catch (NumberFormatException e) {
+						// not a tile
+					}
+				}
+			}
+		}
+		return write(tiles, output);
+	}
+	
+	/**
+	 * Packs valid tiles of the layer stored in the disk cache.
+	 *
+	 * @return count of the packed tiles
+	 */
+	public static int packDiskCache(DiskCache cache, String layerName, File output) throws IOException {
+		List<PackedTile> tiles = new ArrayList<PackedTile>();
+		for (File zoomDir : listDirectory(new File(cache.getDirectory(), layerName))) {
+			for (File tileFile : listDirectory(zoomDir)) {
+				String name = tileFile.getName();
+				int separator = name.indexOf('_');
+				if (separator == -1) {
+					continue;
+				}
+				try {
+					int zoom = Integer.parseInt(zoomDir.getName());
+					int x = Integer.parseInt(name.substring(0, separator));
+					int y = Integer.parseInt(name.substring(separator+1));
+					Tile tile = new Tile(x, y, zoom, null);
+					if (cache.contains(layerName, tile)) {
+						tiles.add(new PackedTile(tile, null, cache, layerName));
+					}
+				} catch (NumberFormatException e) {
+					// not a tile
+				}
+			}
+		}
+		return write(tiles, output);
+	}
+	
+	/**
+	 * @return count of the written tiles
+	 */
+	private static int write(List<PackedTile> tiles, File output) throws IOException {
+		Collections.sort(tiles);
+		RandomAccessFile out = new RandomAccessFile(output, "rw");
+		try {
+			out.setLength(0);
+			out.writeInt(PackedTileSource.MAGIC);
+			out.writeInt(PackedTileSource.VERSION);
+			out.writeInt(tiles.size());
+			// data are written behind the space reserved for the index
+			long indexPosition = out.getFilePointer();
+			long dataPosition = indexPosition + (long) tiles.size() * PackedTileSource.INDEX_ENTRY_SIZE;
+			out.seek(dataPosition);
+			int written = 0;
+			for (PackedTile tile : tiles) {
+				byte[] content = tile.read();
+				if (content == null) {
+					continue;
+				}
+				if (out.getFilePointer() + content.length > Integer.MAX_VALUE) {
+					throw new IOException("tiles archive is too large");
+				}
+				long offset = out.getFilePointer();
+				out.write(content);
+				dataPosition = out.getFilePointer();
+				
+				out.seek(indexPosition + written * PackedTileSource.INDEX_ENTRY_SIZE);
+				out.writeLong(tile.tile.getKey());
+				out.writeInt((int) offset);
+				out.writeInt(content.length);
+				out.seek(dataPosition);
+				written++;
+			}
+			if (written != tiles.size()) {
+				// some cached tiles were evicted during the packing, unused index entries are ignored
+				out.seek(indexPosition - 4);
+				out.writeInt(written);
+			}
+			return written;
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static List<File> listDirectory(File directory) {
+		List<File> files = new ArrayList<File>();
+		File[] list = directory.listFiles();
+		if (list != null) {
+			Collections.addAll(files, list);
+		}
+		return files;
+	}
+	
+	/**
+	 * Tile stored in a file or in the disk cache.
+	 */
+	static class PackedTile implements Comparable<PackedTile> {
+		final Tile tile;
+		private File file;
+		private DiskCache cache;
+		private String layerName;
+		
+		PackedTile(Tile tile, File file, DiskCache cache, String layerName) {
+			this.tile = tile;
+			this.file = file;
+			this.cache = cache;
+			this.layerName = layerName;
+		}
+		
+		/**
+		 * @return encoded image or null if the tile is not available anymore
+		 */
+		byte[] read() throws IOException {
+			if (cache != null) {
+				DiskCache.Entry entry = cache.get(layerName, tile);
+				return entry != null? entry.content : null;
+			}
+			byte[] content = new byte[(int) file.length()];
+			FileInputStream in = new FileInputStream(file);
+			try {
+				int length = 0;
+				while (length < content.length) {
+					int result = in.read(content, length, content.length-length);
+					if (result == -1) {
+						throw new IOException("unexpected end of file "+file);
+					}
+					length += result;
+				}
+			} finally {
+				in.close();
+			}
+			return content;
+		}
+		
+		@Override
+		public int compareTo(PackedTile another) {
+			long key = tile.getKey();
+			long anotherKey = another.tile.getKey();
+			return key < anotherKey? -1 : (key > anotherKey? 1 : 0);
+		}
+	}
+}
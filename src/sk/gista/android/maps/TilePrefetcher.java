@@ -0,0 +1,168 @@
+package sk.gista.android.maps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Rect;
+
+import sk.gista.android.maps.Layer.Tile;
+import sk.gista.android.utils.LongHashMap;
+
+/**
+ * Requests tiles around the visible area before they become visible. The area
+ * is extended by a ring of tiles on each side and further in the direction of
+ * the drag, proportionally to its speed. During pinch zoom, tiles of the next
+ * zoom level around the pinch center are requested too.
+ * <p>
+ * Prefetched tiles have lower priority than the visible ones, and requests
+ * of tiles which fall out of the predicted area are cancelled.
+ * <p>
+ * Refreshing of the prediction is called while drawing frames, so it doesn't
+ * allocate when the predicted tiles are already cached.
+ */
+public class TilePrefetcher {
+	
+	// how far ahead (in seconds) the drag is predicted
+	private static final float LOOKAHEAD_TIME = 0.5f;
+	private static final int MAX_LOOKAHEAD_TILES = 4;
+	
+	private TilesManager tilesManager;
+	private int ringSize = 1;
+	
+	// requested tiles which may still be loading, and tiles of the new prediction,
+	// the maps are swapped when the prediction changes
+	private LongHashMap<Tile> pending = new LongHashMap<Tile>();
+	private LongHashMap<Tile> wanted = new LongHashMap<Tile>();
+	// tiles which aren't used by the tiles manager, reused for new requests
+	private List<Tile> freeTiles = new ArrayList<Tile>();
+	
+	// last predicted areas
+	private int zoom = -1;
+	private Rect range = new Rect();
+	private int zoomTarget = -1;
+	private Rect zoomRange = new Rect();
+	private Rect newRange = new Rect();
+	
+	public TilePrefetcher(TilesManager tilesManager) {
+		this.tilesManager = tilesManager;
+	}
+	
+	/**
+	 * Sets width of the ring of tiles prefetched around the visible area (1 by default).
+	 */
+	public void setRingSize(int ringSize) {
+		this.ringSize = ringSize;
+	}
+	
+	/**
+	 * @return last predicted range of tiles of the current zoom level, must not be modified
+	 */
+	public Rect getRange() {
+		return range;
+	}
+	
+	/**
+	 * Updates predicted area for the current visible tiles.
+	 * 
+	 * @param visible range of the visible tiles (inclusive)
+	 * @param maxTileX index of the last tile of the layer in x axis
+	 * @param maxTileY index of the last tile of the layer in y axis
+	 * @param velocityX speed of the drag in tiles per second
+	 * @param velocityY speed of the drag in tiles per second
+	 */
+	public void update(int zoom, Rect visible, int maxTileX, int maxTileY, float velocityX, float velocityY) {
+		int aheadX = Math.min(Math.round(Math.abs(velocityX) * LOOKAHEAD_TIME), MAX_LOOKAHEAD_TILES);
+		int aheadY = Math.min(Math.round(Math.abs(velocityY) * LOOKAHEAD_TIME), MAX_LOOKAHEAD_TILES);
+		newRange.left = Math.max(visible.left - ringSize - (velocityX < 0? aheadX : 0), 0);
+		newRange.right = Math.min(visible.right + ringSize + (velocityX > 0? aheadX : 0), maxTileX);
+		newRange.top = Math.max(visible.top - ringSize - (velocityY < 0? aheadY : 0), 0);
+		newRange.bottom = Math.min(visible.bottom + ringSize + (velocityY > 0? aheadY : 0), maxTileY);
+		if (zoom == this.zoom && newRange.equals(range)) {
+			return;
+		}
+		if (zoom != this.zoom && zoom == zoomTarget) {
+			// predicted zoom happened, its tiles are now handled as the current level
+			zoomTarget = -1;
+		}
+		this.zoom = zoom;
+		range.set(newRange);
+		refresh();
+	}
+	
+	/**
+	 * Sets tiles of other zoom level to prefetch (during pinch zoom), or
+	 * clears them when zoomTarget is -1.
+	 */
+	public void updateZoomTarget(int zoomTarget, Rect tiles) {
+		if (zoomTarget == this.zoomTarget && (zoomTarget == -1 || tiles.equals(zoomRange))) {
+			return;
+		}
+		this.zoomTarget = zoomTarget;
+		if (tiles != null) {
+			zoomRange.set(tiles);
+		}
+		refresh();
+	}
+	
+	/**
+	 * Cancels all prefetch requests.
+	 */
+	public void cancel() {
+		for (int i = 0; i < pending.tableSize(); i++) {
+			Tile tile = pending.valueAt(i);
+			if (tile != null && tilesManager.cancelPrefetch(tile)) {
+				freeTiles.add(tile);
+			}
+		}
+		pending.clear();
+		zoom = -1;
+		zoomTarget = -1;
+	}
+	
+	private void refresh() {
+		addRange(zoom, range);
+		if (zoomTarget != -1) {
+			addRange(zoomTarget, zoomRange);
+		}
+		// the prediction changed, tiles outside of the new one aren't needed
+		for (int i = 0; i < pending.tableSize(); i++) {
+			Tile tile = pending.valueAt(i);
+			if (tile != null && !wanted.containsKey(pending.keyAt(i))
+					&& tilesManager.cancelPrefetch(tile)) {
+				freeTiles.add(tile);
+			}
+		}
+		LongHashMap<Tile> previous = pending;
+		pending = wanted;
+		wanted = previous;
+		wanted.clear();
+	}
+	
+	private void addRange(int zoom, Rect tiles) {
+		for (int x = tiles.left; x <= tiles.right; x++) {
+			for (int y = tiles.top; y <= tiles.bottom; y++) {
+				long key = Tile.key(x, y, zoom);
+				Tile tile = pending.get(key);
+				if (tile == null) {
+					tile = obtainTile(x, y, zoom);
+					if (!tilesManager.prefetchTile(tile)) {
+						// already cached or loading as visible tile
+						freeTiles.add(tile);
+						continue;
+					}
+				}
+				wanted.put(key, tile);
+			}
+		}
+	}
+	
+	private Tile obtainTile(int x, int y, int zoom) {
+		int count = freeTiles.size();
+		if (count == 0) {
+			return new Tile(x, y, zoom, null);
+		}
+		Tile tile = freeTiles.remove(count-1);
+		tile.set(x, y, zoom);
+		return tile;
+	}
+}
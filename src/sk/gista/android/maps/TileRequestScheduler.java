@@ -0,0 +1,490 @@
+package sk.gista.android.maps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+import sk.gista.android.utils.LongHashMap;
+
+/**
+ * Loads tiles on a fixed pool of worker threads. Waiting requests are ordered
+ * by the distance of the tile from the center of the map, so the tiles in the
+ * middle of the screen are loaded first, and requests for the same tile are
+ * merged. Results are delivered on the UI thread, unless another executor is set.
+ */
+public class TileRequestScheduler {
+	
+	private static final String TAG = TileRequestScheduler.class.getSimpleName();
+	
+	// priority penalty of the tiles from other than current zoom level
+	private static final int OTHER_ZOOM_PENALTY = 1000;
+	// priority penalty of the revalidation of tiles, which are already displayed
+	private static final int REVALIDATION_PENALTY = 500;
+	// priority penalty of the tiles which aren't visible yet
+	private static final int PREFETCH_PENALTY = 200;
+	
+	private PriorityQueue<TileRequest> queue = new PriorityQueue<TileRequest>();
+	// queued and running requests
+	private LongHashMap<TileRequest> requests = new LongHashMap<TileRequest>();
+	
+	private List<Worker> workers;
+	private Listener listener;
+	private Handler handler;
+	private volatile Executor resultExecutor;
+	private boolean running = true;
+	private long sequence;
+	
+	private int centerX;
+	private int centerY;
+	private int centerZoom;
+	
+	/**
+	 * @param loaders one loader for each worker thread
+	 */
+	public TileRequestScheduler(List<? extends TileLoader> loaders, Listener listener) {
+		this.listener = listener;
+		handler = new Handler(Looper.getMainLooper());
+		workers = new ArrayList<Worker>(loaders.size());
+		for (TileLoader loader : loaders) {
+			Worker worker = new Worker(loader);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+	
+	/**
+	 * Sets executor which delivers the results to the listener, or null to
+	 * deliver them on the UI thread.
+	 */
+	public void setResultExecutor(Executor executor) {
+		resultExecutor = executor;
+	}
+	
+	/**
+	 * Schedules loading of the tile, unless the same tile is already waiting or
+	 * being loaded.
+	 *
+	 * @return request of the tile
+	 */
+	public TileRequest request(Tile tile) {
+		return request(tile, false);
+	}
+	
+	/**
+	 * @param revalidation true if the tile is already displayed and it only has to
+	 * be checked with the server
+	 */
+	public synchronized TileRequest request(Tile tile, boolean revalidation) {
+		long key = tile.getKey();
+		TileRequest request = requests.get(key);
+		if (request == null) {
+			request = new TileRequest(tile, sequence++, revalidation);
+			request.priority = priority(request);
+			requests.put(key, request);
+			queue.add(request);
+			notify();
+		} else if (request.prefetch && !revalidation) {
+			// prefetched tile became visible
+			request.prefetch = false;
+			if (queue.remove(request)) {
+				request.priority = priority(request);
+				queue.add(request);
+			}
+		}
+		return request;
+	}
+	
+	/**
+	 * Schedules loading of a tile which is expected to become visible soon, with
+	 * lower priority than the visible tiles.
+	 */
+	public synchronized TileRequest prefetch(Tile tile) {
+		long key = tile.getKey();
+		TileRequest request = requests.get(key);
+		if (request == null) {
+			request = new TileRequest(tile, sequence++, false);
+			request.prefetch = true;
+			request.priority = priority(request);
+			requests.put(key, request);
+			queue.add(request);
+			notify();
+		}
+		return request;
+	}
+	
+	/**
+	 * Cancels request of the tile, if it was only prefetched.
+	 *
+	 * @return the cancelled request or null
+	 */
+	public TileRequest cancelPrefetch(Tile tile) {
+		TileRequest request;
+		synchronized (this) {
+			request = requests.get(tile.getKey());
+			if (request == null || !request.prefetch) {
+				return null;
+			}
+			remove(request);
+		}
+		request.abort();
+		return request;
+	}
+	
+	/**
+	 * Sets position of the center tile, which is used to order waiting requests.
+	 */
+	public synchronized void setCenter(int x, int y, int zoom) {
+		if (x == centerX && y == centerY && zoom == centerZoom) {
+			return;
+		}
+		centerX = x;
+		centerY = y;
+		centerZoom = zoom;
+		if (queue.size() > 1) {
+			List<TileRequest> waiting = new ArrayList<TileRequest>(queue);
+			queue.clear();
+			for (TileRequest request : waiting) {
+				request.priority = priority(request);
+				queue.add(request);
+			}
+		}
+	}
+	
+	public void cancel(Tile tile) {
+		TileRequest request;
+		synchronized (this) {
+			request = requests.get(tile.getKey());
+			if (request == null) {
+				return;
+			}
+			remove(request);
+		}
+		request.abort();
+	}
+	
+	/**
+	 * Cancels requests of the tiles from the given zoom level, which are outside
+	 * of the range for longer than the grace period. Tiles moving near the edge
+	 * of the screen aren't cancelled and requested again repeatedly.
+	 * 
+	 * @param range tiles which shouldn't be cancelled (inclusive)
+	 * @param gracePeriod time in milliseconds
+	 * @return tiles of the cancelled requests
+	 */
+	public List<Tile> cancelOutside(int zoom, Rect range, long gracePeriod) {
+		List<TileRequest> cancelled = null;
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (int i = 0; i < requests.tableSize(); i++) {
+				TileRequest request = requests.valueAt(i);
+				if (request == null || request.tile.getZoomLevel() != zoom) {
+					continue;
+				}
+				Tile tile = request.tile;
+				if (tile.getX() >= range.left && tile.getX() <= range.right
+						&& tile.getY() >= range.top && tile.getY() <= range.bottom) {
+					request.outsideSince = 0;
+				} else if (request.outsideSince == 0) {
+					request.outsideSince = now;
+				} else if (now - request.outsideSince > gracePeriod) {
+					if (cancelled == null) {
+						cancelled = new ArrayList<TileRequest>();
+					}
+					cancelled.add(request);
+				}
+			}
+			if (cancelled == null) {
+				return Collections.emptyList();
+			}
+			for (TileRequest request : cancelled) {
+				remove(request);
+			}
+		}
+		return abort(cancelled);
+	}
+	
+	/**
+	 * Cancels requests of the tiles from zoom levels more distant from the given
+	 * zoom level than maxDistance.
+	 *
+	 * @return tiles of the cancelled requests
+	 */
+	public List<Tile> cancelOtherZoomLevels(int zoom, int maxDistance) {
+		List<TileRequest> cancelled = new ArrayList<TileRequest>();
+		synchronized (this) {
+			for (int i = 0; i < requests.tableSize(); i++) {
+				TileRequest request = requests.valueAt(i);
+				if (request != null && Math.abs(request.tile.getZoomLevel()-zoom) > maxDistance) {
+					cancelled.add(request);
+				}
+			}
+			for (TileRequest request : cancelled) {
+				remove(request);
+			}
+		}
+		return abort(cancelled);
+	}
+	
+	public void cancelAll() {
+		List<TileRequest> cancelled = new ArrayList<TileRequest>();
+		synchronized (this) {
+			for (int i = 0; i < requests.tableSize(); i++) {
+				TileRequest request = requests.valueAt(i);
+				if (request != null) {
+					request.cancelled = true;
+					cancelled.add(request);
+				}
+			}
+			requests.clear();
+			queue.clear();
+		}
+		abort(cancelled);
+	}
+	
+	public synchronized int getPendingCount() {
+		return requests.size();
+	}
+	
+	/**
+	 * Cancels all requests and stops worker threads.
+	 */
+	public void shutdown() {
+		cancelAll();
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Removes the request and marks it as cancelled, its download is aborted
+	 * later without holding the lock, see {@link #abort(List)}.
+	 */
+	private void remove(TileRequest request) {
+		requests.remove(request.key);
+		queue.remove(request);
+		request.cancelled = true;
+	}
+	
+	/**
+	 * Aborts running downloads of the cancelled requests. Aborting closes the
+	 * connection, so it is called after the lock of the scheduler is released,
+	 * not to block the workers and the UI thread.
+	 * 
+	 * @return tiles of the requests
+	 */
+	private static List<Tile> abort(List<TileRequest> cancelled) {
+		List<Tile> tiles = new ArrayList<Tile>(cancelled.size());
+		for (TileRequest request : cancelled) {
+			request.abort();
+			tiles.add(request.tile);
+		}
+		return tiles;
+	}
+	
+	private int priority(TileRequest request) {
+		Tile tile = request.tile;
+		int distance = Math.abs(centerX-tile.getX())+Math.abs(centerY-tile.getY());
+		if (tile.getZoomLevel() != centerZoom) {
+			distance += OTHER_ZOOM_PENALTY*Math.abs(centerZoom-tile.getZoomLevel());
+		}
+		if (request.revalidation) {
+			distance += REVALIDATION_PENALTY;
+		}
+		if (request.prefetch) {
+			distance += PREFETCH_PENALTY;
+		}
+		return distance;
+	}
+	
+	private synchronized TileRequest takeRequest() throws InterruptedException {
+		while (running && queue.isEmpty()) {
+			wait();
+		}
+		if (!running) {
+			return null;
+		}
+		TileRequest request = queue.poll();
+		request.started = true;
+		return request;
+	}
+	
+	private synchronized boolean finish(TileRequest request) {
+		if (requests.get(request.key) == request) {
+			requests.remove(request.key);
+		}
+		return !request.cancelled;
+	}
+	
+	class Worker extends Thread {
+		
+		private TileLoader loader;
+		
+		public Worker(TileLoader loader) {
+			super("TileWorker");
+			this.loader = loader;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				final TileRequest request;
+				try {
+					request = takeRequest();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (request == null) {
+					return;
+				}
+				Tile result = null;
+				try {
+					result = loader.load(request);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "loading of the tile failed", e);
+				}
+				final Tile loaded = result != null? result : new Tile(request.tile.getX(),
+						request.tile.getY(), request.tile.getZoomLevel(), null);
+				Runnable delivery = new Runnable() {
+					
+					@Override
+					public void run() {
+						if (finish(request)) {
+							listener.onRequestFinished(request, loaded);
+						} else {
+							listener.onRequestCancelled(request, loaded);
+						}
+					}
+				};
+				Executor executor = resultExecutor;
+				if (executor != null) {
+					executor.execute(delivery);
+				} else {
+					handler.post(delivery);
+				}
+			}
+		}
+	}
+	
+	public static class TileRequest implements Comparable<TileRequest> {
+		final Tile tile;
+		final long key;
+		private final long sequence;
+		final boolean revalidation;
+		boolean prefetch;
+		int priority;
+		volatile boolean cancelled;
+		volatile boolean stale;
+		// set under the lock of the scheduler when a worker takes the request
+		boolean started;
+		// time when the tile moved out of the visible area
+		long outsideSince;
+		private AbortableHttpRequest httpRequest;
+		
+		TileRequest(Tile tile, long sequence, boolean revalidation) {
+			this.tile = tile;
+			this.key = tile.getKey();
+			this.sequence = sequence;
+			this.revalidation = revalidation;
+		}
+		
+		public Tile getTile() {
+			return tile;
+		}
+		
+		public boolean isCancelled() {
+			return cancelled;
+		}
+		
+		/**
+		 * Sets HTTP request of the running download, which is aborted when the
+		 * request is cancelled, or null when the download has finished.
+		 */
+		public void setHttpRequest(AbortableHttpRequest httpRequest) {
+			synchronized (this) {
+				this.httpRequest = httpRequest;
+			}
+			if (httpRequest != null && cancelled) {
+				httpRequest.abort();
+			}
+		}
+		
+		void abort() {
+			AbortableHttpRequest running;
+			synchronized (this) {
+				running = httpRequest;
+			}
+			if (running != null) {
+				// closes the connection, blocked reading of the worker fails immediately
+				running.abort();
+			}
+		}
+		
+		/**
+		 * @return true if a worker took the request, must be called after
+		 * the request was cancelled or finished
+		 */
+		public boolean isStarted() {
+			return started;
+		}
+		
+		public boolean isRevalidation() {
+			return revalidation;
+		}
+		
+		public boolean isPrefetch() {
+			return prefetch;
+		}
+		
+		/**
+		 * @return true if the loaded tile is stale and should be revalidated
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+		
+		public void setStale(boolean stale) {
+			this.stale = stale;
+		}
+		
+		@Override
+		public int compareTo(TileRequest another) {
+			if (priority != another.priority) {
+				return priority < another.priority? -1 : 1;
+			}
+			return sequence < another.sequence? -1 : (sequence > another.sequence? 1 : 0);
+		}
+	}
+	
+	public interface TileLoader {
+		/**
+		 * Loads the tile, called on a worker thread.
+		 *
+		 * @return loaded tile or null if loading failed
+		 */
+		Tile load(TileRequest request);
+	}
+	
+	public interface Listener {
+		/**
+		 * Called on the UI thread for requests which weren't cancelled.
+		 */
+		void onRequestFinished(TileRequest request, Tile result);
+		
+		/**
+		 * Called on the UI thread with the result of a cancelled request.
+		 */
+		void onRequestCancelled(TileRequest request, Tile result);
+	}
+}
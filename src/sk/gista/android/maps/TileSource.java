@@ -0,0 +1,24 @@
+package sk.gista.android.maps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Local source of encoded tile images, used by TmsLayer instead of the tile
+ * server. Tiles are addressed the same way as in TMS requests, with the y axis
+ * going up from the bottom of the layer bounding box.
+ * <p>
+ * Implementations must be thread safe, they are shared by all downloaders.
+ */
+public interface TileSource {
+	
+	/**
+	 * @return encoded image of the tile between position and limit of the buffer,
+	 * or null if the source doesn't contain it
+	 */
+	ByteBuffer getTileData(Tile tile) throws IOException;
+	
+	void close();
+}
@@ -1,55 +1,102 @@
 package sk.gista.android.maps;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import sk.gista.android.maps.Layer.Tile;
 import sk.gista.android.maps.Layer.TileListener;
+import sk.gista.android.maps.TileRequestScheduler.TileLoader;
+import sk.gista.android.maps.TileRequestScheduler.TileRequest;
 import sk.gista.android.utils.NetworkDebugger;
 import sk.gista.android.utils.NetworkDebugger.Signal;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
-import android.os.AsyncTask.Status;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.util.Log;
+import android.view.View;
 
-public class TilesManager {
+import com.jhlabs.geom.Point2D;
+
+public class TilesManager implements TileRequestScheduler.Listener {
+	
+	private static final int DOWNLOADERS_COUNT = 4;
 
 	private static final String TAG = TilesManager.class.getName();
 	private List<TileListener> tileListeners = new ArrayList<TileListener>();
 	private MemoryCache tilesCache;
+	private BitmapPool bitmapPool;
+	private DiskCache diskCache;
+	private DiskCache offlineStore;
 	private MapView map;
 	private TmsLayer layer;
+	private List<Downloader> downloaders;
+	private PartialDownloads partialDownloads = new PartialDownloads();
+	
+	// preallocated center and center tile, updated in every frame
+	private Point centerTile = new Point();
+	private Point2D centerPoint = new Point2D();
+	
+	// tiles out of the visible area are cancelled after this time (in milliseconds)
+	private static final long CANCEL_GRACE_PERIOD = 500;
+	
+	// transfer statistics
+	private AtomicLong downloadedBytes = new AtomicLong();
+	private AtomicLong wastedBytes = new AtomicLong();
+	private AtomicLong resumedBytes = new AtomicLong();
 	
 	public TilesManager(MapView map) {
 		this.map = map;
 		this.layer = map.getLayer();
-		tilesCache = new MemoryCache(map, 25);
+		long cacheSize = MemoryCache.defaultMaxBytes(((View) map).getContext());
+		bitmapPool = new BitmapPool(cacheSize / 2);
+		tilesCache = new MemoryCache(map, cacheSize, bitmapPool);
+		diskCache = DiskCache.getInstance(((View) map).getContext());
+		offlineStore = DiskCache.getOfflineInstance(((View) map).getContext());
+		
+		downloaders = new ArrayList<Downloader>(DOWNLOADERS_COUNT);
+		for (int i = 0; i < DOWNLOADERS_COUNT; i++) {
+			Downloader downloader = new Downloader(layer);
+			downloader.diskCache = diskCache;
+			downloader.offlineStore = offlineStore;
+			downloader.httpClient = TileHttpClient.getInstance();
+			downloader.bitmapPool = bitmapPool;
+			downloader.partialDownloads = partialDownloads;
+			downloader.downloadedBytes = downloadedBytes;
+			downloader.wastedBytes = wastedBytes;
+			downloader.resumedBytes = resumedBytes;
+			downloaders.add(downloader);
+		}
+		scheduler = new TileRequestScheduler(downloaders, this);
 		
 		NetworkDebugger.server = "192.168.1.110";
 		NetworkDebugger.debuggingEnabled = true;
 	}
 	
+	/**
+	 * Sets executor of the loaded tiles, which are put into the memory cache and
+	 * passed to the listeners on its thread. By default it is the UI thread.
+	 */
+	public void setResultExecutor(Executor executor) {
+		scheduler.setResultExecutor(executor);
+	}
+	
 	public void addTileListener(TileListener listener) {
 		tileListeners.add(listener);
 	}
 	
 	protected void fireTileLoad(Tile tile) {
-		if (tile.getZoomLevel() != map.getZoom()) {
-			tile.recycle();
-			return;
-		}
+		// tiles of other zoom levels are kept, map draws them instead of the missing tiles
 		tilesCache.putTile(tile);
 		for (TileListener listener : tileListeners) {
 			listener.onTileLoad(tile);
@@ -63,33 +110,148 @@ public class TilesManager {
 		}
 	}
 	
-	private List<Downloader> downloaders = new ArrayList<Downloader>();
+	private TileRequestScheduler scheduler;
+	private int requestsCount;
+	
+	@Override
+	public void onRequestFinished(TileRequest request, Tile result) {
+		if (result.getImage() != null) {
+			fireTileLoad(result);
+			if (request.isStale()) {
+				scheduler.request(request.getTile(), true);
+			}
+		} else if (!request.isRevalidation()) {
+			fireTileLoadingFailed(result);
+		}
+	}
+	
+	@Override
+	public void onRequestCancelled(TileRequest request, Tile result) {
+		bitmapPool.put(result.getImage());
+	}
+	
+	/**
+	 * When enabled, stale tiles from the disk cache are displayed immediately and
+	 * revalidated with the server in the background. Otherwise they are displayed
+	 * after the revalidation.
+	 */
+	public void setStaleWhileRevalidate(boolean enabled) {
+		for (Downloader downloader : downloaders) {
+			downloader.staleWhileRevalidate = enabled;
+		}
+	}
+	
+	/**
+	 * Keeps loading tiles of the neighbouring zoom levels, which will be used when
+	 * zooming back, and cancels requests of the other levels.
+	 */
+	public void onZoomChange(int zoom) {
+		for (Tile tile : scheduler.cancelOtherZoomLevels(zoom, 1)) {
+			tilesCache.removePlaceholder(tile);
+		}
+		Log.i(TAG, "Zoom "+zoom+": requested tiles: "+requestsCount+" memory cache hits: "+
+				tilesCache.getHitCount()+" cached tiles: "+tilesCache.size());
+	}
+	
+	/**
+	 * @return count of the tiles which weren't in the memory cache and had to be
+	 * loaded from the disk or network
+	 */
+	public int getRequestsCount() {
+		return requestsCount;
+	}
 	
 	public void cancelAll() {
 		Log.i(TAG, "Cancel all Requests!");
-		for (Downloader d : downloaders) {
-			if (d.getStatus() != Status.FINISHED) {
-				d.cancel(true);
-			}
+		scheduler.cancelAll();
+		tilesCache.removePlaceholders();
+	}
+	
+	/**
+	 * Cancels all requests and stops downloading threads. Manager can't be used anymore.
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+		tilesCache.clearCache();
+		Log.i(TAG, "Bitmap pool hit rate: "+bitmapPool.getHitRate());
+		bitmapPool.clear();
+		TileHttpClient httpClient = TileHttpClient.getInstance();
+		Log.i(TAG, "HTTP requests: "+httpClient.getRequestsCount()+
+				" connection reuse rate: "+httpClient.getConnectionReuseRate());
+		httpClient.closeIdleConnections();
+		Log.i(TAG, "Downloaded bytes: "+downloadedBytes.get()+" wasted by cancelled tiles: "+
+				wastedBytes.get()+" resumed: "+resumedBytes.get());
+	}
+	
+	/**
+	 * Cancels loading of the tiles from the zoom level, which are outside of the
+	 * given range for some time.
+	 */
+	public void cancelInvisible(int zoom, Rect range) {
+		for (Tile tile : scheduler.cancelOutside(zoom, range, CANCEL_GRACE_PERIOD)) {
+			tilesCache.removePlaceholder(tile);
 		}
 	}
 	
+	/**
+	 * @return count of the bytes downloaded for tiles which were cancelled and
+	 * couldn't be kept for resume
+	 */
+	public long getWastedBytes() {
+		return wastedBytes.get();
+	}
+	
+	/**
+	 * Reorders waiting requests by the distance from the current center of the map.
+	 */
+	public void updateCenter() {
+		Point2D center = map.getCenter(centerPoint);
+		layer.getTileAt(center.x, center.y, map.getZoom(), centerTile);
+		scheduler.setCenter(centerTile.x, centerTile.y, map.getZoom());
+	}
+	
 	public void clearCache() {
 		tilesCache.clearCache();
 	}
 	
+	public MemoryCache getCache() {
+		return tilesCache;
+	}
+	
+	public BitmapPool getBitmapPool() {
+		return bitmapPool;
+	}
+	
 	public boolean hasInCache(int x, int y) {
-		return tilesCache.getTile(x, y) != null;
+		return tilesCache.containsTile(x, y, map.getZoom());
+	}
+	
+	/**
+	 * Returns tile of any zoom level from the memory cache, without requesting it.
+	 */
+	public Tile getCachedTile(int x, int y, int zoom) {
+		return tilesCache.peekTile(x, y, zoom);
 	}
 	
 	public Tile getTile(int x, int y) {
-		Tile tile = tilesCache.getTile(x, y);
+		return getTile(x, y, map.getZoom());
+	}
+	
+	/**
+	 * Returns the tile from the memory cache, or requests it when it isn't cached.
+	 */
+	public Tile getTile(int x, int y, int zoom) {
+		Tile tile = tilesCache.getTile(x, y, zoom);
 		if (tile == null) {
-			tile = new Tile(x, y, map.getZoom(), null);
+			tile = new Tile(x, y, zoom, null);
 			requestTile(tile);
 			tilesCache.putTile(tile);
 			return null;
 		}
+		if (tile.getImage() == null) {
+			// raises priority of the prefetched tile
+			scheduler.request(tile);
+		}
 		return tile;
 	}
 	
@@ -101,137 +263,364 @@ public class TilesManager {
 		}
 	}
 	
+	/**
+	 * Requests the tile with low priority, unless it is already cached or requested.
+	 *
+	 * @return true if the tile was requested
+	 */
+	public boolean prefetchTile(Tile tile) {
+		if (tilesCache.containsTile(tile)) {
+			return false;
+		}
+		requestsCount++;
+		tilesCache.putTile(tile);
+		scheduler.prefetch(tile);
+		return true;
+	}
+	
+	/**
+	 * Cancels prefetching of the tile, if it wasn't requested as visible in
+	 * the meantime.
+	 * 
+	 * @return true if the request was cancelled before a worker took it, so
+	 * the tile isn't used anymore and can be reused
+	 */
+	public boolean cancelPrefetch(Tile tile) {
+		TileRequest request = scheduler.cancelPrefetch(tile);
+		if (request == null) {
+			return false;
+		}
+		tilesCache.removePlaceholder(tile);
+		return !request.isStarted();
+	}
+	
 	public void requestTile(Tile tile) {
-		Downloader asyncDownloader = new Downloader();
-		downloaders.add(asyncDownloader);
-		asyncDownloader.layer = layer;
-		asyncDownloader.manager = this;
-		asyncDownloader.execute(tile);
+		requestsCount++;
+		scheduler.request(tile);
 	}
 	
-	public static class Downloader extends AsyncTask<Tile, Integer, Tile> {
-		TilesManager manager;
+	/**
+	 * Loads tiles from the disk cache or from the server, one instance is used by
+	 * each worker thread of the scheduler.
+	 */
+	public static class Downloader implements TileLoader {
 		TmsLayer layer;
+		DiskCache diskCache;
+		// tiles downloaded in advance by RegionSeeder
+		DiskCache offlineStore;
+		TileHttpClient httpClient;
+		PartialDownloads partialDownloads;
+		// transfer statistics shared by all downloaders
+		AtomicLong downloadedBytes;
+		AtomicLong wastedBytes;
+		AtomicLong resumedBytes;
+		BitmapPool bitmapPool;
+		boolean staleWhileRevalidate;
 		Tile tile;
+		TileRequest request;
+		
+		// buffers reused for all tiles loaded by this downloader
+		private byte[] buffer = new byte[32 * 1024];
+		// reads the data after the full buffer
+		private byte[] probe = new byte[512];
+		private int contentLength;
+		private BitmapFactory.Options decodeOptions;
+		
+		Downloader(TmsLayer layer) {
+			this.layer = layer;
+			decodeOptions = new BitmapFactory.Options();
+			decodeOptions.inTempStorage = new byte[16 * 1024];
+			String format = layer.getFormat().toLowerCase();
+			if (format.equals("jpeg") || format.equals("jpg")) {
+				// tiles without transparency don't need alpha channel
+				decodeOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+			} else {
+				decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			}
+		}
 		
 		@Override
-		protected Tile doInBackground(Tile... params) {
-			tile = params[0]; 
+		public Tile load(TileRequest request) {
+			this.request = request;
+			tile = request.getTile();
 			Bitmap image = null;
 			
-			boolean method = true;
-			
-			if (method) {
-				Log.i(TAG, layer.getUrl(tile));
-				HttpClient client = new DefaultHttpClient();
-				HttpGet get = new HttpGet(layer.getUrl(tile));
-				InputStream is = null;
-				boolean aborted = false;
+			TileSource source = layer.getTileSource();
+			if (source != null) {
 				try {
-					HttpResponse response = client.execute(get);
-					/*
-					for (Header header : response.getAllHeaders()) {
-						Log.i(TAG, header.getName() + ": "+header.getValue());
+					ByteBuffer data = source.getTileData(tile);
+					if (data != null) {
+						image = decode(data);
 					}
-					*/
-					HttpEntity entity = response.getEntity();
+				} catch (IOException e) {
+					Log.e(TAG, "reading of the tile from the local source failed", e);
+				}
+				return new Tile(tile.getX(), tile.getY(), tile.getZoomLevel(), image);
+			}
+			
+			DiskCache.Entry cached = diskCache.get(layer.getName(), tile);
+			if (cached == null && offlineStore != null && !request.isRevalidation()) {
+				DiskCache.Entry seeded = offlineStore.get(layer.getName(), tile);
+				if (seeded != null) {
+					image = decode(seeded.content, seeded.content.length);
+					if (image != null) {
+						return new Tile(tile.getX(), tile.getY(), tile.getZoomLevel(), image);
+					}
+				}
+			}
+			if (cached != null && !request.isRevalidation()) {
+				boolean stale = cached.isStale();
+				if (!stale || staleWhileRevalidate) {
+					image = decode(cached.content, cached.content.length);
+					if (image != null) {
+						// draw stale tile immediately and revalidate it in the background
+						request.setStale(stale);
+						return new Tile(tile.getX(), tile.getY(), tile.getZoomLevel(), image);
+					}
+				}
+			}
+			
+			Log.i(TAG, layer.getUrl(tile));
+			HttpGet get = new HttpGet(layer.getUrl(tile));
+			// without validators the revalidation is an unconditional request
+			if (cached != null) {
+				if (cached.etag != null) {
+					get.addHeader("If-None-Match", cached.etag);
+				}
+				if (cached.lastModified != null) {
+					get.addHeader("If-Modified-Since", cached.lastModified);
+				}
+			}
+			PartialDownloads.Partial partial = null;
+			if (cached == null && partialDownloads != null) {
+				partial = partialDownloads.take(tile.getKey());
+				if (partial != null) {
+					get.addHeader("Range", "bytes="+partial.content.length+"-");
+					get.addHeader("If-Range", partial.validator);
+				}
+			}
+			request.setHttpRequest(get);
+			InputStream is = null;
+			boolean aborted = false;
+			HttpResponse response = null;
+			int offset = 0;
+			contentLength = 0;
+			try {
+				response = httpClient.execute(get);
+				/*
+				for (Header header : response.getAllHeaders()) {
+					Log.i(TAG, header.getName() + ": "+header.getValue());
+				}
+				*/
+				int status = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+					if (entity != null) {
+						entity.consumeContent();
+					}
+					NetworkDebugger.sendFinished(tile);
+					diskCache.put(layer.getName(), tile, CacheHeaders.updateEntry(cached, response));
+					if (!request.isRevalidation()) {
+						image = decode(cached.content, cached.content.length);
+					}
+				} else if (status == HttpStatus.SC_OK || status == HttpStatus.SC_PARTIAL_CONTENT) {
 					//Log.i(TAG, "Content-length: "+entity.getContentLength());
+					if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+						Header range = response.getFirstHeader("Content-Range");
+						if (partial == null || range == null
+								|| !range.getValue().startsWith("bytes "+partial.content.length+"-")) {
+							throw new IOException("unexpected partial content");
+						}
+						offset = partial.content.length;
+						if (offset > buffer.length) {
+							buffer = new byte[offset*2];
+						}
+						System.arraycopy(partial.content, 0, buffer, 0, offset);
+						resumedBytes.addAndGet(offset);
+					} else if (partial != null) {
+						// tile was changed on the server, downloaded part is useless
+						wastedBytes.addAndGet(partial.content.length);
+					}
 					is = entity.getContent();
-					byte [] content = inputStreamToByteArray(is);
-					if (content != null) {
+					if (readContent(is, offset, entity.getContentLength())) {
 						NetworkDebugger.sendFinished(tile);
-						image = BitmapFactory.decodeByteArray(content, 0, content.length);
+						image = decode(buffer, contentLength);
+						if (image != null) {
+							byte[] content = new byte[contentLength];
+							System.arraycopy(buffer, 0, content, 0, contentLength);
+							diskCache.put(layer.getName(), tile, CacheHeaders.createEntry(content, response));
+						}
 					}
 					//image = BitmapFactory.decodeStream(is);
 					//Log.i(TAG, Thread.currentThread().getName()+" image "+image);
-					
-					if (isCancelled()) {
-						NetworkDebugger.sendSignal(tile, Signal.ABORTED);
-						get.abort();
-						aborted = true;
+				} else {
+					Log.w(TAG, "unexpected response status: "+status);
+					if (entity != null) {
+						entity.consumeContent();
 					}
-				} catch (Exception e) {
-					Log.e(TAG, "downloading failed!", e);
-					get.abort();
-					aborted = true;
 					NetworkDebugger.sendSignal(tile, Signal.ERROR);
-				} finally {
-					if (!aborted && is != null) {
-						try {
-							is.close();
-						} catch (IOException e) {
-							Log.e(TAG, "aborted: "+aborted);
-							Log.e(TAG, "closing input stream failed!", e);
-						}
-					}
 				}
-			} else {
-				try {
-					URL url = new URL(layer.getUrl(tile));
-					HttpURLConnection httpCon = (HttpURLConnection) url.openConnection();
 					
-					InputStream is = httpCon.getInputStream();
-					/*
-					Log.i(TAG, "stream "+is.getClass().getSimpleName() +
-							" Code: "+httpCon.getResponseCode() +
-							" Content-length: "+httpCon.getContentLength() +
-							" Content-type "+httpCon.getContentType()
-					);
-					*/
-					byte [] content = inputStreamToByteArray(is);
-					if (content != null) {
-						NetworkDebugger.sendFinished(tile);
-						image = BitmapFactory.decodeByteArray(content, 0, content.length);
+				if (isCancelled()) {
+					NetworkDebugger.sendSignal(tile, Signal.ABORTED);
+					get.abort();
+					aborted = true;
+					if (image == null) {
+						keepPartial(response, contentLength-offset);
 					}
-					if (isCancelled()) {
-						NetworkDebugger.sendSignal(tile, Signal.ABORTED);
+				}
+			} catch (Exception e) {
+				if (isCancelled()) {
+					NetworkDebugger.sendSignal(tile, Signal.ABORTED);
+					if (response != null) {
+						keepPartial(response, contentLength-offset);
+					} else if (partial != null) {
+						// cancelled before the response, keep the previous part
+						partialDownloads.put(tile.getKey(), partial.content, partial.content.length, partial.validator);
 					}
-					//Log.i(TAG, Thread.currentThread().getName()+" content length: "+content.length);
-					is.close();
-					httpCon.disconnect();
-				} catch (Exception e) {
-					Log.e(TAG, "what!", e);
-					Log.e(TAG, "sending error signal");
+				} else {
+					Log.e(TAG, "downloading failed!", e);
 					NetworkDebugger.sendSignal(tile, Signal.ERROR);
 				}
+				get.abort();
+				aborted = true;
+			} finally {
+				request.setHttpRequest(null);
+				if (!aborted && is != null) {
+					try {
+						is.close();
+					} catch (IOException e) {
+						Log.e(TAG, "aborted: "+aborted);
+						Log.e(TAG, "closing input stream failed!", e);
+					}
+				}
+			}
+			if (image == null && cached != null && !request.isRevalidation() && !isCancelled()) {
+				// server is not available, stale tile is better than nothing
+				image = decode(cached.content, cached.content.length);
 			}
 			//Log.i(TAG, Thread.currentThread().getName()+" image "+image);
 			return new Tile(tile.getX(), tile.getY(), tile.getZoomLevel(), image);
 		}
 
-		@Override
-		protected void onPostExecute(Tile result) {
-			//Log.i(TAG, "onPostExecute "+result.getImage());
-			manager.downloaders.remove(this);
-			if (!isCancelled()) {
-				if (result.getImage() != null) {
-					manager.fireTileLoad(result);
-				} else {
-					manager.fireTileLoadingFailed(result);
+		private boolean isCancelled() {
+			return request.isCancelled();
+		}
+		
+		/**
+		 * Decodes the tile from a buffer of a local tile source. Mapped buffers have
+		 * no backing array, so their content is copied into the reused buffer.
+		 */
+		private Bitmap decode(ByteBuffer data) {
+			int length = data.remaining();
+			if (data.hasArray()) {
+				return decode(data.array(), data.arrayOffset() + data.position(), length);
+			}
+			if (length > buffer.length) {
+				buffer = new byte[length];
+			}
+			data.get(buffer, 0, length);
+			return decode(buffer, 0, length);
+		}
+		
+		private Bitmap decode(byte[] data, int length) {
+			return decode(data, 0, length);
+		}
+		
+		private Bitmap decode(byte[] data, int offset, int length) {
+			Bitmap reused = bitmapPool.get(layer.getTileWidth(), layer.getTileHeight(), decodeOptions.inPreferredConfig);
+			BitmapPool.setReusedBitmap(decodeOptions, reused);
+			Bitmap image;
+			try {
+				image = BitmapFactory.decodeByteArray(data, offset, length, decodeOptions);
+			} catch (IllegalArgumentException e) {
+				if (reused == null) {
+					throw e;
 				}
+				// decoded image doesn't fit into the reused bitmap
+				reused.recycle();
+				reused = null;
+				BitmapPool.setReusedBitmap(decodeOptions, null);
+				image = BitmapFactory.decodeByteArray(data, offset, length, decodeOptions);
+			} finally {
+				BitmapPool.setReusedBitmap(decodeOptions, null);
+			}
+			if (image == null && reused != null) {
+				bitmapPool.put(reused);
 			}
+			return image;
 		}
 		
-		public final byte[] inputStreamToByteArray(InputStream is) throws IOException {
+		/**
+		 * Reads whole stream into the reused buffer behind the first offset bytes,
+		 * the buffer is resized in advance when the content length is known. Length
+		 * of the content read so far is kept in {@link #contentLength}, also when
+		 * the reading fails.
+		 * 
+		 * @return false if the request was cancelled during the reading
+		 */
+		public final boolean readContent(InputStream is, int offset, long expectedLength) throws IOException {
+			contentLength = offset;
 			if (isCancelled()) {
-				return null;
+				return false;
 			}
 			int progress = 0;
 			NetworkDebugger.sendProgress(tile, progress, 0);
-			is = new BufferedInputStream(is);
-			ByteArrayOutputStream buf = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024];
-			int result = is.read(buffer);
+			if (offset + expectedLength > buffer.length) {
+				byte[] newBuffer = new byte[(int) (offset + expectedLength)];
+				System.arraycopy(buffer, 0, newBuffer, 0, offset);
+				buffer = newBuffer;
+			}
+			int result = is.read(buffer, contentLength, buffer.length-contentLength);
 			
-			while(result > 0 && !isCancelled()) {
-				buf.write(buffer, 0, result);
+			while(result != -1 && !isCancelled()) {
+				contentLength += result;
+				downloadedBytes.addAndGet(result);
+				if (contentLength == buffer.length) {
+					// buffer is filled exactly when Content-Length is right, so grow it
+					// only if there is more data
+					result = is.read(probe, 0, probe.length);
+					if (result == -1 || isCancelled()) {
+						break;
+					}
+					byte[] newBuffer = new byte[buffer.length*2 + result];
+					System.arraycopy(buffer, 0, newBuffer, 0, contentLength);
+					System.arraycopy(probe, 0, newBuffer, contentLength, result);
+					buffer = newBuffer;
+					contentLength += result;
+					downloadedBytes.addAndGet(result);
+				}
 				//Log.i(TAG, "reading incomplete data "+result);
 				//NetworkDebugger.sendProgress(tile, progress, result);
 				progress++;
-				result = is.read(buffer);
+				result = is.read(buffer, contentLength, buffer.length-contentLength);
+			}
+			return !isCancelled();
+		}
+		
+		/**
+		 * Keeps the part of the cancelled download for a later resume, if the
+		 * response has a validator for the If-Range header.
+		 * 
+		 * @param received bytes of the tile received by this request
+		 */
+		private void keepPartial(HttpResponse response, int received) {
+			if (received <= 0) {
+				return;
+			}
+			String validator = null;
+			Header etag = response.getFirstHeader("ETag");
+			if (etag != null && !etag.getValue().startsWith("W/")) {
+				// weak entity tags can't be used in If-Range
+				validator = etag.getValue();
+			} else if (response.getFirstHeader("Last-Modified") != null) {
+				validator = response.getFirstHeader("Last-Modified").getValue();
+			}
+			if (validator != null && partialDownloads != null) {
+				partialDownloads.put(tile.getKey(), buffer, contentLength, validator);
+			} else {
+				wastedBytes.addAndGet(received);
 			}
-			
-			return isCancelled()? null : buf.toByteArray();
 		}
 	}
 }
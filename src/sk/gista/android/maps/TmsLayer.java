@@ -1,8 +1,9 @@
 package sk.gista.android.maps;
 
 import android.graphics.Point;
-import android.graphics.PointF;
+import android.graphics.Rect;
 
+import com.jhlabs.geom.Point2D;
 import com.jhlabs.map.proj.Projection;
 
 public class TmsLayer extends Layer {
@@ -13,6 +14,8 @@ public class TmsLayer extends Layer {
 	private String serverUrl;
 	private String name;
 	private String format;
+	// local source of tiles used instead of the server
+	private TileSource tileSource;
 	
 	// tile size in pixels
 	private int tileWidth = 256;
@@ -48,6 +51,22 @@ public class TmsLayer extends Layer {
 		return serverUrl+"/1.0.0/"+name+"/"+tile.getZoomLevel()+"/"+tile.getX()+"/"+tile.getY()+"."+ format;
 	}
 	
+	/**
+	 * Sets local source of the tiles (e.g. MBTiles package), or null to download
+	 * tiles from the server.
+	 */
+	public void setTileSource(TileSource tileSource) {
+		this.tileSource = tileSource;
+	}
+	
+	public TileSource getTileSource() {
+		return tileSource;
+	}
+	
+	public String getFormat() {
+		return format;
+	}
+	
 	public int getTileWidth() {
 		return tileWidth;
 	}
@@ -56,9 +75,78 @@ public class TmsLayer extends Layer {
 		return tileHeight;
 	}
 	
-	public Point getTileAt(PointF position, int zoom) {
-		float tileX = (position.x - bbox.minX) / (tileWidth*(float) resolutions[zoom]);
-		float tileY = (position.y - bbox.minY) / (tileHeight*(float) resolutions[zoom]);
-		return new Point((int) Math.floor(tileX), (int) Math.floor(tileY));
+	public Point getTileAt(Point2D position, int zoom) {
+		return getTileAt(position.x, position.y, zoom, new Point());
+	}
+	
+	/**
+	 * Stores indexes of the tile at the given map position into the out parameter.
+	 * 
+	 * @return the out parameter
+	 */
+	public Point getTileAt(double x, double y, int zoom, Point out) {
+		double tileX = (x - bbox.minX) / (tileWidth*resolutions[zoom]);
+		double tileY = (y - bbox.minY) / (tileHeight*resolutions[zoom]);
+		out.set((int) Math.floor(tileX), (int) Math.floor(tileY));
+		return out;
+	}
+	
+	/**
+	 * Stores indexes of the last tile of the layer at the zoom level into the out
+	 * parameter. The tile contains the maximal corner of the bounding box, or ends
+	 * at it when the extent is an exact multiple of the tile size.
+	 * 
+	 * @return the out parameter
+	 */
+	public Point getLastTile(int zoom, Point out) {
+		double tileX = (bbox.maxX - bbox.minX) / (tileWidth*resolutions[zoom]);
+		double tileY = (bbox.maxY - bbox.minY) / (tileHeight*resolutions[zoom]);
+		out.set((int) Math.ceil(tileX) - 1, (int) Math.ceil(tileY) - 1);
+		return out;
+	}
+	
+	/**
+	 * Stores the first and the last tile of each row of the range, which intersect
+	 * the convex polygon (e.g. the rotated viewport) into the first and last arrays.
+	 * The row is clipped by all edges of the polygon and the span is the extent of
+	 * the clipped edges. Empty rows have the last tile before the first one.
+	 * 
+	 * @param polygon corners of the polygon in map units
+	 * @param range tiles of the rows (inclusive)
+	 */
+	public void getRowSpans(int zoom, Point2D[] polygon, Rect range, int[] first, int[] last) {
+		double tileSizeX = tileWidth * resolutions[zoom];
+		double tileSizeY = tileHeight * resolutions[zoom];
+		int rows = range.bottom - range.top + 1;
+		for (int row = 0; row < rows; row++) {
+			double rowMinY = bbox.minY + (range.top + row) * tileSizeY;
+			double rowMaxY = rowMinY + tileSizeY;
+			double minX = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE;
+			for (int i = 0; i < polygon.length; i++) {
+				Point2D a = polygon[i];
+				Point2D b = polygon[(i+1) % polygon.length];
+				double y0 = Math.max(Math.min(a.y, b.y), rowMinY);
+				double y1 = Math.min(Math.max(a.y, b.y), rowMaxY);
+				if (y0 > y1) {
+					continue;
+				}
+				double x0 = a.x;
+				double x1 = b.x;
+				if (a.y != b.y) {
+					x0 = a.x + (b.x - a.x) * (y0 - a.y) / (b.y - a.y);
+					x1 = a.x + (b.x - a.x) * (y1 - a.y) / (b.y - a.y);
+				}
+				minX = Math.min(minX, Math.min(x0, x1));
+				maxX = Math.max(maxX, Math.max(x0, x1));
+			}
+			if (minX > maxX) {
+				first[row] = range.left;
+				last[row] = range.left - 1;
+			} else {
+				first[row] = Math.max((int) Math.floor((minX - bbox.minX) / tileSizeX), range.left);
+				last[row] = Math.min((int) Math.floor((maxX - bbox.minX) / tileSizeX), range.right);
+			}
+		}
 	}
 }
@@ -28,6 +28,9 @@ public class LocationOverlay implements Overlay, LocationListener, Listener {
 	private Location currentLocation;
 	private Point2D currentLocationPoint = new Point2D(); //new Point2D(21.23886386, 49.00096926)
 	private Point2D projectedLocation = new Point2D();
+	// preallocated objects used while drawing
+	private PointF currentPos = new PointF();
+	private RectF oval = new RectF();
 	
 	private Paint pointStyle;
 	private Paint accuracyStyle;
@@ -54,12 +57,14 @@ public class LocationOverlay implements Overlay, LocationListener, Listener {
 			//Log.i(TAG, currentLocationPoint.x+", "+currentLocationPoint.y);
 			map.getLayer().getProjection().transform(currentLocationPoint, projectedLocation);
 			//Log.i(TAG, String.format("projected position: [%f, %f]", projectedLocation.x, projectedLocation.y));
-			PointF currentPos = map.mapToScreenAligned((float) projectedLocation.x, (float) projectedLocation.y);
+			map.mapToScreenAligned(projectedLocation.x, projectedLocation.y, currentPos);
 			//Log.i(TAG, "Location on screen: "+currentPos.x+", "+currentPos.y);
 			float accuracy = zoom*(currentLocation.getAccuracy()/map.getResolution());
 			//float accuracy = zoom*(75.0f/(float) map.getLayer().getResolutions()[map.getZoom()]); // for tests on emulator
-			canvas.drawArc(new RectF(currentPos.x-accuracy, currentPos.y-accuracy, currentPos.x+accuracy, currentPos.y+accuracy), 0, 360, true, accuracyStyle);
-			canvas.drawArc(new RectF(currentPos.x-3, currentPos.y-3, currentPos.x+3, currentPos.y+3), 0, 360, true, pointStyle);
+			oval.set(currentPos.x-accuracy, currentPos.y-accuracy, currentPos.x+accuracy, currentPos.y+accuracy);
+			canvas.drawArc(oval, 0, 360, true, accuracyStyle);
+			oval.set(currentPos.x-3, currentPos.y-3, currentPos.x+3, currentPos.y+3);
+			canvas.drawArc(oval, 0, 360, true, pointStyle);
 		}
 	}
 
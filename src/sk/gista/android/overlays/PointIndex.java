@@ -0,0 +1,180 @@
+package sk.gista.android.overlays;
+
+import sk.gista.android.utils.LongHashMap;
+
+/**
+ * Spatial index of points in map coordinates. It is a uniform grid of square
+ * cells kept in a hash map, so only the cells which contain some points take
+ * memory. Points are identified by integer ids and can be inserted and removed
+ * one by one. Queries visit the points of the cells intersecting the given
+ * rectangle and don't allocate any objects, so they can be used on the draw path.
+ */
+public class PointIndex {
+	
+	private double cellSize;
+	private LongHashMap<Cell> cells = new LongHashMap<Cell>();
+	private int size;
+	
+	/**
+	 * @param cellSize size of the grid cell in map units, about the size of the
+	 * visible area at the zoom levels where the points are shown
+	 */
+	public PointIndex(double cellSize) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("cell size must be positive: "+cellSize);
+		}
+		this.cellSize = cellSize;
+	}
+	
+	public double getCellSize() {
+		return cellSize;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return count of the non-empty cells
+	 */
+	public int getCellsCount() {
+		return cells.size();
+	}
+	
+	public void insert(int id, double x, double y) {
+		long key = cellKey(cellOf(x), cellOf(y));
+		Cell cell = cells.get(key);
+		if (cell == null) {
+			cell = new Cell();
+			cells.put(key, cell);
+		}
+		cell.add(id, x, y);
+		size++;
+	}
+	
+	/**
+	 * Removes the point, its coordinates must be the same as when it was inserted.
+	 *
+	 * @return true if the point was found
+	 */
+	public boolean remove(int id, double x, double y) {
+		long key = cellKey(cellOf(x), cellOf(y));
+		Cell cell = cells.get(key);
+		if (cell == null || !cell.remove(id)) {
+			return false;
+		}
+		if (cell.size == 0) {
+			cells.remove(key);
+		}
+		size--;
+		return true;
+	}
+	
+	public void clear() {
+		cells.clear();
+		size = 0;
+	}
+	
+	/**
+	 * Visits all points within the rectangle (inclusive).
+	 *
+	 * @return count of the visited points
+	 */
+	public int query(double minX, double minY, double maxX, double maxY, Visitor visitor) {
+		int firstX = cellOf(minX);
+		int firstY = cellOf(minY);
+		int lastX = cellOf(maxX);
+		int lastY = cellOf(maxY);
+		int count = 0;
+		if ((long) (lastX - firstX + 1) * (lastY - firstY + 1) > cells.size()) {
+			// the rectangle covers more cells than there are non-empty ones
+			for (int i = 0; i < cells.tableSize(); i++) {
+				Cell cell = cells.valueAt(i);
+				if (cell != null) {
+					long key = cells.keyAt(i);
+					int cellX = (int) (key >> 32);
+					int cellY = (int) key;
+					if (cellX >= firstX && cellX <= lastX && cellY >= firstY && cellY <= lastY) {
+						count += cell.query(minX, minY, maxX, maxY, visitor);
+					}
+				}
+			}
+		} else {
+			for (int cellX = firstX; cellX <= lastX; cellX++) {
+				for (int cellY = firstY; cellY <= lastY; cellY++) {
+					Cell cell = cells.get(cellKey(cellX, cellY));
+					if (cell != null) {
+						count += cell.query(minX, minY, maxX, maxY, visitor);
+					}
+				}
+			}
+		}
+		return count;
+	}
+	
+	private int cellOf(double value) {
+		return (int) Math.floor(value / cellSize);
+	}
+	
+	private static long cellKey(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xffffffffL);
+	}
+	
+	public interface Visitor {
+		void visit(int id, double x, double y);
+	}
+	
+	/**
+	 * Points of one cell in parallel arrays.
+	 */
+	private static class Cell {
+		int[] ids = new int[8];
+		double[] xs = new double[8];
+		double[] ys = new double[8];
+		int size;
+		
+		void add(int id, double x, double y) {
+			if (size == ids.length) {
+				int[] newIds = new int[size*2];
+				double[] newXs = new double[size*2];
+				double[] newYs = new double[size*2];
+				System.arraycopy(ids, 0, newIds, 0, size);
+				System.arraycopy(xs, 0, newXs, 0, size);
+				System.arraycopy(ys, 0, newYs, 0, size);
+				ids = newIds;
+				xs = newXs;
+				ys = newYs;
+			}
+			ids[size] = id;
+			xs[size] = x;
+			ys[size] = y;
+			size++;
+		}
+		
+		boolean remove(int id) {
+			for (int i = 0; i < size; i++) {
+				if (ids[i] == id) {
+					size--;
+					ids[i] = ids[size];
+					xs[i] = xs[size];
+					ys[i] = ys[size];
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		int query(double minX, double minY, double maxX, double maxY, Visitor visitor) {
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				double x = xs[i];
+				double y = ys[i];
+				if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+					visitor.visit(ids[i], x, y);
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package sk.gista.android.overlays;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+
+import com.jhlabs.geom.Point2D;
+
+import sk.gista.android.maps.MapView;
+import sk.gista.android.maps.Overlay;
+
+/**
+ * Overlay of a single point in map coordinates, drawn as a circle. For many
+ * points use {@link PointsOverlay}, which draws only the visible ones.
+ */
+public class PointOverlay implements Overlay {
+	
+	private Point2D point;
+	private float radius = 4f;
+	private Paint pointStyle;
+	
+	// preallocated position on the screen
+	private PointF position = new PointF();
+	
+	public PointOverlay(double x, double y) {
+		point = new Point2D(x, y);
+		pointStyle = new Paint();
+		pointStyle.setAntiAlias(true);
+		pointStyle.setColor(Color.BLUE);
+	}
+	
+	public Point2D getPoint() {
+		return point;
+	}
+	
+	public void setPoint(double x, double y) {
+		point.x = x;
+		point.y = y;
+	}
+	
+	public Paint getPointStyle() {
+		return pointStyle;
+	}
+	
+	public void setRadius(float radius) {
+		this.radius = radius;
+	}
+	
+	@Override
+	public void onDraw(MapView map, Canvas canvas, float zoom) {
+		map.mapToScreenAligned(point.x, point.y, position);
+		canvas.drawCircle(position.x, position.y, radius, pointStyle);
+	}
+	
+	@Override
+	public void onPause() {}
+	
+	@Override
+	public void onResume() {}
+}
@@ -0,0 +1,172 @@
+package sk.gista.android.overlays;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.view.View;
+
+import com.jhlabs.geom.Point2D;
+
+import sk.gista.android.maps.MapView;
+import sk.gista.android.maps.Overlay;
+
+/**
+ * Overlay of many points (e.g. points of interest) in map coordinates, drawn
+ * as circles. Points are kept in a grid index, so in each frame only the points
+ * within the visible area of the map are transformed and drawn.
+ * <p>
+ * Points can be added and removed at any time, also from other threads than
+ * the one which draws the map.
+ */
+public class PointsOverlay implements Overlay {
+	
+	private PointIndex index;
+	
+	// coordinates of the points by their ids, ids of the removed points are reused
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+	private boolean[] used = new boolean[64];
+	private int nextId;
+	private int[] freeIds = new int[16];
+	private int freeCount;
+	
+	private float radius = 4f;
+	private Paint pointStyle;
+	
+	// preallocated objects used while drawing
+	private Point2D corner = new Point2D();
+	private PointDrawer drawer = new PointDrawer();
+	private int visibleCount;
+	
+	/**
+	 * @param cellSize size of the cell of the spatial index in map units
+	 */
+	public PointsOverlay(double cellSize) {
+		index = new PointIndex(cellSize);
+		pointStyle = new Paint();
+		pointStyle.setAntiAlias(true);
+		pointStyle.setColor(Color.BLUE);
+	}
+	
+	public Paint getPointStyle() {
+		return pointStyle;
+	}
+	
+	/**
+	 * Sets radius of the drawn points in pixels.
+	 */
+	public void setRadius(float radius) {
+		this.radius = radius;
+	}
+	
+	/**
+	 * @return id of the new point, used to remove it
+	 */
+	public synchronized int addPoint(double x, double y) {
+		int id;
+		if (freeCount > 0) {
+			id = freeIds[--freeCount];
+		} else {
+			id = nextId++;
+			if (id == xs.length) {
+				double[] newXs = new double[id*2];
+				double[] newYs = new double[id*2];
+				boolean[] newUsed = new boolean[id*2];
+				System.arraycopy(xs, 0, newXs, 0, id);
+				System.arraycopy(ys, 0, newYs, 0, id);
+				System.arraycopy(used, 0, newUsed, 0, id);
+				xs = newXs;
+				ys = newYs;
+				used = newUsed;
+			}
+		}
+		xs[id] = x;
+		ys[id] = y;
+		used[id] = true;
+		index.insert(id, x, y);
+		return id;
+	}
+	
+	public synchronized void removePoint(int id) {
+		if (id < 0 || id >= nextId || !used[id]) {
+			return;
+		}
+		index.remove(id, xs[id], ys[id]);
+		used[id] = false;
+		if (freeCount == freeIds.length) {
+			int[] newFreeIds = new int[freeCount*2];
+			System.arraycopy(freeIds, 0, newFreeIds, 0, freeCount);
+			freeIds = newFreeIds;
+		}
+		freeIds[freeCount++] = id;
+	}
+	
+	public synchronized void clear() {
+		index.clear();
+		for (int i = 0; i < nextId; i++) {
+			used[i] = false;
+		}
+		nextId = 0;
+		freeCount = 0;
+	}
+	
+	public synchronized int size() {
+		return index.size();
+	}
+	
+	/**
+	 * @return count of the points drawn in the last frame
+	 */
+	public int getVisibleCount() {
+		return visibleCount;
+	}
+	
+	@Override
+	public synchronized void onDraw(MapView map, Canvas canvas, float zoom) {
+		if (index.size() == 0) {
+			visibleCount = 0;
+			return;
+		}
+		View view = (View) map;
+		int width = view.getWidth();
+		int height = view.getHeight();
+		// bounding box of the corners of the screen, which may be rotated
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			map.screenToMap(i == 1 || i == 2? width : 0, i >= 2? height : 0, corner);
+			minX = Math.min(minX, corner.x);
+			minY = Math.min(minY, corner.y);
+			maxX = Math.max(maxX, corner.x);
+			maxY = Math.max(maxY, corner.y);
+		}
+		// points partially visible at the edges of the screen
+		double margin = radius * map.getResolution() / zoom;
+		drawer.map = map;
+		drawer.canvas = canvas;
+		visibleCount = index.query(minX-margin, minY-margin, maxX+margin, maxY+margin, drawer);
+		drawer.map = null;
+		drawer.canvas = null;
+	}
+	
+	@Override
+	public void onPause() {}
+	
+	@Override
+	public void onResume() {}
+	
+	private class PointDrawer implements PointIndex.Visitor {
+		MapView map;
+		Canvas canvas;
+		PointF position = new PointF();
+		
+		@Override
+		public void visit(int id, double x, double y) {
+			map.mapToScreenAligned(x, y, position);
+			canvas.drawCircle(position.x, position.y, radius, pointStyle);
+		}
+	}
+}
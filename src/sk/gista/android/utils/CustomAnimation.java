@@ -2,89 +2,67 @@ package sk.gista.android.utils;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
-import android.view.View;
-
-public abstract class CustomAnimation extends TimerTask {
+/**
+ * Time based animation driven by the frames of a {@link FrameScheduler}.
+ */
+public abstract class CustomAnimation implements FrameScheduler.FrameCallback {
 
 	private int duration;
-	private int count;
-	private int frame;
-	private Timer timer;
-	private View view;
+	private FrameScheduler frameScheduler;
+	private long startTime;
 	
 	private boolean stooped;
 	
 	public CustomAnimation() {
 	}
 	
-	public CustomAnimation(int duration, int count) {
+	public CustomAnimation(int duration) {
 		this.duration = duration;
-		this.count = count;
 	}
 	
 	public void setDuration(int duration) {
 		this.duration = duration;
 	}
 	
-	public void setFramesCount(int count) {
-		this.count = count;
-	}
-	
-	public synchronized void stop() {
-		cancel();
+	public void stop() {
 		stooped = true;
+		if (frameScheduler != null) {
+			frameScheduler.removeCallback(this);
+		}
 	}
 	
-	private synchronized boolean isStopped() {
-		return stooped;
-	}
 	/**
-	 * Sets view that will be invalidated on every animation step
-	 * 
-	 * @param view
+	 * Sets scheduler of the frames, the view of the scheduler is redrawn on
+	 * every animation step.
 	 */
-	public void setView(View view) {
-		this.view = view;
+	public void setFrameScheduler(FrameScheduler frameScheduler) {
+		this.frameScheduler = frameScheduler;
 	}
 	
 	public void start() {
-		if (timer != null) {
-			timer.cancel();
-		}
-		timer = new Timer();
-		frame = 0;
-		timer.schedule(this, 0, duration/count);
+		stooped = false;
+		startTime = 0;
+		frameScheduler.addCallback(this);
 	}
 	
 	@Override
-	public void run() {
-		if (isStopped()) {
-			return;
+	public boolean doFrame(long frameTime) {
+		if (stooped) {
+			return false;
+		}
+		if (startTime == 0) {
+			// first frame shows the first step of the animation
+			startTime = frameTime - FrameScheduler.FRAME_INTERVAL;
 		}
-		frame++;
-		if (frame > count) {
-			timer.cancel();
-			view.post(new Runnable() {
-				@Override
-				public void run() {
-					onEnd();
-					view.invalidate();
-				}
-			});
-		} else {
-			final float fraction = frame/(float) count;
-			view.post(new Runnable() {
-				
-				@Override
-				public void run() {
-					onFrame(fraction);
-					view.invalidate();
-				}
-			});
+		float fraction = duration > 0? (frameTime - startTime) / (float) duration : 1f;
+		if (fraction >= 1f) {
+			onFrame(1f);
+			onEnd();
+			return false;
 		}
+		onFrame(fraction);
+		return true;
 	}
 	
 	public abstract void onFrame(float fraction);
@@ -92,8 +70,8 @@ public abstract class CustomAnimation extends TimerTask {
 	
 	public static class CompositeAnimation extends CustomAnimation {
 
-		public CompositeAnimation(int duration, int count) {
-			super(duration, count);
+		public CompositeAnimation(int duration) {
+			super(duration);
 		}
 
 		private List<CustomAnimation> animations = new ArrayList<CustomAnimation>(5);
@@ -0,0 +1,208 @@
+package sk.gista.android.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+
+/**
+ * Coalesces redraw requests and animation steps of a view into frames aligned
+ * to the display refresh interval. At most one frame is drawn per interval and
+ * nothing runs when no redraw was requested and no animation is active.
+ * <p>
+ * Must be used from the UI thread.
+ */
+public class FrameScheduler {
+	
+	// display refresh interval in milliseconds (60 Hz)
+	public static final long FRAME_INTERVAL = 16;
+	
+	private View view;
+	private Handler handler;
+	private List<FrameCallback> callbacks = new ArrayList<FrameCallback>(2);
+	private List<FrameCallback> runningCallbacks = new ArrayList<FrameCallback>(2);
+	
+	private boolean frameScheduled;
+	private long frameDueTime;
+	private long lastFrameTime;
+	private boolean redrawRequested;
+	private boolean fullRedraw;
+	private Rect dirtyRect = new Rect();
+	
+	// statistics
+	private int framesCount;
+	private int droppedFramesCount;
+	private long drawStartTime;
+	private long totalDrawTime;
+	private long maxDrawTime;
+	
+	private Runnable frameRunnable = new Runnable() {
+		
+		@Override
+		public void run() {
+			doFrame();
+		}
+	};
+	
+	public FrameScheduler(View view) {
+		this.view = view;
+		handler = new Handler(Looper.getMainLooper());
+	}
+	
+	/**
+	 * Requests redraw of the whole view in the next frame.
+	 */
+	public void requestRedraw() {
+		redrawRequested = true;
+		fullRedraw = true;
+		scheduleFrame();
+	}
+	
+	/**
+	 * Requests redraw of the part of the view in the next frame.
+	 */
+	public void requestRedraw(int left, int top, int right, int bottom) {
+		if (!redrawRequested) {
+			dirtyRect.set(left, top, right, bottom);
+		} else {
+			dirtyRect.union(left, top, right, bottom);
+		}
+		redrawRequested = true;
+		scheduleFrame();
+	}
+	
+	/**
+	 * Adds callback which is called at the beginning of every frame until it
+	 * returns false. View is redrawn after each frame with running callbacks.
+	 */
+	public void addCallback(FrameCallback callback) {
+		if (!callbacks.contains(callback)) {
+			callbacks.add(callback);
+		}
+		scheduleFrame();
+	}
+	
+	public void removeCallback(FrameCallback callback) {
+		callbacks.remove(callback);
+	}
+	
+	/**
+	 * Cancels all callbacks and the scheduled frame.
+	 */
+	public void stop() {
+		callbacks.clear();
+		handler.removeCallbacks(frameRunnable);
+		frameScheduled = false;
+		redrawRequested = false;
+	}
+	
+	/**
+	 * Marks the beginning of the view drawing, to measure the frame time.
+	 */
+	public void onDrawStart() {
+		drawStartTime = SystemClock.uptimeMillis();
+	}
+	
+	/**
+	 * Marks the end of the view drawing.
+	 */
+	public void onDrawEnd() {
+		long drawTime = SystemClock.uptimeMillis() - drawStartTime;
+		framesCount++;
+		totalDrawTime += drawTime;
+		if (drawTime > maxDrawTime) {
+			maxDrawTime = drawTime;
+		}
+	}
+	
+	/**
+	 * @return count of the drawn frames
+	 */
+	public int getFramesCount() {
+		return framesCount;
+	}
+	
+	/**
+	 * @return count of the frame intervals missed because the previous frame
+	 * took too long
+	 */
+	public int getDroppedFramesCount() {
+		return droppedFramesCount;
+	}
+	
+	/**
+	 * @return average time of the view drawing in milliseconds
+	 */
+	public float getAverageFrameTime() {
+		return framesCount > 0? totalDrawTime / (float) framesCount : 0;
+	}
+	
+	/**
+	 * @return maximal time of the view drawing in milliseconds
+	 */
+	public long getMaxFrameTime() {
+		return maxDrawTime;
+	}
+	
+	public void resetStatistics() {
+		framesCount = 0;
+		droppedFramesCount = 0;
+		totalDrawTime = 0;
+		maxDrawTime = 0;
+	}
+	
+	private void scheduleFrame() {
+		if (frameScheduled) {
+			return;
+		}
+		frameScheduled = true;
+		long now = SystemClock.uptimeMillis();
+		frameDueTime = Math.max(now, lastFrameTime + FRAME_INTERVAL);
+		handler.postAtTime(frameRunnable, frameDueTime);
+	}
+	
+	private void doFrame() {
+		frameScheduled = false;
+		long now = SystemClock.uptimeMillis();
+		long delay = now - frameDueTime;
+		if (delay >= FRAME_INTERVAL) {
+			droppedFramesCount += delay / FRAME_INTERVAL;
+		}
+		lastFrameTime = now;
+		
+		boolean animating = !callbacks.isEmpty();
+		if (animating) {
+			runningCallbacks.clear();
+			runningCallbacks.addAll(callbacks);
+			for (FrameCallback callback : runningCallbacks) {
+				if (!callback.doFrame(now)) {
+					callbacks.remove(callback);
+				}
+			}
+		}
+		if (animating || (redrawRequested && fullRedraw)) {
+			view.invalidate();
+		} else if (redrawRequested) {
+			view.invalidate(dirtyRect.left, dirtyRect.top, dirtyRect.right, dirtyRect.bottom);
+		}
+		redrawRequested = false;
+		fullRedraw = false;
+		if (!callbacks.isEmpty()) {
+			scheduleFrame();
+		}
+	}
+	
+	public interface FrameCallback {
+		/**
+		 * Called at the beginning of the frame, before the view is redrawn.
+		 * 
+		 * @param frameTime uptime of the frame in milliseconds
+		 * @return false to stop receiving of the frames
+		 */
+		boolean doFrame(long frameTime);
+	}
+}
@@ -0,0 +1,163 @@
+package sk.gista.android.utils;
+
+/**
+ * Hash map with primitive long keys, using open addressing with linear probing.
+ * Lookups don't allocate any objects, so it is safe to use on the draw path.
+ *
+ * @param <V> type of values
+ */
+public class LongHashMap<V> {
+	
+	private static final float LOAD_FACTOR = 0.5f;
+	
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int threshold;
+	private int mask;
+	
+	public LongHashMap() {
+		this(16);
+	}
+	
+	public LongHashMap(int expectedSize) {
+		int capacity = 2;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+	
+	private static final int hash(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int) key;
+	}
+	
+	private int indexOf(long key) {
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int index = indexOf(key);
+		return index != -1? (V) values[index] : null;
+	}
+	
+	public boolean containsKey(long key) {
+		return indexOf(key) != -1;
+	}
+	
+	/**
+	 * @return previous value associated with the key or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException("null values are not supported");
+		}
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V old = (V) values[index];
+				values[index] = value;
+				return old;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		if (++size > threshold) {
+			rehash(keys.length << 1);
+		}
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int index = indexOf(key);
+		if (index == -1) {
+			return null;
+		}
+		V old = (V) values[index];
+		values[index] = null;
+		size--;
+		// shift back following entries of the same cluster, so that lookups
+		// don't stop on the freed slot
+		int free = index;
+		index = (index + 1) & mask;
+		while (values[index] != null) {
+			int ideal = hash(keys[index]) & mask;
+			if (((index - ideal) & mask) >= ((index - free) & mask)) {
+				keys[free] = keys[index];
+				values[free] = values[index];
+				values[index] = null;
+				free = index;
+			}
+			index = (index + 1) & mask;
+		}
+		return old;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		size = 0;
+	}
+	
+	/**
+	 * Number of slots in the table, to iterate over values with {@link #valueAt(int)}
+	 * without an iterator.
+	 */
+	public int tableSize() {
+		return values.length;
+	}
+	
+	/**
+	 * @return value stored in the given slot or null if the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int index) {
+		return (V) values[index];
+	}
+	
+	public long keyAt(int index) {
+		return keys[index];
+	}
+	
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = hash(oldKeys[i]) & mask;
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+}
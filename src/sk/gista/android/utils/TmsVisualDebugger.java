@@ -23,6 +23,7 @@ public class TmsVisualDebugger {
 	private float[] numbersWidths;
 	
 	private Paint tileStyle;
+	private PointF tilePosition = new PointF();
 	
 	public TmsVisualDebugger(Map map) {
 		this.map = map;
@@ -55,7 +56,7 @@ public class TmsVisualDebugger {
 		float tileWidth = layer.getTileWidth() * map.getResolution();
 		float tileHeight = layer.getTileHeight() * map.getResolution();
 		
-		PointF startP = map.mapToScreenAligned(bbox.minX + tileWidth * x, bbox.minY + tileHeight * y);
+		PointF startP = map.mapToScreenAligned(bbox.minX + tileWidth * x, bbox.minY + tileHeight * y, tilePosition);
 		canvas.drawRect(startP.x, startP.y, startP.x+256f, startP.y+256, tileStyle);
 		/*
 		canvas.drawText(format("x=%d y=%d", x, y),
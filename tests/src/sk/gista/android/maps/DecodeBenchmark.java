@@ -0,0 +1,136 @@
+package sk.gista.android.maps;
+
+import static java.lang.String.format;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Measures decoding of 256 x 256 PNG tiles by the Downloader, with bitmaps of
+ * the previous tiles reused through inBitmap and without it, against the former
+ * path which copied the stream into a growing ByteArrayOutputStream. Time and
+ * allocations per tile are logged.
+ */
+public class DecodeBenchmark extends TestCase {
+	
+	private static final String TAG = DecodeBenchmark.class.getSimpleName();
+	
+	private static final int TILES = 100;
+	
+	private byte[] png;
+	private TmsLayer layer;
+	
+	@Override
+	protected void setUp() throws Exception {
+		// noise in the pixels makes the size of the image close to a real tile
+		Random random = new Random(1);
+		int[] pixels = new int[256*256];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = 0xFF000000 | (random.nextInt(16) * 0x111111);
+		}
+		Bitmap bitmap = Bitmap.createBitmap(pixels, 256, 256, Bitmap.Config.ARGB_8888);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		png = out.toByteArray();
+		
+		layer = new TmsLayer(new BBox(0, 0, 256, 256), new double[] {1}, "http://localhost", "test", "png");
+		layer.setTileSource(new TileSource() {
+			
+			@Override
+			public ByteBuffer getTileData(Tile tile) throws IOException {
+				return ByteBuffer.wrap(png);
+			}
+			
+			@Override
+			public void close() {}
+		});
+	}
+	
+	/**
+	 * Former decoding of the downloaded tile.
+	 */
+	private static Bitmap decodeStream(InputStream is) throws IOException {
+		is = new BufferedInputStream(is);
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int result = is.read(buffer);
+		while (result > 0) {
+			buf.write(buffer, 0, result);
+			result = is.read(buffer);
+		}
+		byte[] data = buf.toByteArray();
+		return BitmapFactory.decodeByteArray(data, 0, data.length);
+	}
+	
+	private void log(String name, long time, int objects, int bytes) {
+		Log.i(TAG, format("%s: %.2f ms, %.1f objects, %.1f kB allocated per tile (%d bytes)", name,
+				time / 1000000.0 / TILES, objects / (double) TILES, bytes / 1024.0 / TILES, png.length));
+	}
+	
+	public void testStreamCopy() throws IOException {
+		long time = 0;
+		// first round warms up the code
+		for (int round = 0; round < 2; round++) {
+			Debug.resetThreadAllocCount();
+			Debug.startAllocCounting();
+			long start = System.nanoTime();
+			for (int i = 0; i < TILES; i++) {
+				Bitmap image = decodeStream(new ByteArrayInputStream(png));
+				assertNotNull(image);
+				image.recycle();
+			}
+			time = System.nanoTime() - start;
+			Debug.stopAllocCounting();
+		}
+		log("stream copy", time, Debug.getThreadAllocCount(), Debug.getThreadAllocSize());
+	}
+	
+	public void testDecodeWithoutReuse() {
+		benchmark("without reuse", new BitmapPool(0));
+	}
+	
+	public void testDecodeWithReuse() {
+		if (!BitmapPool.isReuseSupported()) {
+			Log.i(TAG, "bitmap reuse isn't supported");
+		}
+		benchmark("with reuse", new BitmapPool(1024*1024));
+	}
+	
+	/**
+	 * Decodes the tiles by the Downloader and returns their bitmaps into the pool,
+	 * as the memory cache does with the evicted tiles.
+	 */
+	private void benchmark(String name, BitmapPool pool) {
+		TilesManager.Downloader downloader = new TilesManager.Downloader(layer);
+		downloader.bitmapPool = pool;
+		Tile tile = new Tile(0, 0, 0, null);
+		long time = 0;
+		for (int round = 0; round < 2; round++) {
+			Debug.resetThreadAllocCount();
+			Debug.startAllocCounting();
+			long start = System.nanoTime();
+			for (int i = 0; i < TILES; i++) {
+				Bitmap image = downloader.load(new TileRequestScheduler.TileRequest(tile, i, false)).getImage();
+				assertNotNull(image);
+				pool.put(image);
+			}
+			time = System.nanoTime() - start;
+			Debug.stopAllocCounting();
+		}
+		log(name, time, Debug.getThreadAllocCount(), Debug.getThreadAllocSize());
+	}
+}
@@ -0,0 +1,95 @@
+package sk.gista.android.maps;
+
+import java.io.File;
+
+import android.test.InstrumentationTestCase;
+
+import sk.gista.android.maps.DiskCache.Entry;
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Checks the size accounting and LRU order of the disk cache when its index
+ * is loaded after tiles were already written.
+ */
+public class DiskCacheTest extends InstrumentationTestCase {
+	
+	private static final String LAYER = "test";
+	// header of 24 bytes and 100 bytes of content
+	private static final long FILE_SIZE = 124;
+	
+	private File directory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "disk_cache_test");
+		delete(directory);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private static Entry entry() {
+		Entry entry = new Entry();
+		entry.content = new byte[100];
+		entry.expires = Long.MAX_VALUE;
+		return entry;
+	}
+	
+	private File file(Tile tile) {
+		return new File(directory, LAYER+"/"+tile.getZoomLevel()+"/"+tile.getX()+"_"+tile.getY());
+	}
+	
+	public void testTilesWrittenBeforeLoadingAreCountedOnce() {
+		Tile old1 = new Tile(0, 0, 1, null);
+		Tile old2 = new Tile(1, 0, 1, null);
+		Tile new1 = new Tile(0, 1, 1, null);
+		Tile new2 = new Tile(1, 1, 1, null);
+		
+		// the index is loaded before the files of the previous session appear,
+		// as if they weren't listed yet when the next tile is written
+		DiskCache cache = new DiskCache(directory, 3*FILE_SIZE);
+		cache.awaitIndex();
+		DiskCache previous = new DiskCache(directory, Long.MAX_VALUE);
+		assertTrue(previous.putNow(LAYER, old1, entry()));
+		assertTrue(previous.putNow(LAYER, old2, entry()));
+		assertEquals(FILE_SIZE, file(old1).length());
+		file(old1).setLastModified(System.currentTimeMillis() - 200000);
+		file(old2).setLastModified(System.currentTimeMillis() - 100000);
+		assertTrue(cache.putNow(LAYER, new1, entry()));
+		assertEquals(1, cache.getTilesCount());
+		
+		cache.loadIndex();
+		assertEquals(3, cache.getTilesCount());
+		assertEquals(3*FILE_SIZE, cache.getCurrentBytes());
+		
+		// the tile from the previous session is the least recently used one
+		assertTrue(cache.putNow(LAYER, new2, entry()));
+		assertEquals(3*FILE_SIZE, cache.getCurrentBytes());
+		assertFalse(file(old1).exists());
+		assertTrue(file(old2).exists());
+		assertTrue(file(new1).exists());
+		assertTrue(file(new2).exists());
+		
+		// loading again doesn't change anything
+		cache.loadIndex();
+		assertEquals(3, cache.getTilesCount());
+		assertEquals(3*FILE_SIZE, cache.getCurrentBytes());
+		
+		cache.clear();
+		assertEquals(0, cache.getTilesCount());
+		assertEquals(0, cache.getCurrentBytes());
+		assertFalse(file(old2).exists());
+	}
+}
@@ -0,0 +1,181 @@
+package sk.gista.android.maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.test.InstrumentationTestCase;
+
+import sk.gista.android.maps.Layer.Tile;
+import sk.gista.android.maps.RegionSeederTest.TileServer;
+import sk.gista.android.maps.TileRequestScheduler.TileRequest;
+
+/**
+ * Downloads tiles from a local stand-in of the tile server, cancels them in the
+ * middle of the content and resumes them with range requests.
+ */
+public class DownloaderTest extends InstrumentationTestCase {
+	
+	private static final int HELD_OFFSET = 10000;
+	
+	private TileServer server;
+	private File directory;
+	private DiskCache diskCache;
+	private TilesManager.Downloader downloader;
+	private byte[] png;
+	private Tile tile = new Tile(1, 1, 1, null);
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new TileServer();
+		server.start();
+		directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "downloader_test");
+		delete(directory);
+		diskCache = new DiskCache(directory, Long.MAX_VALUE);
+		TmsLayer layer = new TmsLayer(new BBox(0, 0, 1024, 1024), new double[] {2, 1},
+				"http://127.0.0.1:"+server.getPort(), "test", "png");
+		
+		downloader = new TilesManager.Downloader(layer);
+		downloader.diskCache = diskCache;
+		downloader.httpClient = new TileHttpClient(2, 5000, 20000);
+		downloader.bitmapPool = new BitmapPool(0);
+		downloader.partialDownloads = new PartialDownloads();
+		downloader.downloadedBytes = new AtomicLong();
+		downloader.wastedBytes = new AtomicLong();
+		downloader.resumedBytes = new AtomicLong();
+		
+		png = createPng(2*HELD_OFFSET);
+		server.setContent(png, TileServer.ETAG, HELD_OFFSET);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		downloader.httpClient.shutdown();
+		server.close();
+		delete(directory);
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Creates PNG image of a single pixel, padded by a text chunk to the size of
+	 * a usual tile.
+	 */
+	private static byte[] createPng(int padding) throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		png.write(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(1);
+		out.writeInt(1);
+		// 8 bit grayscale
+		out.write(new byte[] {8, 0, 0, 0, 0});
+		writeChunk(png, "IHDR", header.toByteArray());
+		
+		byte[] text = new byte[padding];
+		Arrays.fill(text, (byte) 'a');
+		text[1] = 0;
+		writeChunk(png, "tEXt", text);
+		
+		// filter type of the row and the pixel
+		Deflater deflater = new Deflater();
+		deflater.setInput(new byte[] {0, (byte) 0x80});
+		deflater.finish();
+		byte[] data = new byte[64];
+		byte[] compressed = new byte[deflater.deflate(data)];
+		System.arraycopy(data, 0, compressed, 0, compressed.length);
+		writeChunk(png, "IDAT", compressed);
+		writeChunk(png, "IEND", new byte[0]);
+		return png.toByteArray();
+	}
+	
+	private static void writeChunk(OutputStream png, String type, byte[] data) throws IOException {
+		DataOutputStream out = new DataOutputStream(png);
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	/**
+	 * Starts the download, cancels it after the first part of the tile is received
+	 * and checks that it returns without waiting for the rest.
+	 */
+	private void downloadAndCancel() throws Exception {
+		server.hold();
+		final TileRequest request = new TileRequest(tile, 0, false);
+		final Tile[] result = new Tile[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				result[0] = downloader.load(request);
+			}
+		};
+		thread.start();
+		long timeout = System.currentTimeMillis() + 10000;
+		while (downloader.downloadedBytes.get() < HELD_OFFSET && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		assertEquals(HELD_OFFSET, downloader.downloadedBytes.get());
+		
+		// as TileRequestScheduler cancels running requests
+		request.cancelled = true;
+		request.abort();
+		thread.join(2000);
+		assertFalse("download wasn't aborted", thread.isAlive());
+		server.release();
+		assertNull(result[0].getImage());
+		assertNull(diskCache.get("test", tile));
+	}
+	
+	public void testCancelledDownloadIsAborted() throws Exception {
+		downloadAndCancel();
+		assertEquals(HELD_OFFSET, downloader.downloadedBytes.get());
+		assertEquals(0, downloader.wastedBytes.get());
+	}
+	
+	public void testResumesCancelledDownload() throws Exception {
+		downloadAndCancel();
+		
+		Tile loaded = downloader.load(new TileRequest(tile, 1, false));
+		assertNotNull(loaded.getImage());
+		assertEquals("bytes="+HELD_OFFSET+"-", server.getLastHeader("range"));
+		assertEquals(TileServer.ETAG, server.getLastHeader("if-range"));
+		assertEquals(HELD_OFFSET, downloader.resumedBytes.get());
+		assertEquals(png.length, downloader.downloadedBytes.get());
+		assertEquals(0, downloader.wastedBytes.get());
+		assertTrue(Arrays.equals(png, diskCache.get("test", tile).content));
+	}
+	
+	public void testChangedTileIsDownloadedAgain() throws Exception {
+		downloadAndCancel();
+		server.setContent(png, "\"changed\"", 0);
+		
+		Tile loaded = downloader.load(new TileRequest(tile, 1, false));
+		assertNotNull(loaded.getImage());
+		assertEquals(TileServer.ETAG, server.getLastHeader("if-range"));
+		assertEquals(0, downloader.resumedBytes.get());
+		assertEquals(HELD_OFFSET, downloader.wastedBytes.get());
+		assertEquals(HELD_OFFSET + png.length, downloader.downloadedBytes.get());
+		assertTrue(Arrays.equals(png, diskCache.get("test", tile).content));
+	}
+}
@@ -0,0 +1,75 @@
+package sk.gista.android.maps;
+
+import static java.lang.String.format;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Measures drawing of the map rotated by 0, 45 and 90 degrees, while it is
+ * moved over cached tiles. Count of the tiles intersecting the rotated
+ * viewport and time per frame are logged. Without rotation the frames are
+ * drawn through the back buffer.
+ */
+public class HeadingBenchmark extends InstrumentationTestCase {
+	
+	private static final String TAG = HeadingBenchmark.class.getSimpleName();
+	
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+	private static final int FRAMES = 100;
+	
+	private Map map;
+	private Canvas canvas;
+	
+	@Override
+	protected void setUp() throws Exception {
+		// 20x20 tiles of 256 map units at zoom level 1, all cached
+		TmsLayer layer = new TmsLayer(new BBox(0, 0, 5120, 5120), new double[] {2, 1},
+				"http://localhost", "test", "png");
+		map = new Map(getInstrumentation().getTargetContext());
+		map.setLayer(layer);
+		map.setZoom(1);
+		map.layout(0, 0, WIDTH, HEIGHT);
+		
+		MemoryCache cache = map.getTilesManager().getCache();
+		cache.setMaxBytes(Long.MAX_VALUE);
+		for (int x = 0; x < 20; x++) {
+			for (int y = 0; y < 20; y++) {
+				cache.putTile(new Tile(x, y, 1, Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565)));
+			}
+		}
+		canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		map.setLayer(null);
+	}
+	
+	public void testHeadings() {
+		for (int heading : new int[] {0, 45, 90}) {
+			map.setHeading(heading);
+			long time = 0;
+			int minTiles = Integer.MAX_VALUE;
+			int maxTiles = 0;
+			// first round warms up the code
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < FRAMES; i++) {
+					map.setCenter(2000 + i*10, 2000 + i*5);
+					map.onDraw(canvas);
+					minTiles = Math.min(minTiles, map.getVisibleTilesCount());
+					maxTiles = Math.max(maxTiles, map.getVisibleTilesCount());
+				}
+				time = System.nanoTime() - start;
+			}
+			Log.i(TAG, format("heading %d: %d - %d tiles, %.2f ms per frame", heading,
+					minTiles, maxTiles, time / 1000000.0 / FRAMES));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package sk.gista.android.maps;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Checks that drawing of the map doesn't allocate while it is dragged over
+ * cached tiles, also when the visible and prefetched tiles change.
+ */
+public class MapAllocationTest extends InstrumentationTestCase {
+	
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+	
+	private Map map;
+	private Canvas canvas;
+	
+	@Override
+	protected void setUp() throws Exception {
+		// 20x20 tiles of 256 map units at zoom level 1
+		TmsLayer layer = new TmsLayer(new BBox(0, 0, 5120, 5120), new double[] {2, 1},
+				"http://localhost", "test", "png");
+		map = new Map(getInstrumentation().getTargetContext());
+		map.setLayer(layer);
+		map.setZoom(1);
+		map.layout(0, 0, WIDTH, HEIGHT);
+		
+		// all tiles which become visible or prefetched while dragging are cached
+		MemoryCache cache = map.getTilesManager().getCache();
+		cache.setMaxBytes(Long.MAX_VALUE);
+		for (int x = 0; x < 12; x++) {
+			for (int y = 0; y < 12; y++) {
+				cache.putTile(new Tile(x, y, 1, Bitmap.createBitmap(64, 64, Bitmap.Config.RGB_565)));
+			}
+		}
+		canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		map.setLayer(null);
+	}
+	
+	/**
+	 * Drags the map across several tile columns and back, one frame per step.
+	 */
+	private void drag() {
+		for (int x = 1000; x <= 2000; x += 50) {
+			map.setCenter(x, 1500);
+			map.onDraw(canvas);
+		}
+		for (int x = 2000; x >= 1000; x -= 50) {
+			map.setCenter(x, 1500 + (2000-x) / 4);
+			map.onDraw(canvas);
+		}
+	}
+	
+	private int getCachedTiles() {
+		TilesManager tilesManager = map.getTilesManager();
+		int found = 0;
+		for (int round = 0; round < 100; round++) {
+			for (int x = 0; x < 12; x++) {
+				for (int y = 0; y < 12; y++) {
+					if (tilesManager.getTile(x, y) != null && tilesManager.hasInCache(x, y)) {
+						found++;
+					}
+				}
+			}
+		}
+		return found;
+	}
+	
+	public void testCachedTilesDoNotAllocate() {
+		// first round warms up the code
+		getCachedTiles();
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		int found = getCachedTiles();
+		Debug.stopAllocCounting();
+		assertEquals("objects allocated by cache hits", 0, Debug.getThreadAllocCount());
+		assertEquals(14400, found);
+	}
+	
+	public void testDrawingDoesNotAllocate() {
+		// first drag grows the preallocated arrays and pools
+		drag();
+		
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		drag();
+		Debug.stopAllocCounting();
+		assertEquals("objects allocated while drawing", 0, Debug.getThreadAllocCount());
+	}
+}
@@ -0,0 +1,58 @@
+package sk.gista.android.maps;
+
+import android.test.InstrumentationTestCase;
+import android.view.MotionEvent;
+
+import com.jhlabs.geom.Point2D;
+
+/**
+ * Drags the rotated map, the center moves along the rotated axes of the screen.
+ */
+public class MapHeadingTest extends InstrumentationTestCase {
+	
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+	
+	private Map map;
+	
+	@Override
+	protected void setUp() throws Exception {
+		// 20x20 tiles of 256 map units at zoom level 1 (1 map unit per pixel)
+		TmsLayer layer = new TmsLayer(new BBox(0, 0, 5120, 5120), new double[] {2, 1},
+				"http://localhost", "test", "png");
+		map = new Map(getInstrumentation().getTargetContext());
+		map.setLayer(layer);
+		map.setZoom(1);
+		map.setCenter(2000, 2000);
+		map.layout(0, 0, WIDTH, HEIGHT);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		map.setLayer(null);
+	}
+	
+	private void drag(float fromX, float fromY, float toX, float toY) {
+		MotionEvent event = MotionEvent.obtain(0, 0, MotionEvent.ACTION_DOWN, fromX, fromY, 0);
+		map.onTouchEvent(event);
+		event.recycle();
+		event = MotionEvent.obtain(0, 10, MotionEvent.ACTION_MOVE, toX, toY, 0);
+		map.onTouchEvent(event);
+		event.recycle();
+	}
+	
+	public void testDragWithoutHeading() {
+		drag(240, 400, 340, 400);
+		Point2D center = map.getCenter();
+		assertEquals(1900, center.x, 0.001);
+		assertEquals(2000, center.y, 0.001);
+	}
+	
+	public void testDragAtHeading90() {
+		map.setHeading(90);
+		drag(240, 400, 340, 400);
+		Point2D center = map.getCenter();
+		assertEquals(2000, center.x, 0.001);
+		assertEquals(2100, center.y, 0.001);
+	}
+}
@@ -0,0 +1,158 @@
+package sk.gista.android.maps;
+
+import static java.lang.String.format;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.util.Log;
+
+import com.jhlabs.geom.Point2D;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Measures insertion of tiles into the full MemoryCache, where every inserted
+ * tile evicts the most far away one, against a linear scan of the cached tiles
+ * for the most far away tile. Tiles are spread over 128 x 128 tiles and the
+ * center moves after every 16 tiles, as while panning. Results are logged.
+ */
+public class MemoryCacheBenchmark extends TestCase {
+	
+	private static final String TAG = MemoryCacheBenchmark.class.getSimpleName();
+	
+	private static final int TILE_BYTES = 4 * 4 * 4;
+	private static final int LAYER_TILES = 128;
+	private static final int EVICTIONS = 10000;
+	private static final int SCANS = 1000;
+	private static final int CENTER_MOVE = 16;
+	
+	private TmsLayer layer;
+	private Point2D center;
+	private MapView map;
+	
+	@Override
+	protected void setUp() throws Exception {
+		layer = new TmsLayer(new BBox(0, 0, LAYER_TILES*256, LAYER_TILES*256), new double[] {1},
+				"http://localhost", "test", "png");
+		center = new Point2D(128, 128);
+		map = (MapView) Proxy.newProxyInstance(MapView.class.getClassLoader(), new Class[] {MapView.class},
+				new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getZoom")) {
+					return 0;
+				} else if (method.getName().equals("getLayer")) {
+					return layer;
+				} else if (method.getName().equals("getCenter")) {
+					return center;
+				}
+				return null;
+			}
+		});
+	}
+	
+	public void testEviction25() {
+		benchmark(25);
+	}
+	
+	public void testEviction256() {
+		benchmark(256);
+	}
+	
+	public void testEviction4096() {
+		benchmark(4096);
+	}
+	
+	private void moveCenter(Random random) {
+		center.x = random.nextInt(LAYER_TILES)*256 + 128;
+		center.y = random.nextInt(LAYER_TILES)*256 + 128;
+	}
+	
+	/**
+	 * Creates tiles at distinct random positions of the layer.
+	 */
+	private static Tile[] createTiles(int count) {
+		List<Integer> positions = new ArrayList<Integer>(LAYER_TILES*LAYER_TILES);
+		for (int i = 0; i < LAYER_TILES*LAYER_TILES; i++) {
+			positions.add(i);
+		}
+		Collections.shuffle(positions, new Random(1));
+		Tile[] tiles = new Tile[count];
+		for (int i = 0; i < count; i++) {
+			int position = positions.get(i);
+			tiles[i] = new Tile(position % LAYER_TILES, position / LAYER_TILES, 0,
+					Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888));
+		}
+		return tiles;
+	}
+	
+	private void benchmark(int capacity) {
+		MemoryCache cache = null;
+		Tile[] tiles = null;
+		long evictionTime = 0;
+		// first round warms up the code
+		for (int round = 0; round < 2; round++) {
+			Random random = new Random(2);
+			tiles = createTiles(capacity + EVICTIONS);
+			cache = new MemoryCache(map, capacity*TILE_BYTES, new BitmapPool(0));
+			for (int i = 0; i < capacity; i++) {
+				cache.putTile(tiles[i]);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < EVICTIONS; i++) {
+				if (i % CENTER_MOVE == 0) {
+					moveCenter(random);
+				}
+				cache.putTile(tiles[capacity + i]);
+			}
+			evictionTime = System.nanoTime() - start;
+		}
+		assertEquals(EVICTIONS, cache.getEvictionCount());
+		assertEquals(capacity, cache.size());
+		
+		List<Tile> cached = new ArrayList<Tile>(capacity);
+		for (Tile tile : tiles) {
+			if (tile.getImage() != null) {
+				cached.add(tile);
+			}
+		}
+		assertEquals(capacity, cached.size());
+		
+		// the center tile is computed for every cached tile, as in the nested loop
+		// which was used for the eviction before
+		Random random = new Random(3);
+		Point centerTile = new Point();
+		long farSum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < SCANS; i++) {
+			moveCenter(random);
+			Tile mostFarAway = null;
+			int maxDistance = -1;
+			for (Tile tile : cached) {
+				layer.getTileAt(center.x, center.y, 0, centerTile);
+				int distance = Math.abs(centerTile.x-tile.getX())+Math.abs(centerTile.y-tile.getY());
+				if (distance > maxDistance) {
+					mostFarAway = tile;
+					maxDistance = distance;
+				}
+			}
+			farSum += mostFarAway.getX();
+		}
+		long scanTime = System.nanoTime() - start;
+		assertTrue(farSum >= 0);
+		
+		Log.i(TAG, format("%d tiles: insert with eviction %.2f us, linear scan %.2f us", capacity,
+				evictionTime / 1000.0 / EVICTIONS, scanTime / 1000.0 / SCANS));
+	}
+}
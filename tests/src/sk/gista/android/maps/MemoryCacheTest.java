@@ -0,0 +1,169 @@
+package sk.gista.android.maps;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+
+import com.jhlabs.geom.Point2D;
+
+import sk.gista.android.maps.Layer.Tile;
+
+public class MemoryCacheTest extends TestCase {
+	
+	private static final int TILE_BYTES = 16 * 16 * 4;
+	
+	private TmsLayer layer;
+	private Point2D center;
+	private MapView map;
+	
+	@Override
+	protected void setUp() throws Exception {
+		// 20x20 tiles of 256 map units at zoom level 0
+		layer = new TmsLayer(new BBox(0, 0, 5120, 5120), new double[] {1}, "http://localhost", "test", "png");
+		center = new Point2D(128, 128);
+		map = (MapView) Proxy.newProxyInstance(MapView.class.getClassLoader(), new Class[] {MapView.class},
+				new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getZoom")) {
+					return 0;
+				} else if (method.getName().equals("getLayer")) {
+					return layer;
+				} else if (method.getName().equals("getCenter")) {
+					return center;
+				}
+				return null;
+			}
+		});
+	}
+	
+	private void setCenterTile(int x, int y) {
+		center.x = x*256 + 128;
+		center.y = y*256 + 128;
+	}
+	
+	private static Tile newTile(int x, int y) {
+		return new Tile(x, y, 0, Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888));
+	}
+	
+	public void testEvictsMostFarAwayTileFromNewCenter() {
+		MemoryCache cache = new MemoryCache(map, 4*TILE_BYTES, new BitmapPool(0));
+		for (int x = 0; x < 4; x++) {
+			cache.putTile(newTile(x, 0));
+		}
+		cache.putTile(newTile(4, 0));
+		assertFalse(cache.containsTile(3, 0, 0));
+		
+		// distances are re-keyed from the new center on the next eviction
+		setCenterTile(4, 0);
+		cache.putTile(newTile(5, 0));
+		assertFalse(cache.containsTile(0, 0, 0));
+		cache.putTile(newTile(6, 0));
+		assertFalse(cache.containsTile(1, 0, 0));
+		assertTrue(cache.containsTile(2, 0, 0));
+		assertTrue(cache.containsTile(4, 0, 0));
+		assertTrue(cache.containsTile(5, 0, 0));
+		assertTrue(cache.containsTile(6, 0, 0));
+		assertEquals(3, cache.getEvictionCount());
+	}
+	
+	public void testKeepsPlaceholdersOfRequestedTiles() {
+		MemoryCache cache = new MemoryCache(map, 2*TILE_BYTES, new BitmapPool(0));
+		// requested tiles most far away from the center
+		cache.putTile(new Tile(9, 0, 0, null));
+		cache.putTile(new Tile(8, 0, 0, null));
+		cache.putTile(newTile(0, 0));
+		cache.putTile(newTile(1, 0));
+		cache.putTile(newTile(2, 0));
+		cache.putTile(newTile(3, 0));
+		
+		assertTrue(cache.containsTile(9, 0, 0));
+		assertTrue(cache.containsTile(8, 0, 0));
+		assertTrue(cache.containsTile(0, 0, 0));
+		assertTrue(cache.containsTile(3, 0, 0));
+		assertEquals(4, cache.size());
+		assertEquals(2, cache.getEvictionCount());
+		assertEquals(2*TILE_BYTES, cache.getCurrentBytes());
+	}
+	
+	public void testHeapOrderAfterCenterMoves() {
+		Random random = new Random(7);
+		MemoryCache cache = new MemoryCache(map, 30*TILE_BYTES, new BitmapPool(0));
+		List<Tile> cached = new ArrayList<Tile>();
+		for (int i = 0; i < 500; i++) {
+			if (i % 25 == 0) {
+				setCenterTile(random.nextInt(20), random.nextInt(20));
+			}
+			int x = random.nextInt(20);
+			int y = random.nextInt(20);
+			if (cache.containsTile(x, y, 0)) {
+				continue;
+			}
+			Tile tile = newTile(x, y);
+			cache.putTile(tile);
+			cached.add(tile);
+			
+			// evicted tiles have their images released
+			List<Tile> evicted = new ArrayList<Tile>();
+			for (Tile t : cached) {
+				if (t.getImage() == null) {
+					evicted.add(t);
+				}
+			}
+			cached.removeAll(evicted);
+			for (Tile victim : evicted) {
+				assertFalse(cache.containsTile(victim));
+				for (Tile t : cached) {
+					if (t != tile) {
+						assertTrue("tile "+t.getX()+","+t.getY()+" is further than evicted tile "
+								+victim.getX()+","+victim.getY(), distance(t) <= distance(victim));
+					}
+				}
+			}
+			assertEquals(cached.size(), cache.size());
+		}
+	}
+	
+	public void testHitsDoNotAllocate() {
+		MemoryCache cache = new MemoryCache(map, 100*TILE_BYTES, new BitmapPool(0));
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				cache.putTile(newTile(x, y));
+			}
+		}
+		// first round warms up the code
+		lookup(cache);
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		lookup(cache);
+		Debug.stopAllocCounting();
+		assertEquals("objects allocated by cache hits", 0, Debug.getThreadAllocCount());
+		assertEquals(20000, cache.getHitCount());
+	}
+	
+	private static void lookup(MemoryCache cache) {
+		for (int round = 0; round < 100; round++) {
+			for (int x = 0; x < 10; x++) {
+				for (int y = 0; y < 10; y++) {
+					cache.getTile(x, y, 0);
+					cache.peekTile(x, y, 0);
+				}
+			}
+		}
+	}
+	
+	private int distance(Tile tile) {
+		int centerX = (int) Math.floor(center.x / 256);
+		int centerY = (int) Math.floor(center.y / 256);
+		return Math.abs(centerX-tile.getX())+Math.abs(centerY-tile.getY());
+	}
+}
@@ -0,0 +1,158 @@
+package sk.gista.android.maps;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Measures random reads of tiles from the packed archive against reading the
+ * same tiles from one file per tile, and from the DiskCache which also stores
+ * a file per tile. All 1365 tiles of zoom levels 0 - 5 have 4 kB and are read
+ * into a reused buffer, as the Downloader does before decoding. Files are in
+ * the page cache after they are written. Results are logged.
+ */
+public class PackedTileSourceBenchmark extends InstrumentationTestCase {
+	
+	private static final String TAG = PackedTileSourceBenchmark.class.getSimpleName();
+	
+	private static final int MAX_ZOOM = 5;
+	private static final int TILE_SIZE = 4096;
+	private static final int READS = 5000;
+	
+	private File directory;
+	private File archive;
+	private File cacheDirectory;
+	private byte[] buffer = new byte[TILE_SIZE];
+	
+	@Override
+	protected void setUp() throws Exception {
+		File cacheDir = getInstrumentation().getTargetContext().getCacheDir();
+		directory = new File(cacheDir, "packer_benchmark");
+		archive = new File(cacheDir, "packer_benchmark.pack");
+		cacheDirectory = new File(cacheDir, "packer_benchmark_cache");
+		delete(directory);
+		delete(cacheDirectory);
+		archive.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+		delete(cacheDirectory);
+		archive.delete();
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private File tileFile(Tile tile) {
+		return new File(directory, tile.getZoomLevel()+"/"+tile.getX()+"/"+tile.getY()+".png");
+	}
+	
+	private Tile randomTile(Random random) {
+		int zoom = random.nextInt(MAX_ZOOM+1);
+		return new Tile(random.nextInt(1 << zoom), random.nextInt(1 << zoom), zoom, null);
+	}
+	
+	private int readFile(Tile tile) throws IOException {
+		FileInputStream in = new FileInputStream(tileFile(tile));
+		try {
+			int length = 0;
+			int result;
+			while ((result = in.read(buffer, length, buffer.length-length)) > 0) {
+				length += result;
+			}
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+	
+	public void testRandomReads() throws IOException {
+		Random random = new Random(1);
+		DiskCache diskCache = new DiskCache(cacheDirectory, Long.MAX_VALUE);
+		int tilesCount = 0;
+		for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+			for (int x = 0; x < 1 << zoom; x++) {
+				for (int y = 0; y < 1 << zoom; y++) {
+					Tile tile = new Tile(x, y, zoom, null);
+					DiskCache.Entry entry = new DiskCache.Entry();
+					entry.content = new byte[TILE_SIZE];
+					entry.expires = Long.MAX_VALUE;
+					random.nextBytes(entry.content);
+					
+					File file = tileFile(tile);
+					file.getParentFile().mkdirs();
+					FileOutputStream out = new FileOutputStream(file);
+					try {
+						out.write(entry.content);
+					} finally {
+						out.close();
+					}
+					assertTrue(diskCache.putNow("test", tile, entry));
+					tilesCount++;
+				}
+			}
+		}
+		assertEquals(tilesCount, TilePacker.packDirectory(directory, archive));
+		PackedTileSource source = new PackedTileSource(archive);
+		
+		long packedTime = 0;
+		long fileTime = 0;
+		long diskCacheTime = 0;
+		// first round warms up the code
+		for (int round = 0; round < 2; round++) {
+			random = new Random(2);
+			long bytes = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < READS; i++) {
+				ByteBuffer data = source.getTileData(randomTile(random));
+				int length = data.remaining();
+				data.get(buffer, 0, length);
+				bytes += length;
+			}
+			packedTime = System.nanoTime() - start;
+			assertEquals(READS * (long) TILE_SIZE, bytes);
+			
+			random = new Random(2);
+			bytes = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < READS; i++) {
+				bytes += readFile(randomTile(random));
+			}
+			fileTime = System.nanoTime() - start;
+			assertEquals(READS * (long) TILE_SIZE, bytes);
+			
+			random = new Random(2);
+			bytes = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < READS; i++) {
+				bytes += diskCache.get("test", randomTile(random)).content.length;
+			}
+			diskCacheTime = System.nanoTime() - start;
+			assertEquals(READS * (long) TILE_SIZE, bytes);
+		}
+		source.close();
+		
+		Log.i(TAG, format("%d tiles: packed archive %.1f us, file per tile %.1f us, disk cache %.1f us",
+				tilesCount, packedTime / 1000.0 / READS, fileTime / 1000.0 / READS,
+				diskCacheTime / 1000.0 / READS));
+	}
+}
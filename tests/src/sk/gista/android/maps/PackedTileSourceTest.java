@@ -0,0 +1,132 @@
+package sk.gista.android.maps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.InstrumentationTestCase;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Packs a directory of tiles with TilePacker and reads it back.
+ */
+public class PackedTileSourceTest extends InstrumentationTestCase {
+	
+	private File directory;
+	private File archive;
+	private List<Tile> tiles = new ArrayList<Tile>();
+	
+	@Override
+	protected void setUp() throws Exception {
+		File cacheDir = getInstrumentation().getTargetContext().getCacheDir();
+		directory = new File(cacheDir, "packer_test");
+		archive = new File(cacheDir, "packer_test.pack");
+		delete(directory);
+		archive.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+		archive.delete();
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private static byte[] content(Tile tile) throws IOException {
+		return ("tile "+tile.getZoomLevel()+"/"+tile.getX()+"/"+tile.getY()).getBytes("US-ASCII");
+	}
+	
+	private void writeTile(int zoom, int x, int y) throws IOException {
+		Tile tile = new Tile(x, y, zoom, null);
+		File file = new File(directory, zoom+"/"+x+"/"+y+".png");
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content(tile));
+		} finally {
+			out.close();
+		}
+		tiles.add(tile);
+	}
+	
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+	
+	public void testLookupOfAllPackedTiles() throws IOException {
+		for (int zoom = 0; zoom <= 4; zoom++) {
+			int count = 1 << zoom;
+			for (int x = 0; x < count; x++) {
+				for (int y = 0; y < count; y += 2) {
+					writeTile(zoom, x, y);
+				}
+			}
+		}
+		// tiles far from the origin, keys use all bits of the indexes
+		writeTile(18, 0xFFFFFFF, 0xFFFFFFF);
+		writeTile(18, 123456, 7);
+		// files and directories which aren't tiles
+		new File(directory, "1/abc").mkdirs();
+		new FileOutputStream(new File(directory, "1/0/readme.txt")).close();
+		
+		assertEquals(tiles.size(), TilePacker.packDirectory(directory, archive));
+		PackedTileSource source = new PackedTileSource(archive);
+		try {
+			assertEquals(tiles.size(), source.getTilesCount());
+			for (Tile tile : tiles) {
+				ByteBuffer data = source.getTileData(new Tile(tile.getX(), tile.getY(), tile.getZoomLevel(), null));
+				assertNotNull("missing tile "+tile.getZoomLevel()+"/"+tile.getX()+"/"+tile.getY(), data);
+				assertEquals(new String(content(tile), "US-ASCII"), new String(toArray(data), "US-ASCII"));
+			}
+			// misses before, between and after the packed keys
+			assertNull(source.getTileData(new Tile(0, 1, 0, null)));
+			assertNull(source.getTileData(new Tile(3, 3, 2, null)));
+			assertNull(source.getTileData(new Tile(123456, 8, 18, null)));
+			assertNull(source.getTileData(new Tile(0, 0, 19, null)));
+		} finally {
+			source.close();
+		}
+	}
+	
+	public void testEmptyArchive() throws IOException {
+		directory.mkdirs();
+		assertEquals(0, TilePacker.packDirectory(directory, archive));
+		PackedTileSource source = new PackedTileSource(archive);
+		try {
+			assertEquals(0, source.getTilesCount());
+			assertNull(source.getTileData(new Tile(0, 0, 0, null)));
+		} finally {
+			source.close();
+		}
+	}
+	
+	public void testInvalidArchive() throws IOException {
+		FileOutputStream out = new FileOutputStream(archive);
+		try {
+			out.write(content(new Tile(0, 0, 0, null)));
+		} finally {
+			out.close();
+		}
+		try {
+			new PackedTileSource(archive);
+			fail("invalid archive was opened");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
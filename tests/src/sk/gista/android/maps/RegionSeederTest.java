@@ -0,0 +1,340 @@
+package sk.gista.android.maps;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.InstrumentationTestCase;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Seeds tiles from a local stand-in of the tile server.
+ */
+public class RegionSeederTest extends InstrumentationTestCase {
+	
+	private TileServer server;
+	private File directory;
+	private DiskCache store;
+	private TmsLayer layer;
+	private TileHttpClient httpClient;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new TileServer();
+		server.start();
+		directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "seeder_test");
+		delete(directory);
+		store = new DiskCache(directory, Long.MAX_VALUE);
+		// 2x2 tiles at zoom level 0 and 4x4 tiles at zoom level 1, the extent
+		// is an exact multiple of the tile size
+		layer = new TmsLayer(new BBox(0, 0, 1024, 1024), new double[] {2, 1},
+				"http://127.0.0.1:"+server.getPort(), "test", "png");
+		httpClient = new TileHttpClient(2, 5000, 5000);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		delete(directory);
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private static List<String> allTiles() {
+		List<String> tiles = new ArrayList<String>();
+		for (int zoom = 0; zoom <= 1; zoom++) {
+			int count = 2 << zoom;
+			for (int x = 0; x < count; x++) {
+				for (int y = 0; y < count; y++) {
+					tiles.add("/1.0.0/test/"+zoom+"/"+x+"/"+y+".png");
+				}
+			}
+		}
+		Collections.sort(tiles);
+		return tiles;
+	}
+	
+	public void testEstimateOfExactExtent() {
+		RegionSeeder seeder = new RegionSeeder(layer, store, httpClient);
+		assertEquals(20, seeder.estimate(new BBox(0, 0, 1024, 1024), 0, 1).tilesCount);
+		// region larger than the layer
+		assertEquals(20, seeder.estimate(new BBox(-500, -500, 2000, 2000), 0, 5).tilesCount);
+		// single tile at zoom level 1
+		assertEquals(1, seeder.estimate(new BBox(300, 300, 400, 400), 1, 1).tilesCount);
+	}
+	
+	public void testDownloadsAllTilesOfRange() throws Exception {
+		RegionSeeder seeder = new RegionSeeder(layer, store, httpClient);
+		Listener listener = new Listener();
+		seeder.start(new BBox(0, 0, 1024, 1024), 0, 1, listener);
+		listener.await();
+		
+		assertFalse(listener.cancelled);
+		assertEquals(0, listener.failedTiles);
+		assertEquals(20, seeder.getProcessedCount());
+		assertEquals(allTiles(), server.getRequests());
+		for (int zoom = 0; zoom <= 1; zoom++) {
+			int count = 2 << zoom;
+			for (int x = 0; x < count; x++) {
+				for (int y = 0; y < count; y++) {
+					assertTrue(store.contains("test", new Tile(x, y, zoom, null)));
+				}
+			}
+		}
+	}
+	
+	public void testSkipsStoredTiles() throws Exception {
+		RegionSeeder seeder = new RegionSeeder(layer, store, httpClient);
+		DiskCache.Entry entry = new DiskCache.Entry();
+		entry.content = TileServer.CONTENT;
+		store.putNow("test", new Tile(0, 0, 0, null), entry);
+		store.putNow("test", new Tile(3, 3, 1, null), entry);
+		
+		Listener listener = new Listener();
+		seeder.start(new BBox(0, 0, 1024, 1024), 0, 1, listener);
+		listener.await();
+		
+		assertEquals(20, seeder.getProcessedCount());
+		List<String> expected = allTiles();
+		expected.remove("/1.0.0/test/0/0/0.png");
+		expected.remove("/1.0.0/test/1/3/3.png");
+		assertEquals(expected, server.getRequests());
+	}
+	
+	public void testCancelAndResume() throws Exception {
+		RegionSeeder seeder = new RegionSeeder(layer, store, httpClient);
+		seeder.setThreadsCount(1);
+		server.hold();
+		Listener listener = new Listener();
+		seeder.start(new BBox(0, 0, 1024, 1024), 0, 1, listener);
+		server.awaitRequest();
+		seeder.cancel();
+		listener.await();
+		server.release();
+		
+		assertTrue(listener.cancelled);
+		assertEquals(0, listener.failedTiles);
+		assertTrue(seeder.getProcessedCount() < 20);
+		assertFalse(seeder.isRunning());
+		
+		// started again with the same parameters, it downloads only the rest
+		int stored = store.getTilesCount();
+		server.clearRequests();
+		listener = new Listener();
+		seeder.start(new BBox(0, 0, 1024, 1024), 0, 1, listener);
+		listener.await();
+		
+		assertFalse(listener.cancelled);
+		assertEquals(20 - stored, server.getRequests().size());
+		assertEquals(20, store.getTilesCount());
+	}
+	
+	private static class Listener implements RegionSeeder.SeedListener {
+		CountDownLatch finished = new CountDownLatch(1);
+		boolean cancelled;
+		int failedTiles;
+		
+		@Override
+		public void onProgress(int processedTiles, int totalTiles) {}
+		
+		@Override
+		public void onFinished(boolean cancelled, int failedTiles) {
+			this.cancelled = cancelled;
+			this.failedTiles = failedTiles;
+			finished.countDown();
+		}
+		
+		void await() throws InterruptedException {
+			assertTrue("seeding didn't finish", finished.await(10, TimeUnit.SECONDS));
+		}
+	}
+	
+	/**
+	 * Minimal HTTP server which answers every request with the same tile and
+	 * records the requested paths. Responses can be held back to cancel the
+	 * seeding during a download. Range requests are answered with the rest of
+	 * the tile when the If-Range header matches its entity tag.
+	 */
+	static class TileServer extends Thread {
+		
+		static final byte[] CONTENT = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+		static final String ETAG = "\"tile\"";
+		
+		private ServerSocket socket;
+		private List<String> requests = new ArrayList<String>();
+		private java.util.Map<String, String> lastHeaders = new HashMap<String, String>();
+		private byte[] content = CONTENT;
+		private String etag = ETAG;
+		private int heldOffset;
+		private CountDownLatch requested;
+		private CountDownLatch released;
+		
+		TileServer() throws IOException {
+			super("TileServer");
+			setDaemon(true);
+			socket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+		}
+		
+		int getPort() {
+			return socket.getLocalPort();
+		}
+		
+		synchronized List<String> getRequests() {
+			List<String> sorted = new ArrayList<String>(requests);
+			Collections.sort(sorted);
+			return sorted;
+		}
+		
+		synchronized void clearRequests() {
+			requests.clear();
+		}
+		
+		/**
+		 * @param name lower case name of the header
+		 * @return value of the header of the last request, or null
+		 */
+		synchronized String getLastHeader(String name) {
+			return lastHeaders.get(name);
+		}
+		
+		/**
+		 * Sets the served tile and its entity tag.
+		 * 
+		 * @param heldOffset bytes of the tile sent before a held response waits
+		 * for the release, 0 holds the whole response
+		 */
+		synchronized void setContent(byte[] content, String etag, int heldOffset) {
+			this.content = content;
+			this.etag = etag;
+			this.heldOffset = heldOffset;
+		}
+		
+		/**
+		 * Holds responses until {@link #release()} is called.
+		 */
+		synchronized void hold() {
+			requested = new CountDownLatch(1);
+			released = new CountDownLatch(1);
+		}
+		
+		void release() {
+			CountDownLatch latch;
+			synchronized (this) {
+				latch = released;
+				released = null;
+			}
+			latch.countDown();
+		}
+		
+		void awaitRequest() throws InterruptedException {
+			assertTrue("no request", requested.await(10, TimeUnit.SECONDS));
+		}
+		
+		void close() throws IOException {
+			socket.close();
+		}
+		
+		@Override
+		public void run() {
+			while (!socket.isClosed()) {
+				try {
+					final Socket client = socket.accept();
+					new Thread() {
+						@Override
+						public void run() {
+							serve(client);
+						}
+					}.start();
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+		
+		private void serve(Socket client) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+				String requestLine;
+				while ((requestLine = in.readLine()) != null) {
+					java.util.Map<String, String> headers = new HashMap<String, String>();
+					String line;
+					while ((line = in.readLine()) != null && line.length() > 0) {
+						int colon = line.indexOf(':');
+						if (colon > 0) {
+							headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon+1).trim());
+						}
+					}
+					CountDownLatch hold;
+					byte[] content;
+					String etag;
+					int heldOffset;
+					synchronized (this) {
+						requests.add(requestLine.split(" ")[1]);
+						lastHeaders = headers;
+						hold = released;
+						content = this.content;
+						etag = this.etag;
+						heldOffset = this.heldOffset;
+						if (requested != null) {
+							requested.countDown();
+						}
+					}
+					if (hold != null && heldOffset == 0) {
+						hold.await(10, TimeUnit.SECONDS);
+						hold = null;
+					}
+					
+					String status = "200 OK";
+					String contentRange = "";
+					int offset = 0;
+					String range = headers.get("range");
+					if (range != null && etag.equals(headers.get("if-range"))) {
+						// only "bytes=offset-" ranges are requested by the downloader
+						offset = Integer.parseInt(range.substring("bytes=".length(), range.length()-1));
+						status = "206 Partial Content";
+						contentRange = "Content-Range: bytes "+offset+"-"+(content.length-1)+"/"+content.length+"\r\n";
+					}
+					OutputStream out = client.getOutputStream();
+					out.write(("HTTP/1.1 "+status+"\r\nContent-Type: image/png\r\nETag: "+etag+"\r\n"+
+							contentRange+"Content-Length: "+(content.length-offset)+"\r\n\r\n").getBytes("US-ASCII"));
+					if (hold != null && heldOffset > offset) {
+						out.write(content, offset, heldOffset-offset);
+						out.flush();
+						hold.await(10, TimeUnit.SECONDS);
+						offset = heldOffset;
+					}
+					out.write(content, offset, content.length-offset);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// connection aborted by the client
+			} catch (InterruptedException e) {
+				// server closed
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package sk.gista.android.maps;
+
+import static java.lang.String.format;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.PointF;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.jhlabs.geom.Point2D;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Measures transformations between map and screen coordinates of the Map at
+ * EPSG:3857 coordinates around 2.3e6/6.2e6 and 0.1 m/px, against the former
+ * transformation computed in floats. Time per point and the maximal error of
+ * the screen to map round trip are logged.
+ */
+public class TransformBenchmark extends InstrumentationTestCase {
+	
+	private static final String TAG = TransformBenchmark.class.getSimpleName();
+	
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+	private static final double MIN_X = 2300000;
+	private static final double MIN_Y = 6200000;
+	private static final double RESOLUTION = 0.1;
+	private static final int POINTS = 100000;
+	
+	private Map map;
+	private double[] xs = new double[POINTS];
+	private double[] ys = new double[POINTS];
+	
+	@Override
+	protected void setUp() throws Exception {
+		TmsLayer layer = new TmsLayer(new BBox(MIN_X, MIN_Y, MIN_X+25600, MIN_Y+25600),
+				new double[] {1, RESOLUTION}, "http://localhost", "test", "png");
+		// no tiles are loaded
+		layer.setTileSource(new TileSource() {
+			
+			@Override
+			public ByteBuffer getTileData(Tile tile) {
+				return null;
+			}
+			
+			@Override
+			public void close() {}
+		});
+		map = new Map(getInstrumentation().getTargetContext());
+		map.setLayer(layer);
+		map.setZoom(1);
+		map.setCenter(MIN_X+12800.05, MIN_Y+12800.05);
+		map.layout(0, 0, WIDTH, HEIGHT);
+		// first frame computes the position of the first visible tile
+		map.onDraw(new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565)));
+		
+		// points in the visible area
+		Random random = new Random(1);
+		for (int i = 0; i < POINTS; i++) {
+			xs[i] = MIN_X+12800.05 + (random.nextDouble()-0.5) * WIDTH * RESOLUTION;
+			ys[i] = MIN_Y+12800.05 + (random.nextDouble()-0.5) * HEIGHT * RESOLUTION;
+		}
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		map.setLayer(null);
+	}
+	
+	public void testTransforms() {
+		PointF screen = new PointF();
+		Point2D position = new Point2D();
+		Point2D center = map.getCenter();
+		float centerX = (float) center.x;
+		float centerY = (float) center.y;
+		float resolution = (float) RESOLUTION;
+		
+		long mapToScreenTime = 0;
+		long alignedTime = 0;
+		long screenToMapTime = 0;
+		long floatTime = 0;
+		float sum = 0;
+		// first round warms up the code
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < POINTS; i++) {
+				sum += map.mapToScreen(xs[i], ys[i], screen).x;
+			}
+			mapToScreenTime = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int i = 0; i < POINTS; i++) {
+				sum += map.mapToScreenAligned(xs[i], ys[i], screen).x;
+			}
+			alignedTime = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int i = 0; i < POINTS; i++) {
+				sum += map.screenToMap(i % WIDTH, i % HEIGHT, position).x;
+			}
+			screenToMapTime = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int i = 0; i < POINTS; i++) {
+				sum += WIDTH/2f + ((float) xs[i] - centerX) / resolution;
+			}
+			floatTime = System.nanoTime() - start;
+		}
+		assertFalse(Float.isNaN(sum));
+		
+		double maxError = 0;
+		double maxFloatError = 0;
+		for (int i = 0; i < POINTS; i++) {
+			PointF p = map.mapToScreen(xs[i], ys[i], screen);
+			Point2D back = map.screenToMap(p.x, p.y, position);
+			maxError = Math.max(maxError, Math.max(Math.abs(back.x-xs[i]), Math.abs(back.y-ys[i])));
+			
+			float screenX = WIDTH/2f + ((float) xs[i] - centerX) / resolution;
+			float floatX = centerX + (screenX - WIDTH/2f) * resolution;
+			maxFloatError = Math.max(maxFloatError, Math.abs(floatX-xs[i]));
+		}
+		assertTrue(maxError < RESOLUTION);
+		
+		Log.i(TAG, format("mapToScreen %.1f ns, mapToScreenAligned %.1f ns, screenToMap %.1f ns, " +
+				"float mapToScreen %.1f ns, round trip error %.4f m, in floats %.4f m",
+				mapToScreenTime / (double) POINTS, alignedTime / (double) POINTS,
+				screenToMapTime / (double) POINTS, floatTime / (double) POINTS, maxError, maxFloatError));
+	}
+}
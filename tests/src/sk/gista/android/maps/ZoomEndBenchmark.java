@@ -0,0 +1,114 @@
+package sk.gista.android.maps;
+
+import static java.lang.String.format;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Measures frames at the end of the zoom animation, until the first frame of
+ * the new zoom level, against frames of the unchanged map. Frames which draw a
+ * strip of the zoom snapshot are clipped to the strip, as the view is redrawn
+ * only partially. Results are logged.
+ */
+public class ZoomEndBenchmark extends InstrumentationTestCase {
+	
+	private static final String TAG = ZoomEndBenchmark.class.getSimpleName();
+	
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+	private static final int ROUNDS = 20;
+	
+	private Map map;
+	private Canvas canvas;
+	
+	@Override
+	protected void setUp() throws Exception {
+		// 10x10 tiles at zoom level 0 and 20x20 tiles at zoom level 1, all cached
+		TmsLayer layer = new TmsLayer(new BBox(0, 0, 5120, 5120), new double[] {2, 1},
+				"http://localhost", "test", "png");
+		map = new Map(getInstrumentation().getTargetContext());
+		map.setLayer(layer);
+		map.setZoom(1);
+		map.layout(0, 0, WIDTH, HEIGHT);
+		map.setCenter(2560, 2560);
+		
+		MemoryCache cache = map.getTilesManager().getCache();
+		cache.setMaxBytes(Long.MAX_VALUE);
+		for (int zoom = 0; zoom < 2; zoom++) {
+			int tiles = zoom == 0? 10 : 20;
+			for (int x = 0; x < tiles; x++) {
+				for (int y = 0; y < tiles; y++) {
+					cache.putTile(new Tile(x, y, zoom, Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565)));
+				}
+			}
+		}
+		canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		map.setLayer(null);
+	}
+	
+	/**
+	 * Draws the frames from the last step of the zoom animation to the first
+	 * frame of the new zoom level.
+	 * 
+	 * @return maximal frame time in nanoseconds
+	 */
+	private long zoomEnd(int zoom) {
+		Map.ZoomAnimation animation = map.new ZoomAnimation(zoom);
+		animation.onFrame(1f);
+		map.onDraw(canvas);
+		animation.onEnd();
+		
+		long maxTime = 0;
+		int strip = 0;
+		while (map.getZoom() != zoom) {
+			long start = System.nanoTime();
+			canvas.save();
+			if (strip > 0) {
+				canvas.clipRect(0, strip*HEIGHT/Map.SNAPSHOT_STRIPS, WIDTH, (strip+1)*HEIGHT/Map.SNAPSHOT_STRIPS);
+			}
+			map.onDraw(canvas);
+			canvas.restore();
+			maxTime = Math.max(maxTime, System.nanoTime() - start);
+			strip++;
+		}
+		long start = System.nanoTime();
+		map.onDraw(canvas);
+		return Math.max(maxTime, System.nanoTime() - start);
+	}
+	
+	public void testZoomEnd() {
+		// first round warms up the code
+		long frameTime = 0;
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				map.onDraw(canvas);
+			}
+			frameTime = (System.nanoTime() - start) / ROUNDS;
+		}
+		zoomEnd(0);
+		zoomEnd(1);
+		
+		long maxTime = 0;
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		for (int i = 0; i < ROUNDS; i++) {
+			maxTime = Math.max(maxTime, zoomEnd(i % 2 == 0? 0 : 1));
+		}
+		Debug.stopAllocCounting();
+		assertEquals(1, map.getZoom());
+		
+		Log.i(TAG, format("frame %.2f ms, end of zoom: max frame %.2f ms, %.1f objects allocated",
+				frameTime / 1000000.0, maxTime / 1000000.0, Debug.getThreadAllocCount() / (double) ROUNDS));
+	}
+}
@@ -0,0 +1,108 @@
+package sk.gista.android.maps;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import sk.gista.android.maps.Layer.Tile;
+
+/**
+ * Zooms in, out and in again and counts the tiles requested at each step, the
+ * tiles of the levels visited before are served from the memory cache. Tiles
+ * are loaded from a local tile source, results are delivered on the test
+ * thread. Counts are logged.
+ */
+public class ZoomRequestsTest extends InstrumentationTestCase {
+	
+	private static final String TAG = ZoomRequestsTest.class.getSimpleName();
+	
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+	
+	private Map map;
+	private Canvas canvas;
+	private LinkedBlockingQueue<Runnable> results = new LinkedBlockingQueue<Runnable>();
+	
+	@Override
+	protected void setUp() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888).compress(Bitmap.CompressFormat.PNG, 100, out);
+		final byte[] png = out.toByteArray();
+		
+		// 8x8, 16x16 and 32x32 tiles at zoom levels 0, 1 and 2
+		TmsLayer layer = new TmsLayer(new BBox(0, 0, 8192, 8192), new double[] {4, 2, 1},
+				"http://localhost", "test", "png");
+		layer.setTileSource(new TileSource() {
+			
+			@Override
+			public ByteBuffer getTileData(Tile tile) throws IOException {
+				return ByteBuffer.wrap(png);
+			}
+			
+			@Override
+			public void close() {}
+		});
+		map = new Map(getInstrumentation().getTargetContext());
+		map.setLayer(layer);
+		map.getTilesManager().setResultExecutor(new Executor() {
+			
+			@Override
+			public void execute(Runnable command) {
+				results.add(command);
+			}
+		});
+		map.setZoom(1);
+		map.setCenter(4096, 4096);
+		map.layout(0, 0, WIDTH, HEIGHT);
+		canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565));
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		map.setLayer(null);
+	}
+	
+	/**
+	 * Draws frames and delivers loaded tiles until no more tiles are requested.
+	 * 
+	 * @return count of the tiles requested at the zoom level
+	 */
+	private int zoomTo(int zoom) throws InterruptedException {
+		int requests = map.getTilesManager().getRequestsCount();
+		map.setZoom(zoom);
+		int lastRequests;
+		do {
+			lastRequests = map.getTilesManager().getRequestsCount();
+			map.onDraw(canvas);
+			Runnable result;
+			while ((result = results.poll(300, TimeUnit.MILLISECONDS)) != null) {
+				result.run();
+			}
+		} while (map.getTilesManager().getRequestsCount() != lastRequests);
+		return map.getTilesManager().getRequestsCount() - requests;
+	}
+	
+	public void testZoomInOutIn() throws InterruptedException {
+		int firstLevel = zoomTo(1);
+		int zoomIn = zoomTo(2);
+		int zoomOut = zoomTo(1);
+		int zoomInAgain = zoomTo(2);
+		Log.i(TAG, format("requested tiles: zoom level 1: %d, in: %d, out: %d, in again: %d, saved: %d",
+				firstLevel, zoomIn, zoomOut, zoomInAgain, firstLevel + zoomIn - zoomOut - zoomInAgain));
+		
+		assertTrue(firstLevel > 0);
+		assertTrue(zoomIn > 0);
+		assertEquals(0, zoomOut);
+		assertEquals(0, zoomInAgain);
+	}
+}
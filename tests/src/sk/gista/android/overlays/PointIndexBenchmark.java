@@ -0,0 +1,115 @@
+package sk.gista.android.overlays;
+
+import static java.lang.String.format;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import android.util.Log;
+
+/**
+ * Measures queries of the visible area in PointIndex against a linear scan of
+ * all points. Points are spread over 100 x 100 km with 1 km cells, queries
+ * cover 960 x 1600 m (480 x 800 px screen at 2 m/px). Results are logged.
+ */
+public class PointIndexBenchmark extends TestCase {
+	
+	private static final String TAG = PointIndexBenchmark.class.getSimpleName();
+	
+	private static final double EXTENT = 100000;
+	private static final double CELL_SIZE = 1000;
+	private static final double VIEW_WIDTH = 960;
+	private static final double VIEW_HEIGHT = 1600;
+	private static final int QUERIES = 10000;
+	private static final int SCANS = 100;
+	
+	private static class Counter implements PointIndex.Visitor {
+		long sum;
+		
+		@Override
+		public void visit(int id, double x, double y) {
+			sum += id;
+		}
+	}
+	
+	public void testQueries10k() {
+		benchmark(10000);
+	}
+	
+	public void testQueries100k() {
+		benchmark(100000);
+	}
+	
+	public void testQueries1M() {
+		benchmark(1000000);
+	}
+	
+	private void benchmark(int count) {
+		Random random = new Random(1);
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+		PointIndex index = new PointIndex(CELL_SIZE);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			xs[i] = random.nextDouble() * EXTENT;
+			ys[i] = random.nextDouble() * EXTENT;
+			index.insert(i, xs[i], ys[i]);
+		}
+		long insertTime = System.nanoTime() - start;
+		
+		Counter counter = new Counter();
+		long visited = 0;
+		long queryTime = 0;
+		// first round warms up the code
+		for (int round = 0; round < 2; round++) {
+			random = new Random(2);
+			visited = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < QUERIES; i++) {
+				double x = random.nextDouble() * (EXTENT - VIEW_WIDTH);
+				double y = random.nextDouble() * (EXTENT - VIEW_HEIGHT);
+				visited += index.query(x, y, x + VIEW_WIDTH, y + VIEW_HEIGHT, counter);
+			}
+			queryTime = System.nanoTime() - start;
+		}
+		
+		random = new Random(2);
+		long scanned = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < SCANS; i++) {
+			double x = random.nextDouble() * (EXTENT - VIEW_WIDTH);
+			double y = random.nextDouble() * (EXTENT - VIEW_HEIGHT);
+			for (int j = 0; j < count; j++) {
+				if (xs[j] >= x && xs[j] <= x + VIEW_WIDTH && ys[j] >= y && ys[j] <= y + VIEW_HEIGHT) {
+					scanned++;
+				}
+			}
+		}
+		long scanTime = System.nanoTime() - start;
+		
+		random = new Random(3);
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) {
+			int id = random.nextInt(count);
+			assertTrue(index.remove(id, xs[id], ys[id]));
+			index.insert(id, xs[id], ys[id]);
+		}
+		long updateTime = System.nanoTime() - start;
+		
+		// both methods see the same points in the first queries
+		random = new Random(2);
+		long indexed = 0;
+		for (int i = 0; i < SCANS; i++) {
+			double x = random.nextDouble() * (EXTENT - VIEW_WIDTH);
+			double y = random.nextDouble() * (EXTENT - VIEW_HEIGHT);
+			indexed += index.query(x, y, x + VIEW_WIDTH, y + VIEW_HEIGHT, counter);
+		}
+		assertEquals(scanned, indexed);
+		
+		Log.i(TAG, format("%d points: insert %.0f ns/point, query %.1f us (%.1f points), " +
+				"linear scan %.1f us, remove and insert %.0f ns", count,
+				insertTime / (double) count, queryTime / 1000.0 / QUERIES, visited / (double) QUERIES,
+				scanTime / 1000.0 / SCANS, updateTime / (double) QUERIES));
+	}
+}
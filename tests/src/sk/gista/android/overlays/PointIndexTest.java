@@ -0,0 +1,132 @@
+package sk.gista.android.overlays;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PointIndexTest extends TestCase {
+	
+	/**
+	 * Collects sorted ids of the visited points.
+	 */
+	private static class Collector implements PointIndex.Visitor {
+		List<Integer> ids = new ArrayList<Integer>();
+		
+		@Override
+		public void visit(int id, double x, double y) {
+			ids.add(id);
+		}
+		
+		List<Integer> sorted() {
+			Collections.sort(ids);
+			return ids;
+		}
+	}
+	
+	private static List<Integer> query(PointIndex index, double minX, double minY, double maxX, double maxY) {
+		Collector collector = new Collector();
+		int count = index.query(minX, minY, maxX, maxY, collector);
+		assertEquals(collector.ids.size(), count);
+		return collector.sorted();
+	}
+	
+	private static List<Integer> ids(Integer... ids) {
+		List<Integer> list = new ArrayList<Integer>();
+		Collections.addAll(list, ids);
+		return list;
+	}
+	
+	public void testCellBoundaries() {
+		PointIndex index = new PointIndex(10);
+		index.insert(0, 0, 0);
+		index.insert(1, 10, 10);
+		index.insert(2, 9.999, 9.999);
+		index.insert(3, 10.001, 5);
+		assertEquals(4, index.size());
+		assertEquals(3, index.getCellsCount());
+		
+		// rectangle is inclusive, points on the edges of the cells are found
+		assertEquals(ids(0, 1, 2), query(index, 0, 0, 10, 10));
+		assertEquals(ids(1), query(index, 10, 10, 10, 10));
+		assertEquals(ids(1, 3), query(index, 10, 0, 20, 10));
+		assertEquals(ids(), query(index, 0.001, 0.001, 9.99, 9.99));
+	}
+	
+	public void testNegativeCoordinates() {
+		PointIndex index = new PointIndex(10);
+		index.insert(0, -0.001, -0.001);
+		index.insert(1, -10, -10);
+		index.insert(2, -10.001, 0);
+		index.insert(3, 0, -25);
+		index.insert(4, 5, 5);
+		// -0.001 and -10 are in the cell -1, -10.001 in the cell -2
+		assertEquals(4, index.getCellsCount());
+		
+		assertEquals(ids(0, 1), query(index, -10, -10, -0.001, -0.001));
+		assertEquals(ids(0, 1, 2, 4), query(index, -20, -20, 5, 5));
+		assertEquals(ids(3), query(index, -1, -30, 1, -20));
+		assertEquals(ids(0, 1, 2, 3, 4), query(index, -100, -100, 100, 100));
+	}
+	
+	public void testRemove() {
+		PointIndex index = new PointIndex(10);
+		index.insert(0, -5, -5);
+		index.insert(1, -5, -5);
+		index.insert(2, 15, 15);
+		assertFalse(index.remove(2, -5, -5));
+		assertFalse(index.remove(3, 15, 15));
+		assertTrue(index.remove(0, -5, -5));
+		assertFalse(index.remove(0, -5, -5));
+		assertEquals(2, index.size());
+		assertEquals(ids(1), query(index, -10, -10, 0, 0));
+		
+		// empty cells are removed
+		assertTrue(index.remove(1, -5, -5));
+		assertEquals(1, index.getCellsCount());
+		assertEquals(ids(), query(index, -10, -10, 0, 0));
+		
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(ids(), query(index, -100, -100, 100, 100));
+	}
+	
+	/**
+	 * Compares queries of small and large rectangles, which are answered by
+	 * different strategies, with a linear scan.
+	 */
+	public void testRandomQueries() {
+		Random random = new Random(5);
+		int count = 2000;
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+		boolean[] removed = new boolean[count];
+		PointIndex index = new PointIndex(7.5);
+		for (int i = 0; i < count; i++) {
+			// integer coordinates, so many points lie on the cell boundaries
+			xs[i] = random.nextInt(301) - 150;
+			ys[i] = random.nextInt(301) - 150;
+			index.insert(i, xs[i], ys[i]);
+		}
+		for (int i = 0; i < count; i += 3) {
+			assertTrue(index.remove(i, xs[i], ys[i]));
+			removed[i] = true;
+		}
+		for (int q = 0; q < 500; q++) {
+			int size = q % 2 == 0? 30 : 3000;
+			double minX = random.nextInt(401) - 200;
+			double minY = random.nextInt(401) - 200;
+			double maxX = minX + random.nextInt(size);
+			double maxY = minY + random.nextInt(size);
+			List<Integer> expected = new ArrayList<Integer>();
+			for (int i = 0; i < count; i++) {
+				if (!removed[i] && xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY) {
+					expected.add(i);
+				}
+			}
+			assertEquals(expected, query(index, minX, minY, maxX, maxY));
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package sk.gista.android.utils;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import android.os.Debug;
+
+public class LongHashMapTest extends TestCase {
+	
+	public void testPutGetRemove() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		assertNull(map.put(1, "a"));
+		assertNull(map.put(-1, "b"));
+		assertNull(map.put(Long.MIN_VALUE, "c"));
+		assertEquals("a", map.put(1, "d"));
+		assertEquals(3, map.size());
+		assertEquals("d", map.get(1));
+		assertEquals("b", map.get(-1));
+		assertEquals("c", map.get(Long.MIN_VALUE));
+		assertNull(map.get(2));
+		
+		assertEquals("b", map.remove(-1));
+		assertNull(map.remove(-1));
+		assertFalse(map.containsKey(-1));
+		assertEquals(2, map.size());
+	}
+	
+	public void testRehashKeepsAllEntries() {
+		LongHashMap<Long> map = new LongHashMap<Long>(2);
+		for (long key = 0; key < 10000; key++) {
+			map.put(key * 31, key);
+		}
+		assertEquals(10000, map.size());
+		for (long key = 0; key < 10000; key++) {
+			assertEquals(Long.valueOf(key), map.get(key * 31));
+		}
+		int count = 0;
+		for (int i = 0; i < map.tableSize(); i++) {
+			if (map.valueAt(i) != null) {
+				assertEquals(map.valueAt(i).longValue() * 31, map.keyAt(i));
+				count++;
+			}
+		}
+		assertEquals(10000, count);
+	}
+	
+	/**
+	 * Removes entries from the middle of the clusters, lookups of the following
+	 * entries of the cluster must still succeed.
+	 */
+	public void testRemoveFromClusters() {
+		Random random = new Random(11);
+		HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+		LongHashMap<Integer> map = new LongHashMap<Integer>();
+		for (int i = 0; i < 200000; i++) {
+			// small key space, so the keys are often removed and put again
+			long key = random.nextInt(512) - 256;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				assertEquals(expected.put(key, i), map.put(key, i));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (long key = -256; key < 256; key++) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+		}
+	}
+	
+	public void testClear() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		for (int i = 0; i < 100; i++) {
+			map.put(i, "v");
+		}
+		map.clear();
+		assertEquals(0, map.size());
+		for (int i = 0; i < 100; i++) {
+			assertNull(map.get(i));
+		}
+		map.put(5, "w");
+		assertEquals("w", map.get(5));
+	}
+	
+	/**
+	 * Lookups and replacing of values are done for each tile while drawing
+	 * frames, they mustn't allocate.
+	 */
+	public void testHitsDoNotAllocate() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		for (long key = 0; key < 1000; key++) {
+			map.put(key * 31, "v");
+		}
+		// first round warms up the code
+		lookup(map);
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		int found = lookup(map);
+		Debug.stopAllocCounting();
+		assertEquals("objects allocated by lookups", 0, Debug.getThreadAllocCount());
+		assertEquals(100000, found);
+	}
+	
+	private static int lookup(LongHashMap<String> map) {
+		int found = 0;
+		for (int round = 0; round < 100; round++) {
+			for (long key = 0; key < 1000; key++) {
+				if (map.get(key * 31) != null && !map.containsKey(key * 31 + 1)) {
+					found++;
+				}
+				map.put(key * 31, "w");
+			}
+		}
+		return found;
+	}
+}